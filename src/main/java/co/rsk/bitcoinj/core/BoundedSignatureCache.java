@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link SignatureCache} remembering the outcome of the most recently used verifications, valid or not, up to a
+ * maximum number of entries.<p>
+ *
+ * Entries are keyed by the SHA-256 of the hash, signature and public key, salted with random bytes picked when the
+ * cache is created, so that nobody can come up with signatures that crowd the same part of the cache. The entries are
+ * split in segments by key, each evicting its least recently used entries, so that threads verifying different
+ * signatures rarely wait for each other.<p>
+ *
+ * This class is thread safe.
+ */
+public class BoundedSignatureCache implements SignatureCache {
+    /** Enough for the signatures of many blocks worth of federation transactions, taking a few megabytes. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private static final int SEGMENTS = 16;
+    private static final int SALT_LENGTH = 16;
+
+    private final byte[] salt = new byte[SALT_LENGTH];
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Segment extends LinkedHashMap<Sha256Hash, Boolean> {
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    public BoundedSignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public BoundedSignatureCache(int maxEntries) {
+        checkArgument(maxEntries >= SEGMENTS, "maxEntries must be at least %s: %s", SEGMENTS, maxEntries);
+        new SecureRandom().nextBytes(salt);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxEntries / SEGMENTS);
+    }
+
+    @Override
+    public boolean verify(byte[] hash, BtcECKey.ECDSASignature signature, byte[] pubKey) {
+        Sha256Hash key = key(hash, signature, pubKey);
+        // The low bytes of the key make its hash code, pick the segment from others.
+        Segment segment = segments[(key.getBytes()[0] & 0xff) % SEGMENTS];
+        Boolean valid;
+        synchronized (segment) {
+            valid = segment.get(key);
+        }
+        if (valid != null) {
+            hits.incrementAndGet();
+            return valid;
+        }
+        misses.incrementAndGet();
+        valid = BtcECKey.verify(hash, signature, pubKey);
+        synchronized (segment) {
+            segment.put(key, valid);
+        }
+        return valid;
+    }
+
+    /** Returns the number of verifications answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of verifications that had to be done. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Forgets all the verifications, but not the hit and miss counts. */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Sha256Hash key(byte[] hash, BtcECKey.ECDSASignature signature, byte[] pubKey) {
+        byte[] r = signature.r.toByteArray();
+        byte[] s = signature.s.toByteArray();
+        // Each part but the salt is preceded by its length, so different parts never make the same bytes.
+        byte[] bytes = new byte[SALT_LENGTH + 4 * 4 + hash.length + r.length + s.length + pubKey.length];
+        int offset = 0;
+        System.arraycopy(salt, 0, bytes, offset, SALT_LENGTH);
+        offset += SALT_LENGTH;
+        for (byte[] part : new byte[][] { hash, r, s, pubKey }) {
+            Utils.uint32ToByteArrayBE(part.length, bytes, offset);
+            System.arraycopy(part, 0, bytes, offset + 4, part.length);
+            offset += 4 + part.length;
+        }
+        return Sha256Hash.of(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedSignatureCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+}
@@ -25,6 +25,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -38,7 +41,7 @@ import static com.google.common.base.Preconditions.*;
  * <p>An AbstractBlockChain implementation must be connected to a {@link BtcBlockStore} implementation. The chain object
  * by itself doesn't store any data, that's delegated to the store. Which store you use is a decision best made by
  * reading the getting started guide, but briefly, fully validating block chains need fully validating stores. In
- * the lightweight SPV mode, a {@link co.rsk.bitcoinj.store.SPVBlockStore} is the right choice.</p>
+ * the lightweight SPV mode, a {@link co.rsk.bitcoinj.store.BtcSPVBlockStore} is the right choice.</p>
  *
  * <p>This class implements an abstract class which makes it simple to create a BlockChain that does/doesn't do full
  * verification.  It verifies headers and is implements most of what is required to implement SPV mode, but
@@ -83,16 +86,34 @@ public abstract class BtcAbstractBlockChain {
      * Following this one down to the genesis block produces the story of the economy from the creation of Bitcoin
      * until the present day. The chain head can change if a new set of blocks is received that results in a chain of
      * greater work than the one obtained by following this one down. In that case a reorganize is triggered,
-     * potentially invalidating transactions in our wallet.
+     * potentially invalidating transactions in our wallet.<p>
+     *
+     * The chain head carries its own height and total work, and is only written while holding {@link #lock}, after the
+     * block store has been updated. Readers take it without locking, so asking for the chain head or the best height
+     * never waits for a block being added.
+     */
+    protected volatile StoredBlock chainHead;
+
+    /**
+     * Held while the chain is modified, so that blocks are added one at a time. Reading the chain head doesn't need it.
      */
-    protected StoredBlock chainHead;
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    // Timestamps of the blocks ending at the chain head, kept up to date by setChainHead.
+    private final MedianTimePastTracker medianTimePast = new MedianTimePastTracker();
+
+    // Blocks whose parent we don't have yet, connected as soon as it arrives.
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
+
+    // Tips of the side chains, with where they fork from the best chain.
+    private final ChainTipIndex chainTips = new ChainTipIndex();
 
-    // TODO: Scrap this and use a proper read/write for all of the block chain objects.
-    // The chainHead field is read/written synchronized with this object rather than BlockChain. However writing is
-    // also guaranteed to happen whilst BlockChain is synchronized (see setChainHead). The goal of this is to let
-    // clients quickly access the chain head even whilst the block chain is downloading and thus the BlockChain is
-    // locked most of the time.
-    private final Object chainHeadLock = new Object();
+    // Checks proof of work of header batches in parallel, see addHeaders.
+    private final HeaderBatchVerifier headerVerifier =
+            new HeaderBatchVerifier(ForkJoinPool.commonPool(), HeaderBatchVerifier.DEFAULT_CHUNK_SIZE);
+
+    // Changes of the best chain, for the listeners.
+    private final ChainEventPublisher events = new ChainEventPublisher();
 
     protected final NetworkParameters params;
 
@@ -120,6 +141,7 @@ public abstract class BtcAbstractBlockChain {
         chainHead = blockStore.getChainHead();
         log.debug("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
+        medianTimePast.reset(chainHead, blockStore);
     }
 
     /**
@@ -147,18 +169,25 @@ public abstract class BtcAbstractBlockChain {
      */
     protected abstract void rollbackBlockStore(int height) throws BlockStoreException;
 
+    /**
+     * Called before writing the blocks that will move the chain head to the block store. Can be used to start a
+     * database transaction, that {@link #doSetChainHead(StoredBlock)} commits or {@link #notSettingChainHead()} aborts.
+     * Does nothing by default.
+     */
+    protected void beginSettingChainHead() throws BlockStoreException {
+    }
+
     /**
      * Called before setting chain head in memory.
      * Should write the new head to block store and then commit any database transactions
-     * that were started by disconnectTransactions/connectTransactions.
+     * that were started by beginSettingChainHead.
      */
     protected abstract void doSetChainHead(StoredBlock chainHead) throws BlockStoreException;
     
     /**
-     * Called if we (possibly) previously called disconnectTransaction/connectTransactions,
-     * but will not be calling preSetChainHead as a block failed verification.
-     * Can be used to abort database transactions that were started by
-     * disconnectTransactions/connectTransactions.
+     * Called if we (possibly) previously called beginSettingChainHead,
+     * but will not be calling doSetChainHead as a block failed verification or the block store failed.
+     * Can be used to abort database transactions that were started by beginSettingChainHead.
      */
     protected abstract void notSettingChainHead() throws BlockStoreException;
     
@@ -203,11 +232,118 @@ public abstract class BtcAbstractBlockChain {
         return runAddProcces(block.getBlockHeader(), block.getTransactionHashes(), block.getAssociatedTransactions(), block);
     }
     
+    /**
+     * Adds a run of headers, typically the contents of a {@link HeadersMessage}, to the chain. Headers that extend the
+     * best chain one after the other are verified and stored in a single pass, and the chain head is moved once at
+     * the end rather than after every header. Headers that don't, for instance because they fork the chain, go
+     * through {@link #addBlock(BtcBlock)} one by one.<p>
+     *
+     * The returned result is successful only if every header was connected or already known, and lists the orphans
+     * connected along the way.
+     *
+     * @throws VerificationException if a header is invalid. The headers before it are kept.
+     */
+    public BlockchainAddResult addHeaders(List<BtcBlock> headers) throws VerificationException {
+        lock.lock();
+        try {
+            BlockchainAddResult result = new BlockchainAddResult();
+            result.setSuccess(Boolean.TRUE);
+            try {
+                int next = 0;
+                if (!shouldVerifyTransactions())
+                    next = connectToChainHead(headers, result);
+                List<BtcBlock> notConnected = new ArrayList<BtcBlock>();
+                for (BtcBlock header : headers.subList(next, headers.size())) {
+                    BlockchainAddResult headerResult = addBlock(header);
+                    if (!headerResult.success())
+                        notConnected.add(header);
+                    result.addConnectedOrphans(headerResult.getOrphansBlockConnected());
+                }
+                // Headers that arrived before their parent got connected as orphans when it did.
+                for (BtcBlock header : notConnected) {
+                    if (blockStore.get(header.getHash()) == null)
+                        result.setSuccess(Boolean.FALSE);
+                }
+            } catch (BlockStoreException e) {
+                abortSettingChainHead();
+                // TODO: Figure out a better way to propagate this exception to the user.
+                throw new RuntimeException(e);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Connects the longest leading run of the given headers that extends the chain head, after skipping the ones
+     * already in the store, with the same checks {@link #add(BtcBlock)} does in SPV mode. The headers are first
+     * verified on their own in parallel, then linked and checked for difficulty transitions in order. The blocks are
+     * written to the store as they are linked, since difficulty transitions may need to look at them, but the chain
+     * head is only set once, after which orphans waiting for any of the blocks are connected.
+     *
+     * @return the number of headers dealt with.
+     */
+    private int connectToChainHead(List<BtcBlock> headers, BlockchainAddResult result)
+            throws BlockStoreException, VerificationException {
+        int next = 0;
+        while (next < headers.size() && blockStore.get(headers.get(next).getHash()) != null)
+            next++;
+        if (next == headers.size())
+            return next;
+        HeaderBatchVerifier.Failure failure = headerVerifier.verify(headers, next);
+        final StoredBlock head = getChainHead();
+        StoredBlock tip = head;
+        List<StoredBlock> connected = new ArrayList<StoredBlock>();
+        BtcBlock block = null;
+        try {
+            for (; next < headers.size(); next++) {
+                block = headers.get(next);
+                if (!block.getPrevBlockHash().equals(tip.getHeader().getHash()))
+                    break;
+                if (failure != null && failure.index == next)
+                    throw failure.cause;
+                params.checkDifficultyTransitions(tip, block, blockStore);
+                if (!params.passesCheckpoint(tip.getHeight() + 1, block.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + (tip.getHeight() + 1));
+                if (tip == head) {
+                    beginSettingChainHead();
+                } else {
+                    // Setting the chain head records it in the main chain, do that for the blocks it moves past.
+                    blockStore.setMainChainBlock(tip.getHeight(), tip.getHeader().getHash());
+                }
+                tip = addToBlockStore(tip, block.transactions == null ? block : block.cloneAsHeader());
+                connected.add(tip);
+            }
+        } catch (VerificationException e) {
+            log.error("Failed to verify block: ", e);
+            if (tip != head) {
+                setChainHead(tip);
+                publishConnected(connected);
+            } else {
+                notSettingChainHead();
+            }
+            throw new VerificationException("Could not verify block " + block.getHash().toString() + "\n" +
+                    block.toString(), e);
+        }
+        if (tip != head) {
+            setChainHead(tip);
+            publishConnected(connected);
+            log.debug("Chain is now {} blocks high", tip.getHeight());
+            for (int i = next - (tip.getHeight() - head.getHeight()); i < next && !orphanBlocks.isEmpty(); i++)
+                tryConnectingOrphans(headers.get(i).getHash(), result);
+        }
+        return next;
+    }
+
     /**
      * This code was duplicated on add(Block) and in add(FilteredBlock), as the original comment says. The way to handle exceptions should be improved
      */
     private BlockchainAddResult runAddProcces(BtcBlock block,
                                               @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, BtcTransaction> filteredTxn, FilteredBlock filteredBlock) throws VerificationException{
+        // Held until the pending writes are aborted, so that another writer can't begin its own batch in between and
+        // lose it to this abort.
+        lock.lock();
         try {
             // The block has a list of hashes of transactions that matched the Bloom filter, and a list of associated
             // Transaction objects. There may be fewer Transaction objects than hashes, this is expected. It can happen
@@ -218,6 +354,7 @@ public abstract class BtcAbstractBlockChain {
             // of the transactions.
             return add(block, filteredTxHashList, filteredTxn, filteredBlock);
         } catch (BlockStoreException e) {
+            abortSettingChainHead();
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
         } catch (VerificationException e) {
@@ -228,6 +365,17 @@ public abstract class BtcAbstractBlockChain {
             }
             throw new VerificationException("Could not verify block " + block.getHash().toString() + "\n" +
                     block.toString(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Calls {@link #notSettingChainHead()} after a block store failure, keeping the original exception. */
+    private void abortSettingChainHead() {
+        try {
+            notSettingChainHead();
+        } catch (BlockStoreException e) {
+            log.error("Could not abort the pending block store writes", e);
         }
     }
 
@@ -242,7 +390,7 @@ public abstract class BtcAbstractBlockChain {
     private BlockchainAddResult add(BtcBlock block,
                                     @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, BtcTransaction> filteredTxn, FilteredBlock filteredBlock)
             throws BlockStoreException, VerificationException {
-        // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
+        lock.lock();
         BlockchainAddResult result = new BlockchainAddResult();
         try {
             // Quick check for duplicates to avoid an expensive check further down (in findSplit).
@@ -261,6 +409,12 @@ public abstract class BtcAbstractBlockChain {
                 return result;
             }
 
+            // It's already waiting for its parent, no need to verify it again.
+            if (orphanBlocks.contains(block.getHash())) {
+                result.setSuccess(Boolean.FALSE);
+                return result;
+            }
+
             final StoredBlock storedPrev;
 
             // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
@@ -279,7 +433,12 @@ public abstract class BtcAbstractBlockChain {
             // Try linking it to a place in the currently known blocks.
 
             if (storedPrev == null) {
+                // We can't find the previous block. Probably we are still in the process of downloading the chain and a
+                // block was solved whilst we were doing it. Keep it until the parent shows up.
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
+                BtcBlock orphan = shouldVerifyTransactions() || block.transactions == null ? block : block.cloneAsHeader();
+                if (!orphanBlocks.add(orphan, filteredTxHashList, filteredTxn, filteredBlock))
+                    log.info("Not keeping orphan block {}, the orphan pool is full", block.getHashAsString());
                 result.setSuccess(Boolean.FALSE);
                 return result;
             } else {
@@ -288,12 +447,79 @@ public abstract class BtcAbstractBlockChain {
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
+            tryConnectingOrphans(block.getHash(), result);
             result.setSuccess(Boolean.TRUE);
             return result;
         } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Connects the orphans that were waiting for the given block, then the ones waiting for those and so on, parents
+     * always before their children. Orphans that turn out to be invalid are dropped, along with the orphans descending
+     * from them. Connected orphans are added to the result.
+     */
+    private void tryConnectingOrphans(Sha256Hash parentHash, BlockchainAddResult result) throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.removeExpired();
+        if (orphanBlocks.isEmpty())
+            return;
+        Deque<Sha256Hash> parents = new ArrayDeque<Sha256Hash>();
+        parents.add(parentHash);
+        while (!parents.isEmpty()) {
+            for (OrphanBlockPool.OrphanBlock orphan : orphanBlocks.takeChildren(parents.poll())) {
+                StoredBlock storedPrev = getStoredBlockInCurrentScope(orphan.block.getPrevBlockHash());
+                if (storedPrev == null)
+                    continue;
+                try {
+                    params.checkDifficultyTransitions(storedPrev, orphan.block, blockStore);
+                    connectBlock(orphan.block, storedPrev, shouldVerifyTransactions(), orphan.filteredTxHashes,
+                            orphan.filteredTxn);
+                } catch (VerificationException e) {
+                    notSettingChainHead();
+                    log.warn("Dropping orphan block {} that failed verification: {}", orphan.block.getHashAsString(),
+                            e.getMessage());
+                    int descendants = orphanBlocks.removeDescendants(orphan.block.getHash());
+                    if (descendants > 0)
+                        log.warn("Dropping {} orphan blocks descending from it", descendants);
+                    continue;
+                }
+                log.info("Connected orphan {}", orphan.block.getHashAsString());
+                if (orphan.filteredBlock != null)
+                    result.addConnectedFilteredOrphan(orphan.filteredBlock);
+                else
+                    result.addConnectedOrphan(orphan.block);
+                parents.add(orphan.block.getHash());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given block is waiting for its parent, i.e. it was added but couldn't be connected yet. It
+     * will be connected once its parent is. Like {@link #getChainHead()}, this doesn't wait for blocks being added.
+     */
+    public boolean isOrphan(Sha256Hash blockHash) {
+        return orphanBlocks.isWaiting(blockHash);
+    }
+
+    /**
+     * Returns the known chain tips, most work first: the best chain, which ends at the chain head, then the side
+     * chains seen since this object was created, each with the block where it forks from the best chain. Only the
+     * {@link ChainTipIndex#DEFAULT_MAX_TIPS} side chains with the most work are kept.<p>
+     *
+     * Like {@link #getChainHead()}, this doesn't wait for blocks being added. While a re-organize is being applied, the
+     * side chains may lag one step behind the chain head.
+     */
+    public List<ChainTip> getChainTips() {
+        StoredBlock head = chainHead;
+        List<ChainTip> sideChains = chainTips.getTips();
+        List<ChainTip> tips = new ArrayList<ChainTip>(sideChains.size() + 1);
+        tips.add(new ChainTip(head, head, true));
+        tips.addAll(sideChains);
+        return tips;
+    }
+
     // expensiveChecks enables checks that require looking at blocks further back in the chain
     // than the previous one when connecting (eg median timestamp check)
     // It could be exposed, but for now we just set it to shouldVerifyTransactions()
@@ -318,25 +544,33 @@ public abstract class BtcAbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimePastOf(head))
                 throw new VerificationException("Block's timestamp is too early");
 
             // This block connects to the best known block, it is a normal continuation of the system.
+            beginSettingChainHead();
             StoredBlock newStoredBlock = addToBlockStore(storedPrev,
                     block.transactions == null ? block : block.cloneAsHeader());
             setChainHead(newStoredBlock);
+            if (events.hasListeners())
+                events.blockConnected(newStoredBlock);
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
         } else {
             // This block connects to somewhere other than the top of the best known chain. We treat these differently.
             //
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
             // to become the new best chain head. This simplifies handling of the re-org in the Wallet class.
+            // Only used to compare work and find the split point; addToBlockStore links the stored block to its skip
+            // ancestor.
             StoredBlock newBlock = storedPrev.build(block);
             boolean haveNewBestChain = newBlock.moreWorkThan(head);
+            // A block extending a known side chain forks where the side chain does, no need to look for it.
+            ChainTip extendedTip = chainTips.get(storedPrev.getHeader().getHash());
+            StoredBlock knownSplitPoint = extendedTip == null ? null : extendedTip.getForkPoint();
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = knownSplitPoint != null ? knownSplitPoint : findSplit(newBlock, head, blockStore);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -352,7 +586,7 @@ public abstract class BtcAbstractBlockChain {
                     throw new VerificationException("Block forks the chain but splitPoint is null");
                 } else {
                     // We aren't actually spending any transactions (yet) because we are on a fork
-                    addToBlockStore(storedPrev, block);
+                    chainTips.add(addToBlockStore(storedPrev, block), splitPoint);
                     int splitPointHeight = splitPoint.getHeight();
                     String splitPointHash = splitPoint.getHeader().getHashAsString();
                     log.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}",
@@ -361,10 +595,20 @@ public abstract class BtcAbstractBlockChain {
             }
             
             if (haveNewBestChain)
-                handleNewBestChain(storedPrev, newBlock, block, expensiveChecks);
+                handleNewBestChain(storedPrev, newBlock, knownSplitPoint, block, expensiveChecks);
         }
     }
 
+    /**
+     * Gets the median timestamp of the last 11 blocks ending at the given block, from the tracked window when the
+     * block is the chain head.
+     */
+    private long getMedianTimePastOf(StoredBlock storedBlock) throws BlockStoreException {
+        if (medianTimePast.isTip(storedBlock))
+            return medianTimePast.getMedianTimePast();
+        return getMedianTimestampOfRecentBlocks(storedBlock, blockStore);
+    }
+
     /**
      * Gets the median timestamp of the last 11 blocks
      */
@@ -385,23 +629,29 @@ public abstract class BtcAbstractBlockChain {
      * 
      * if (shouldVerifyTransactions)
      *     Either newChainHead needs to be in the block store as a FullStoredBlock, or (block != null && block.transactions != null)
+     *
+     * knownSplitPoint is where the new chain forks from the current one, if known.
      */
-    private void handleNewBestChain(StoredBlock storedPrev, StoredBlock newChainHead, BtcBlock block, boolean expensiveChecks)
+    private void handleNewBestChain(StoredBlock storedPrev, StoredBlock newChainHead,
+                                    @Nullable StoredBlock knownSplitPoint, BtcBlock block, boolean expensiveChecks)
             throws BlockStoreException, VerificationException {
         // This chain has overtaken the one we currently believe is best. Reorganize is required.
         //
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint =
+                knownSplitPoint != null ? knownSplitPoint : findSplit(newChainHead, head, blockStore);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
         // Then build a list of all blocks in the old part of the chain and the new part.
         final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
+        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
         // Mark the blocks from the reorganized side chain as part of the main chain
-        for (StoredBlock newMainChainBlock:getPartialChain(newChainHead, splitPoint, blockStore)) {
+        beginSettingChainHead();
+        for (StoredBlock newMainChainBlock : newBlocks) {
             blockStore.setMainChainBlock(newMainChainBlock.getHeight(), newMainChainBlock.getHeader().getHash());
         }
 
@@ -414,6 +664,48 @@ public abstract class BtcAbstractBlockChain {
         }
         // Update the pointer to the best known block.
         setChainHead(storedNewHead);
+        chainTips.reorganized(head, storedNewHead, splitPoint, blockStore);
+        if (events.hasListeners())
+            events.reorganized(splitPoint, oldBlocks, newBlocks);
+    }
+
+    /** Records that the chain head was moved back from {@code oldHead} to one of its ancestors, {@code newHead}. */
+    void chainHeadRolledBack(StoredBlock oldHead, StoredBlock newHead) throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        chainTips.reorganized(oldHead, newHead, newHead, blockStore);
+        if (events.hasListeners()) {
+            for (StoredBlock block : getPartialChain(oldHead, newHead, blockStore))
+                events.blockDisconnected(block);
+        }
+    }
+
+    private void publishConnected(List<StoredBlock> connected) {
+        if (events.hasListeners()) {
+            for (StoredBlock block : connected)
+                events.blockConnected(block);
+        }
+    }
+
+    /**
+     * Adds a listener for the changes of the best chain, called on a thread shared by all the chains. Events for the
+     * listener are queued up to 10000, beyond which the queued ones are dropped.
+     */
+    public void addEventListener(ChainEventListener listener) {
+        addEventListener(listener, ChainEventPublisher.DefaultExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Adds a listener for the changes of the best chain, called with the given executor. Adding blocks never waits for
+     * listeners: events are queued, and dropped if the listener falls too far behind, in which case it's told with
+     * {@link ChainEventListener#onEventsDropped(int)} ahead of any later event.
+     */
+    public void addEventListener(ChainEventListener listener, Executor executor) {
+        events.addListener(listener, executor, ChainEventPublisher.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /** Removes a listener added before. Returns false if it wasn't registered. */
+    public boolean removeEventListener(ChainEventListener listener) {
+        return events.removeListener(listener);
     }
 
     /**
@@ -436,8 +728,8 @@ public abstract class BtcAbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BtcBlockStore store) throws BlockStoreException {
+    static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
+                                 BtcBlockStore store) throws BlockStoreException {
         StoredBlock currentChainCursor = oldChainHead;
         StoredBlock newChainCursor = newChainHead;
         // Loop until we find the block both chains have in common. Example:
@@ -446,11 +738,32 @@ public abstract class BtcAbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        //
+        // The higher cursor is first brought down to the height of the other one using skip pointers. From then on
+        // both cursors stay at the same height, so their skip pointers lead to the same height too: if those differ
+        // the split is further back and both cursors can jump at once, otherwise they step back one block.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
+            currentChainCursor = currentChainCursor.getAncestor(store, newChainCursor.getHeight());
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        } else if (newChainCursor.getHeight() > currentChainCursor.getHeight()) {
+            newChainCursor = newChainCursor.getAncestor(store, currentChainCursor.getHeight());
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+        }
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
+            Sha256Hash currentSkipHash = currentChainCursor.getSkipHash();
+            Sha256Hash newSkipHash = newChainCursor.getSkipHash();
+            StoredBlock currentSkip = null;
+            StoredBlock newSkip = null;
+            if (currentSkipHash != null && newSkipHash != null && !currentSkipHash.equals(newSkipHash)) {
+                currentSkip = store.get(currentSkipHash);
+                newSkip = store.get(newSkipHash);
+            }
+            if (currentSkip != null && newSkip != null) {
+                currentChainCursor = currentSkip;
+                newChainCursor = newSkip;
+            } else {
                 currentChainCursor = currentChainCursor.getPrev(store);
                 checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
                 newChainCursor = newChainCursor.getPrev(store);
                 checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
             }
@@ -472,9 +785,19 @@ public abstract class BtcAbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
-        }
+        // Moving one block forward is cheap, anything else (a re-org or a rollback) rebuilds the window.
+        if (!medianTimePast.extend(chainHead))
+            medianTimePast.reset(chainHead, blockStore);
+        this.chainHead = chainHead;
+    }
+
+    /**
+     * Returns the median timestamp of the last 11 blocks of the best chain, ending at the chain head. This is the time
+     * BIP 113 compares time based lock times against, see {@link BtcTransaction#isFinal(int, long)}. It's kept up to
+     * date as blocks are connected, so it doesn't touch the block store.
+     */
+    public long getMedianTimePast() {
+        return medianTimePast.getMedianTimePast();
     }
 
     /**
@@ -482,9 +805,7 @@ public abstract class BtcAbstractBlockChain {
      * amount of cumulative work done.
      */
     public StoredBlock getChainHead() {
-        synchronized (chainHeadLock) {
-            return chainHead;
-        }
+        return chainHead;
     }
 
     /**
@@ -494,12 +815,11 @@ public abstract class BtcAbstractBlockChain {
      * through the chain to obtain the right answer).
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
-        }
+        StoredBlock head = chainHead;
+        long offset = height - head.getHeight();
+        long headTime = head.getHeader().getTimeSeconds();
+        long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
@@ -430,12 +430,6 @@ public class BtcBlock extends Message {
         return hash;
     }
 
-    /**
-     * The number that is one greater than the largest representable SHA-256
-     * hash.
-     */
-    private static BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
-
     /**
      * Returns the work represented by this block.<p>
      *
@@ -445,8 +439,14 @@ public class BtcBlock extends Message {
      * lower, the amount of work goes up.
      */
     public BigInteger getWork() throws VerificationException {
-        BigInteger target = getDifficultyTargetAsInteger();
-        return LARGEST_HASH.divide(target.add(BigInteger.ONE));
+        return getWorkValue().toBigInteger();
+    }
+
+    /**
+     * Returns the work represented by this block like {@link #getWork()}, as a fixed width value.
+     */
+    public ChainWork getWorkValue() throws VerificationException {
+        return ChainWork.fromCompactBits(difficultyTarget, params.maxTarget);
     }
 
     /** Returns a copy of the block, but without any transactions. */
@@ -581,62 +581,25 @@ public class BtcBlock extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        return MerkleTree.calculateRoot(getTransactionHashes());
     }
 
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (BtcTransaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+    private List<Sha256Hash> getTransactionHashes() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+        for (BtcTransaction t : transactions)
+            hashes.add(t.getHash());
+        return hashes;
+    }
+
+    /**
+     * Builds the merkle tree of the transactions of this block, from which the merkle branch of any of them can be
+     * taken to prove it's included in the block.
+     *
+     * @throws IllegalStateException if this block has no transactions, e.g. it's only a header.
+     */
+    public MerkleTree getMerkleTree() {
+        Preconditions.checkState(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        return MerkleTree.build(getTransactionHashes());
     }
 
     /**
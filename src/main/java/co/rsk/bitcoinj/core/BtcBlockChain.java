@@ -19,6 +19,7 @@ package co.rsk.bitcoinj.core;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import co.rsk.bitcoinj.store.BatchedBtcBlockStore;
 import co.rsk.bitcoinj.store.BtcBlockStore;
 import co.rsk.bitcoinj.store.BlockStoreException;
 
@@ -46,13 +47,14 @@ public class BtcBlockChain extends BtcAbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, BtcBlock blockHeader)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(blockHeader);
+        StoredBlock newBlock = storedPrev.build(blockHeader, blockStore);
         blockStore.put(newBlock);
         return newBlock;
     }
 
     @Override
     protected void rollbackBlockStore(int height) throws BlockStoreException {
+        lock.lock();
         try {
             int currentHeight = getBestChainHeight();
             checkArgument(height >= 0 && height <= currentHeight, "Bad height: %s", height);
@@ -60,17 +62,18 @@ public class BtcBlockChain extends BtcAbstractBlockChain {
                 return; // nothing to do
 
             // Look for the block we want to be the new chain head
-            StoredBlock newChainHead = blockStore.getChainHead();
-            while (newChainHead.getHeight() > height) {
-                newChainHead = newChainHead.getPrev(blockStore);
-                if (newChainHead == null)
-                    throw new BlockStoreException("Unreachable height");
-            }
+            StoredBlock newChainHead = blockStore.getChainHead().getAncestor(blockStore, height);
+            if (newChainHead == null)
+                throw new BlockStoreException("Unreachable height");
 
             // Modify store directly
+            StoredBlock oldChainHead = getChainHead();
+            beginSettingChainHead();
             blockStore.put(newChainHead);
             this.setChainHead(newChainHead);
+            chainHeadRolledBack(oldChainHead, newChainHead);
         } finally {
+            lock.unlock();
         }
     }
 
@@ -79,14 +82,24 @@ public class BtcBlockChain extends BtcAbstractBlockChain {
         return false;
     }
 
+    @Override
+    protected void beginSettingChainHead() throws BlockStoreException {
+        if (blockStore instanceof BatchedBtcBlockStore)
+            ((BatchedBtcBlockStore) blockStore).beginDatabaseBatchWrite();
+    }
+
     @Override
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         blockStore.setChainHead(chainHead);
+        if (blockStore instanceof BatchedBtcBlockStore)
+            ((BatchedBtcBlockStore) blockStore).commitDatabaseBatchWrite();
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
-        // We don't use DB transactions here, so we don't need to do anything
+        // Only stores that batch writes have anything to undo.
+        if (blockStore instanceof BatchedBtcBlockStore)
+            ((BatchedBtcBlockStore) blockStore).abortDatabaseBatchWrite();
     }
 
     @Override
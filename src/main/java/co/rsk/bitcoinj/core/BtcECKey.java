@@ -296,7 +296,7 @@ public class BtcECKey {
      * The compression state of pub will be preserved.
      */
     public static BtcECKey fromPublicOnly(byte[] pub) {
-        return new BtcECKey(null, CURVE.getCurve().decodePoint(pub));
+        return new BtcECKey(null, PUB_KEYS.decode(pub));
     }
 
     /**
@@ -603,6 +603,10 @@ public class BtcECKey {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    private static volatile SignatureCache signatureCache = new BoundedSignatureCache();
+
+    private static final PubKeyRegistry PUB_KEYS = new PubKeyRegistry();
+
     protected ECDSASignature doSign(Sha256Hash input, BigInteger privateKeyForSigning) {
         if (FAKE_SIGNATURES)
             return TransactionSignature.dummy();
@@ -620,6 +624,9 @@ public class BtcECKey {
      * <p>When using native ECDSA verification, data must be 32 bytes, and no element may be
      * larger than 520 bytes.</p>
      *
+     * <p>The public key is decoded through the {@link #getPubKeyRegistry() public key registry}, and signatures by
+     * registered keys are verified with their precomputed tables.</p>
+     *
      * @param data      Hash of the data to verify.
      * @param signature ASN.1 encoded signature.
      * @param pub       The public key bytes to use.
@@ -628,11 +635,8 @@ public class BtcECKey {
         if (FAKE_SIGNATURES)
             return true;
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
         try {
-            return signer.verifySignature(data, signature.r, signature.s);
+            return PUB_KEYS.verify(data, signature, pub);
         } catch (NullPointerException e) {
             // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
             // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
@@ -652,6 +656,44 @@ public class BtcECKey {
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /**
+     * Verifies the given ECDSA signature against the hash using the public key bytes, through the signature cache.
+     * Verifying the same signature again, e.g. when checking which key of a multisig redeem script made it, then
+     * doesn't redo the elliptic curve maths.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature The signature to verify.
+     * @param pub       The public key bytes to use.
+     * @see #setSignatureCache(SignatureCache)
+     */
+    public static boolean verifyCached(byte[] data, ECDSASignature signature, byte[] pub) {
+        if (FAKE_SIGNATURES)
+            return true;
+        return signatureCache.verify(data, signature, pub);
+    }
+
+    /**
+     * Returns the registry through which public keys are decoded to verify signatures and in
+     * {@link #fromPublicOnly(byte[])}. Register the keys that verify most signatures, like federation keys, there.
+     */
+    public static PubKeyRegistry getPubKeyRegistry() {
+        return PUB_KEYS;
+    }
+
+    /** Returns the cache used by {@link #verifyCached(byte[], ECDSASignature, byte[])}. */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Sets the cache used by {@link #verifyCached(byte[], ECDSASignature, byte[])}, by default a
+     * {@link BoundedSignatureCache} of {@link BoundedSignatureCache#DEFAULT_MAX_ENTRIES} entries. Use
+     * {@link SignatureCache#NONE} to verify every signature.
+     */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = checkNotNull(cache);
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
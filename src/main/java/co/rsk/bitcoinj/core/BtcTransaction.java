@@ -1502,6 +1502,9 @@ public class BtcTransaction extends ChildMessage {
      *
      * <p>Note that currently the replacement feature is disabled in Bitcoin Core and will need to be
      * re-activated before this functionality is useful.</p>
+     *
+     * <p>Under BIP 113 the time to check against is the median time past of the previous block, which for the best
+     * chain is available from {@link BtcAbstractBlockChain#getMedianTimePast()}.</p>
      */
     public boolean isFinal(int height, long blockTimeSeconds) {
         long time = getLockTime();
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import java.util.List;
+
+/**
+ * Receives the changes of the best chain of a {@link BtcAbstractBlockChain}, once they are written to the block store.
+ * Events are queued and delivered in order on the executor the listener was registered with, never on the thread
+ * adding blocks, see {@link BtcAbstractBlockChain#addEventListener(ChainEventListener, java.util.concurrent.Executor)}.
+ * <p>
+ *
+ * A re-organize is reported with {@link #onReorganize} first, followed by the disconnection of the blocks of the old
+ * best chain from the highest down, then the connection of the blocks of the new one from the lowest up.
+ */
+public interface ChainEventListener {
+    /** Called when a block becomes the head of the best chain, extending it. */
+    void onBlockConnected(StoredBlock block);
+
+    /** Called when a block is no longer part of the best chain, because of a re-organize or a rollback. */
+    void onBlockDisconnected(StoredBlock block);
+
+    /**
+     * Called when a chain with more work than the best chain replaces it.
+     *
+     * @param splitPoint the last block both chains have in common.
+     * @param oldBlocks the blocks of the old best chain above the split point, highest first.
+     * @param newBlocks the blocks of the new best chain above the split point, highest first.
+     */
+    void onReorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks);
+
+    /**
+     * Called when events were dropped because the listener fell too far behind, as soon as it picks up again. The
+     * listener should then catch up by looking at the chain itself, from {@link BtcAbstractBlockChain#getChainHead()}.
+     * Every event it gets afterwards happened after the dropped ones.
+     */
+    void onEventsDropped(int count);
+}
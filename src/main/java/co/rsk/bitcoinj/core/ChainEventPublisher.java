@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hands chain events to {@link ChainEventListener}s without ever blocking the thread publishing them. Each listener
+ * has a bounded queue drained by a task on its executor, one event at a time and in order. When a listener falls so
+ * far behind that its queue is full, the events queued for it are discarded along with the new one and replaced by a
+ * notice of how many it missed. The notice is then the last thing it gets before any later event, so a listener
+ * resyncing from the chain head on it never sees older events afterwards.
+ */
+final class ChainEventPublisher {
+    private static final Logger log = LoggerFactory.getLogger(ChainEventPublisher.class);
+
+    /** Number of events queued for a listener before new ones are dropped. */
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Executor of the listeners registered without one: a single daemon thread shared by all chains. */
+    static final class DefaultExecutorHolder {
+        static final Executor EXECUTOR = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("chain-events-%d").build());
+    }
+
+    /** An event, delivered to every listener. */
+    private interface Event {
+        void deliver(ChainEventListener listener);
+    }
+
+    /** Stands in the queue for the events discarded when it overflowed. */
+    private static final class EventsDropped implements Event {
+        final int count;
+
+        EventsDropped(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void deliver(ChainEventListener listener) {
+            listener.onEventsDropped(count);
+        }
+    }
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    void addListener(ChainEventListener listener, Executor executor, int queueCapacity) {
+        checkArgument(queueCapacity > 0, "Queue capacity must be positive: %s", queueCapacity);
+        registrations.add(new Registration(checkNotNull(listener), checkNotNull(executor), queueCapacity));
+    }
+
+    /** Removes the listener. Events already queued for it may still be delivered. */
+    boolean removeListener(ChainEventListener listener) {
+        for (Registration registration : registrations) {
+            if (registration.listener == listener)
+                return registrations.remove(registration);
+        }
+        return false;
+    }
+
+    /** Returns true if there's anyone to publish to, so that events aren't built for nothing. */
+    boolean hasListeners() {
+        return !registrations.isEmpty();
+    }
+
+    void blockConnected(final StoredBlock block) {
+        publish(new Event() {
+            @Override
+            public void deliver(ChainEventListener listener) {
+                listener.onBlockConnected(block);
+            }
+        });
+    }
+
+    void blockDisconnected(final StoredBlock block) {
+        publish(new Event() {
+            @Override
+            public void deliver(ChainEventListener listener) {
+                listener.onBlockDisconnected(block);
+            }
+        });
+    }
+
+    /** Publishes a re-organize, followed by the disconnected and connected blocks. Both lists are highest first. */
+    void reorganized(final StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+        final List<StoredBlock> oldBranch = Collections.unmodifiableList(oldBlocks);
+        final List<StoredBlock> newBranch = Collections.unmodifiableList(newBlocks);
+        publish(new Event() {
+            @Override
+            public void deliver(ChainEventListener listener) {
+                listener.onReorganize(splitPoint, oldBranch, newBranch);
+            }
+        });
+        for (StoredBlock block : oldBranch)
+            blockDisconnected(block);
+        for (int i = newBranch.size() - 1; i >= 0; i--)
+            blockConnected(newBranch.get(i));
+    }
+
+    private void publish(Event event) {
+        for (Registration registration : registrations)
+            registration.offer(event);
+    }
+
+    private static final class Registration implements Runnable {
+        final ChainEventListener listener;
+        private final Executor executor;
+        private final BlockingQueue<Event> queue;
+        // Set while a drain task is submitted or running, so there's only one at a time.
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Registration(ChainEventListener listener, Executor executor, int queueCapacity) {
+            this.listener = listener;
+            this.executor = executor;
+            this.queue = new ArrayBlockingQueue<Event>(queueCapacity);
+        }
+
+        // Synchronized so that no other event can slip in between clearing a full queue and queueing the notice.
+        synchronized void offer(Event event) {
+            if (!queue.offer(event)) {
+                List<Event> discarded = new ArrayList<Event>(queue.size());
+                queue.drainTo(discarded);
+                int count = 1;
+                for (Event queued : discarded)
+                    count += queued instanceof EventsDropped ? ((EventsDropped) queued).count : 1;
+                // The queue is empty now and only this method adds to it, so there's room for the notice.
+                queue.add(new EventsDropped(count));
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (!draining.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                log.warn("Executor rejected the delivery of chain events to {}", listener, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event = queue.poll();
+                if (event != null) {
+                    deliver(event);
+                    continue;
+                }
+                draining.set(false);
+                // Events published after the last poll but before the flag was cleared would otherwise wait.
+                if (queue.isEmpty() || !draining.compareAndSet(false, true))
+                    return;
+            }
+        }
+
+        private void deliver(Event event) {
+            try {
+                event.deliver(listener);
+            } catch (RuntimeException e) {
+                log.error("Chain event listener {} failed", listener, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.store.BatchedBtcBlockStore;
+import co.rsk.bitcoinj.store.BlockStoreException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Copies the main chain of a {@link BtcBlockStore} to another store through a binary snapshot, so a new node can
+ * start from the chain of a node it trusts instead of syncing it from the network.<p>
+ *
+ * A snapshot starts with the magic string "HEADERS SNAPSHOT 1", the hash of the genesis block of the network and the
+ * number of blocks in it. Then come the blocks, lowest first, in the format written by
+ * {@link StoredBlock#serializeCompactV2(ByteBuffer)}, and the SHA-256 hash of all the bytes before it.<p>
+ *
+ * Loading a snapshot doesn't go through {@link BtcBlockChain}: the blocks are put straight in the store, which makes
+ * it much faster but skips the difficulty transition checks. What is checked, in parallel, is that the checksum
+ * matches, that every block has valid proof of work and that each one links to the previous one, one block higher
+ * and with the right chain work. The first block is trusted as is, like a checkpoint.
+ */
+public final class ChainSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ChainSnapshot.class);
+
+    private static final String MAGIC = "HEADERS SNAPSHOT 1";
+    private static final int RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE_V2;
+    /** Number of blocks checked by each task. */
+    private static final int CHUNK_SIZE = 1024;
+
+    private ChainSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the main chain of the store, from the given height to the chain head. The stream is flushed
+     * but not closed.
+     *
+     * @return the number of blocks written.
+     */
+    public static int write(BtcBlockStore store, int fromHeight, OutputStream outputStream)
+            throws IOException, BlockStoreException {
+        checkNotNull(outputStream);
+        StoredBlock head = store.getChainHead();
+        checkArgument(fromHeight >= 0 && fromHeight <= head.getHeight(),
+                "Height %s is not in the main chain, the chain head is at %s", fromHeight, head.getHeight());
+        int count = head.getHeight() - fromHeight + 1;
+        // The main chain is walked down from the chain head, the records are filled from the end.
+        ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+        StoredBlock block = head;
+        for (int i = count - 1; i >= 0; i--) {
+            if (block == null)
+                throw new BlockStoreException("Block at height " + (fromHeight + i) + " is not in the store");
+            records.position(i * RECORD_SIZE);
+            block.serializeCompactV2(records);
+            if (i > 0)
+                block = block.getPrev(store);
+        }
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataOutputStream dos = new DataOutputStream(new DigestOutputStream(outputStream, digest));
+        dos.write(MAGIC.getBytes("US-ASCII"));
+        dos.write(store.getParams().getGenesisBlock().getHash().getBytes());
+        dos.writeInt(count);
+        dos.write(records.array());
+        dos.flush();
+        outputStream.write(digest.digest());
+        outputStream.flush();
+        log.info("Wrote a snapshot of {} blocks from height {} to {}", count, fromHeight, head.getHeight());
+        return count;
+    }
+
+    /**
+     * Loads a snapshot into the store and makes its last block the chain head. The store is written in a single batch
+     * if it supports it. This should be done before a {@link BtcBlockChain} is created on top of the store.
+     *
+     * @return the new chain head.
+     * @throws IOException if the snapshot is malformed, for another network, or doesn't hold a valid chain.
+     * @throws BlockStoreException if the snapshot doesn't have more work than the chain head of the store, or writing to
+     * the store failed.
+     */
+    public static StoredBlock load(InputStream inputStream, BtcBlockStore store)
+            throws IOException, BlockStoreException {
+        StoredBlock[] blocks = read(store.getParams(), inputStream);
+        StoredBlock tip = blocks[blocks.length - 1];
+        StoredBlock head = store.getChainHead();
+        if (head != null && !tip.moreWorkThan(head))
+            throw new BlockStoreException("Snapshot ending at " + tip.getHeader().getHash() +
+                    " does not have more work than the chain head " + head.getHeader().getHash());
+
+        BatchedBtcBlockStore batchedStore = store instanceof BatchedBtcBlockStore ? (BatchedBtcBlockStore) store : null;
+        if (batchedStore != null)
+            batchedStore.beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock block : blocks) {
+                store.put(block);
+                store.setMainChainBlock(block.getHeight(), block.getHeader().getHash());
+            }
+            store.setChainHead(tip);
+            if (batchedStore != null)
+                batchedStore.commitDatabaseBatchWrite();
+        } catch (BlockStoreException | RuntimeException e) {
+            if (batchedStore != null)
+                batchedStore.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Loaded a snapshot of {} blocks from height {} to {}", blocks.length, blocks[0].getHeight(),
+                tip.getHeight());
+        return tip;
+    }
+
+    /** Reads and checks a snapshot, returning its blocks lowest first. The stream is read to the end and closed. */
+    static StoredBlock[] read(NetworkParameters params, InputStream inputStream) throws IOException {
+        byte[] records;
+        try {
+            MessageDigest digest = Sha256Hash.newDigest();
+            DataInputStream dis = new DataInputStream(new DigestInputStream(inputStream, digest));
+            byte[] magic = new byte[MAGIC.length()];
+            dis.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+                throw new IOException("Header bytes did not match expected version");
+            byte[] genesisHash = new byte[Sha256Hash.LENGTH];
+            dis.readFully(genesisHash);
+            if (!params.getGenesisBlock().getHash().equals(Sha256Hash.wrap(genesisHash)))
+                throw new IOException("Snapshot is for another network, genesis block " + Sha256Hash.wrap(genesisHash));
+            int count = dis.readInt();
+            if (count <= 0 || count > Integer.MAX_VALUE / RECORD_SIZE)
+                throw new IOException("Number of blocks out of range: " + count);
+            records = new byte[count * RECORD_SIZE];
+            dis.readFully(records);
+            byte[] expectedChecksum = digest.digest();
+            byte[] checksum = new byte[Sha256Hash.LENGTH];
+            new DataInputStream(inputStream).readFully(checksum);
+            if (!Arrays.equals(checksum, expectedChecksum))
+                throw new IOException("Snapshot checksum does not match");
+            if (inputStream.read() != -1)
+                throw new IOException("Unexpected data after the snapshot checksum");
+        } finally {
+            inputStream.close();
+        }
+
+        int count = records.length / RECORD_SIZE;
+        StoredBlock[] blocks = new StoredBlock[count];
+        List<BtcBlock> headers = new ArrayList<BtcBlock>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = StoredBlock.deserializeCompactV2(params, ByteBuffer.wrap(records, i * RECORD_SIZE, RECORD_SIZE));
+                headers.add(blocks[i].getHeader());
+            }
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        // Hashes the headers and checks their proof of work, the hashes are cached for the linkage checks.
+        HeaderBatchVerifier.Failure failure = new HeaderBatchVerifier(pool, CHUNK_SIZE).verify(headers, 0);
+        if (failure != null)
+            throw new IOException("Block at height " + blocks[failure.index].getHeight() + " is invalid", failure.cause);
+        checkLinkage(params, blocks, pool);
+        return blocks;
+    }
+
+    private static void checkLinkage(NetworkParameters params, StoredBlock[] blocks, ForkJoinPool pool)
+            throws IOException {
+        AtomicInteger firstBroken = new AtomicInteger(Integer.MAX_VALUE);
+        pool.invoke(new LinkTask(params, blocks, 0, blocks.length, firstBroken));
+        int index = firstBroken.get();
+        if (index == Integer.MAX_VALUE)
+            return;
+        StoredBlock block = blocks[index];
+        if (index == 0)
+            throw new IOException("Snapshot starts at height 0 with a block other than the genesis block: " +
+                    block.getHeader().getHash());
+        throw new IOException("Block " + block.getHeader().getHash() + " at height " + block.getHeight() +
+                " does not extend the previous block of the snapshot");
+    }
+
+    /** Returns true if the block at the given index of the snapshot follows the one before it. */
+    private static boolean isLinked(NetworkParameters params, StoredBlock[] blocks, int index) {
+        StoredBlock block = blocks[index];
+        if (index == 0)
+            return block.getHeight() != 0 || block.getHeader().getHash().equals(params.getGenesisBlock().getHash());
+        StoredBlock prev = blocks[index - 1];
+        if (!block.getHeader().getPrevBlockHash().equals(prev.getHeader().getHash()) ||
+                block.getHeight() != prev.getHeight() + 1)
+            return false;
+        try {
+            return block.getChainWorkValue().equals(prev.getChainWorkValue().add(block.getHeader().getWorkValue()));
+        } catch (VerificationException e) {
+            return false;
+        }
+    }
+
+    private static final class LinkTask extends RecursiveAction {
+        private final NetworkParameters params;
+        private final StoredBlock[] blocks;
+        private final int from;
+        private final int to;
+        private final AtomicInteger firstBroken;
+
+        LinkTask(NetworkParameters params, StoredBlock[] blocks, int from, int to, AtomicInteger firstBroken) {
+            this.params = params;
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+            this.firstBroken = firstBroken;
+        }
+
+        @Override
+        protected void compute() {
+            if (firstBroken.get() < from)
+                return;
+            if (to - from > CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LinkTask(params, blocks, from, middle, firstBroken),
+                        new LinkTask(params, blocks, middle, to, firstBroken));
+                return;
+            }
+            for (int i = from; i < to && firstBroken.get() > i; i++) {
+                if (!isLinked(params, blocks, i)) {
+                    int broken = firstBroken.get();
+                    while (i < broken && !firstBroken.compareAndSet(broken, i))
+                        broken = firstBroken.get();
+                    return;
+                }
+            }
+        }
+    }
+}
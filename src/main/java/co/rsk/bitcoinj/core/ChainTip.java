@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import com.google.common.base.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The last block of a known chain, along with the block at which it forks from the best chain. For the best chain
+ * itself the tip is the chain head and the fork point is the tip.
+ *
+ * @see BtcAbstractBlockChain#getChainTips()
+ */
+public final class ChainTip {
+    private final StoredBlock tip;
+    private final StoredBlock forkPoint;
+    private final boolean active;
+
+    ChainTip(StoredBlock tip, StoredBlock forkPoint, boolean active) {
+        checkArgument(forkPoint.getHeight() <= tip.getHeight(), "Fork point above the tip");
+        this.tip = checkNotNull(tip);
+        this.forkPoint = checkNotNull(forkPoint);
+        this.active = active;
+    }
+
+    /** Returns the last block of the chain. */
+    public StoredBlock getTip() {
+        return tip;
+    }
+
+    /** Returns the last block this chain has in common with the best chain. */
+    public StoredBlock getForkPoint() {
+        return forkPoint;
+    }
+
+    /** Returns the number of blocks of this chain that aren't in the best chain, zero for the best chain itself. */
+    public int getBranchLength() {
+        return tip.getHeight() - forkPoint.getHeight();
+    }
+
+    /** Returns true if this is the best chain, the one ending at the chain head. */
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ChainTip other = (ChainTip) o;
+        return active == other.active && tip.equals(other.tip) && forkPoint.equals(other.forkPoint);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(tip, forkPoint, active);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Chain tip at height %d, %s, fork point at height %d: %s", tip.getHeight(),
+                active ? "active" : "branch length " + getBranchLength(), forkPoint.getHeight(),
+                tip.getHeader().getHashAsString());
+    }
+}
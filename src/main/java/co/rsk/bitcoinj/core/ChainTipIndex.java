@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.store.BlockStoreException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the tips of the side chains seen so far, each with the block where it forks from the best chain, ordered by
+ * chain work. It's updated as blocks arrive: a block extending a side chain replaces its tip, and a re-organize turns
+ * the old best chain into a side chain and moves the fork points of the others as needed. Thanks to it, a block
+ * extending a known side chain doesn't need a walk back to find where it forks.<p>
+ *
+ * The index is bounded: once it holds {@code maxTips} tips the one with the least work is dropped. It is not
+ * persisted, only side chains seen since the index was created are known. This class is not thread safe,
+ * {@link BtcAbstractBlockChain} only uses it while holding its lock, except for {@link #getTips()}, which returns an
+ * immutable copy published after each change.
+ */
+final class ChainTipIndex {
+    /** Far more than the side chains the network ever has at the same time. */
+    static final int DEFAULT_MAX_TIPS = 1000;
+
+    private static final Comparator<ChainTip> BY_WORK = new Comparator<ChainTip>() {
+        @Override
+        public int compare(ChainTip a, ChainTip b) {
+            int byWork = a.getTip().getChainWorkValue().compareTo(b.getTip().getChainWorkValue());
+            if (byWork != 0)
+                return byWork;
+            return a.getTip().getHeader().getHash().compareTo(b.getTip().getHeader().getHash());
+        }
+    };
+
+    private final int maxTips;
+    private final Map<Sha256Hash, ChainTip> byHash = new HashMap<Sha256Hash, ChainTip>();
+    private final TreeSet<ChainTip> byWork = new TreeSet<ChainTip>(BY_WORK);
+    // byWork, most work first, as of the last change.
+    private volatile List<ChainTip> tips = Collections.emptyList();
+
+    ChainTipIndex() {
+        this(DEFAULT_MAX_TIPS);
+    }
+
+    ChainTipIndex(int maxTips) {
+        checkArgument(maxTips > 0, "maxTips must be positive: %s", maxTips);
+        this.maxTips = maxTips;
+    }
+
+    /** Returns the side chain ending at the given block, or null if it's not the tip of a known side chain. */
+    @Nullable
+    ChainTip get(Sha256Hash tipHash) {
+        return byHash.get(tipHash);
+    }
+
+    /**
+     * Records a side chain block that forks from the best chain at the given block. If its parent was the tip of a
+     * side chain, this block replaces it.
+     */
+    void add(StoredBlock tip, StoredBlock forkPoint) {
+        addTip(tip, forkPoint);
+        publish();
+    }
+
+    private void addTip(StoredBlock tip, StoredBlock forkPoint) {
+        remove(tip.getHeader().getPrevBlockHash());
+        remove(tip.getHeader().getHash());
+        ChainTip chainTip = new ChainTip(tip, forkPoint, false);
+        byHash.put(tip.getHeader().getHash(), chainTip);
+        byWork.add(chainTip);
+        while (byWork.size() > maxTips)
+            remove(byWork.first().getTip().getHeader().getHash());
+    }
+
+    /**
+     * Updates the side chains after the best chain moved from {@code oldHead} to {@code newHead}, which have
+     * {@code forkPoint} in common, because of a re-organize or a rollback.<p>
+     *
+     * The old best chain becomes a side chain. Side chains that forked from it above the fork point now fork at the
+     * fork point. Side chains that forked at the fork point may now fork higher, from the new best chain, or even be
+     * part of it: only those are walked back.
+     */
+    void reorganized(StoredBlock oldHead, StoredBlock newHead, StoredBlock forkPoint, BtcBlockStore store)
+            throws BlockStoreException {
+        try {
+            updateForkPoints(oldHead, newHead, forkPoint, store);
+        } finally {
+            publish();
+        }
+    }
+
+    private void updateForkPoints(StoredBlock oldHead, StoredBlock newHead, StoredBlock forkPoint, BtcBlockStore store)
+            throws BlockStoreException {
+        for (ChainTip chainTip : new ArrayList<ChainTip>(byWork)) {
+            StoredBlock tipForkPoint = chainTip.getForkPoint();
+            StoredBlock newForkPoint;
+            if (tipForkPoint.getHeight() > forkPoint.getHeight())
+                newForkPoint = forkPoint;
+            else if (tipForkPoint.equals(forkPoint))
+                newForkPoint = BtcAbstractBlockChain.findSplit(chainTip.getTip(), newHead, store);
+            else
+                continue;
+            Sha256Hash hash = chainTip.getTip().getHeader().getHash();
+            remove(hash);
+            // A tip the new best chain goes through isn't a side chain any more.
+            if (!newForkPoint.equals(chainTip.getTip()))
+                addTip(chainTip.getTip(), newForkPoint);
+        }
+        if (!oldHead.equals(forkPoint))
+            addTip(oldHead, forkPoint);
+    }
+
+    /** Returns the side chains, most work first. Can be called from any thread. */
+    List<ChainTip> getTips() {
+        return tips;
+    }
+
+    int size() {
+        return byHash.size();
+    }
+
+    private void publish() {
+        tips = Collections.unmodifiableList(new ArrayList<ChainTip>(byWork.descendingSet()));
+    }
+
+    private void remove(Sha256Hash tipHash) {
+        ChainTip chainTip = byHash.remove(tipHash);
+        if (chainTip != null)
+            byWork.remove(chainTip);
+    }
+}
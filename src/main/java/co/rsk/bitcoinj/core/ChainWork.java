@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An immutable unsigned 256 bit amount of proof of work, as accumulated by {@link StoredBlock}. The value is held in
+ * four longs so that adding the work of a block and comparing two chains don't allocate, unlike {@link BigInteger}.
+ * Work can't be negative and the total work of any chain fits comfortably in 256 bits, so both are rejected.<p>
+ *
+ * The work of a block is derived from its compact difficulty target by {@link #fromCompactBits(long, BigInteger)}.
+ * The target only changes once per retarget interval, so the results are cached by the compact bits.
+ */
+public final class ChainWork implements Comparable<ChainWork> {
+    public static final ChainWork ZERO = new ChainWork(0, 0, 0, 0);
+
+    /** Size in bytes of the largest value. */
+    public static final int BYTES = 32;
+
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+    // Direct mapped, racy but safe: entries are immutable, so the worst a reader can see is a miss.
+    private static final int CACHE_SIZE = 64;
+    private static final TargetWork[] targetWorkCache = new TargetWork[CACHE_SIZE];
+
+    // Most significant first.
+    private final long w3, w2, w1, w0;
+
+    private ChainWork(long w3, long w2, long w1, long w0) {
+        this.w3 = w3;
+        this.w2 = w2;
+        this.w1 = w1;
+        this.w0 = w0;
+    }
+
+    /** Returns the given amount of work, which must be non-negative. */
+    public static ChainWork valueOf(long work) {
+        checkArgument(work >= 0, "Work must be positive or zero: %s", work);
+        return work == 0 ? ZERO : new ChainWork(0, 0, 0, work);
+    }
+
+    /**
+     * Returns the given amount of work.
+     *
+     * @throws IllegalArgumentException if it is negative or doesn't fit in 256 bits.
+     */
+    public static ChainWork valueOf(BigInteger work) {
+        checkArgument(work.signum() >= 0, "Work must be positive or zero: %s", work);
+        checkArgument(work.bitLength() <= 256, "Work does not fit in 256 bits: %s", work);
+        if (work.signum() == 0)
+            return ZERO;
+        return new ChainWork(work.shiftRight(192).longValue(), work.shiftRight(128).longValue(),
+                work.shiftRight(64).longValue(), work.longValue());
+    }
+
+    /**
+     * Returns the work of a block with the given compact difficulty target, i.e. {@code 2^256 / (target + 1)}.
+     *
+     * @param maxTarget the easiest target allowed by the network.
+     * @throws VerificationException if the target isn't positive or is easier than {@code maxTarget}.
+     */
+    public static ChainWork fromCompactBits(long compactBits, BigInteger maxTarget) throws VerificationException {
+        int slot = (int) (compactBits ^ (compactBits >>> 24)) & (CACHE_SIZE - 1);
+        TargetWork cached = targetWorkCache[slot];
+        if (cached == null || cached.compactBits != compactBits) {
+            cached = new TargetWork(compactBits);
+            targetWorkCache[slot] = cached;
+        }
+        if (cached.target.signum() <= 0 || cached.target.compareTo(maxTarget) > 0)
+            throw new VerificationException("Difficulty target is bad: " + cached.target.toString());
+        return cached.work;
+    }
+
+    /**
+     * Returns the sum of this work and the given one.
+     *
+     * @throws ArithmeticException if the sum doesn't fit in 256 bits.
+     */
+    public ChainWork add(ChainWork other) {
+        long r0 = w0 + other.w0;
+        long carry = carryOut(w0, r0, 0);
+        long r1 = w1 + other.w1 + carry;
+        carry = carryOut(w1, r1, carry);
+        long r2 = w2 + other.w2 + carry;
+        carry = carryOut(w2, r2, carry);
+        long r3 = w3 + other.w3 + carry;
+        if (carryOut(w3, r3, carry) != 0)
+            throw new ArithmeticException("Chain work overflow");
+        return new ChainWork(r3, r2, r1, r0);
+    }
+
+    // Carry out of the unsigned addition a + b + carryIn that wrapped around to sum.
+    private static long carryOut(long a, long sum, long carryIn) {
+        int cmp = Long.compareUnsigned(sum, a);
+        return cmp < 0 || (cmp == 0 && carryIn != 0) ? 1 : 0;
+    }
+
+    @Override
+    public int compareTo(ChainWork other) {
+        int cmp = Long.compareUnsigned(w3, other.w3);
+        if (cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(w2, other.w2);
+        if (cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(w1, other.w1);
+        if (cmp != 0) return cmp;
+        return Long.compareUnsigned(w0, other.w0);
+    }
+
+    /** Returns the work as a non-negative {@link BigInteger}. */
+    public BigInteger toBigInteger() {
+        byte[] bytes = new byte[BYTES];
+        for (int i = 0; i < BYTES; i++)
+            bytes[i] = byteAt(BYTES - 1 - i);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Writes the work as a big endian unsigned number of the given size, regardless of the order of the buffer.
+     *
+     * @throws IllegalArgumentException if the work doesn't fit in {@code numBytes}.
+     */
+    public void write(ByteBuffer buffer, int numBytes) {
+        checkArgument(numBytes > 0 && numBytes <= BYTES, "numBytes must be between 1 and %s", BYTES);
+        for (int i = numBytes; i < BYTES; i++)
+            checkArgument(byteAt(i) == 0, "The given number does not fit in " + numBytes);
+        for (int i = numBytes - 1; i >= 0; i--)
+            buffer.put(byteAt(i));
+    }
+
+    /** Reads work written by {@link #write(ByteBuffer, int)} with the same size. */
+    public static ChainWork read(ByteBuffer buffer, int numBytes) {
+        checkArgument(numBytes > 0 && numBytes <= BYTES, "numBytes must be between 1 and %s", BYTES);
+        long[] words = new long[4];
+        for (int i = numBytes - 1; i >= 0; i--)
+            words[i >>> 3] |= (buffer.get() & 0xFFL) << ((i & 7) << 3);
+        return new ChainWork(words[3], words[2], words[1], words[0]);
+    }
+
+    // Byte i of the number, counting from the least significant one.
+    private byte byteAt(int i) {
+        long word;
+        switch (i >>> 3) {
+            case 0: word = w0; break;
+            case 1: word = w1; break;
+            case 2: word = w2; break;
+            default: word = w3; break;
+        }
+        return (byte) (word >>> ((i & 7) << 3));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ChainWork other = (ChainWork) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = w3;
+        h = 31 * h + w2;
+        h = 31 * h + w1;
+        h = 31 * h + w0;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+
+    private static final class TargetWork {
+        final long compactBits;
+        final BigInteger target;
+        final ChainWork work;
+
+        TargetWork(long compactBits) {
+            this.compactBits = compactBits;
+            this.target = Utils.decodeCompactBits(compactBits);
+            this.work = target.signum() > 0 ? valueOf(LARGEST_HASH.divide(target.add(BigInteger.ONE))) : ZERO;
+        }
+    }
+}
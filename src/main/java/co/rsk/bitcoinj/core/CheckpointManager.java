@@ -38,9 +38,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -54,7 +56,7 @@ import static com.google.common.base.Preconditions.*;
  * </ol>
  *
  * <p>Checkpoints are used by the SPV {@link BtcBlockChain} to initialize fresh
- * {@link SPVBlockStore}s. They are not used by fully validating mode, which instead has a
+ * {@link co.rsk.bitcoinj.store.BtcSPVBlockStore}s. They are not used by fully validating mode, which instead has a
  * different concept of checkpoints that are used to hard-code the validity of blocks that violate BIP30 (duplicate
  * coinbase transactions). Those "checkpoints" can be found in NetworkParameters.</p>
  *
@@ -66,6 +68,13 @@ import static com.google.common.base.Preconditions.*;
  *
  * <p>After the signatures come the number of checkpoints in the file. Then each checkpoint follows one per line in
  * compact format (as written by {@link StoredBlock#serializeCompactV2(ByteBuffer)}) as a base64-encoded blob.</p>
+ *
+ * <p>Checkpoints are kept in their compact format, indexed by the time of their header, which is read straight from
+ * the serialized header. A {@link StoredBlock} is only deserialized the first time it's looked up, so loading the
+ * checkpoints costs little more than decoding and hashing the file. This replaces the former protected
+ * {@code checkpoints} map of deserialized blocks, which subclasses should no longer expect. It also means that a record
+ * with a well formed length but a corrupt header, one that doesn't meet its own difficulty target, doesn't fail the
+ * constructor with an {@link IOException}: it fails with a {@link ProtocolException} when it's first looked up.</p>
  */
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
@@ -74,8 +83,15 @@ public class CheckpointManager {
     private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
     private static final int MAX_SIGNATURES = 256;
 
-    // Map of block header time to data.
-    protected final TreeMap<Long, StoredBlock> checkpoints = new TreeMap<Long, StoredBlock>();
+    // Offset of the header time in a compact stored block, after the chain work, the height, the version, the previous
+    // block hash and the merkle root.
+    private static final int TIME_OFFSET = 4 + 4 + 32 + 32;
+
+    // Header times of the checkpoints, ascending, without duplicates.
+    private final long[] times;
+    // The checkpoints in compact format, in the same order, and those deserialized so far.
+    private final byte[][] records;
+    private final AtomicReferenceArray<StoredBlock> decoded;
 
     protected final NetworkParameters params;
     protected final Sha256Hash dataHash;
@@ -97,12 +113,41 @@ public class CheckpointManager {
         inputStream.mark(1);
         int first = inputStream.read();
         inputStream.reset();
+        List<byte[]> records = new ArrayList<byte[]>();
         if (first == BINARY_MAGIC.charAt(0))
-            dataHash = readBinary(inputStream);
+            dataHash = readBinary(inputStream, records);
         else if (first == TEXTUAL_MAGIC.charAt(0))
-            dataHash = readTextual(inputStream);
+            dataHash = readTextual(inputStream, records);
         else
             throw new IOException("Unsupported format.");
+
+        // Checkpoints are in chain order, so normally their times are ascending already.
+        Integer[] order = new Integer[records.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final long[] recordTimes = new long[order.length];
+        for (int i = 0; i < order.length; i++)
+            recordTimes[i] = timeOf(records.get(i));
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(recordTimes[a], recordTimes[b]);
+            }
+        });
+        // Of the checkpoints with the same time, the last one in the file wins.
+        int count = 0;
+        long[] times = new long[order.length];
+        byte[][] sorted = new byte[order.length][];
+        for (int index : order) {
+            if (count > 0 && times[count - 1] == recordTimes[index])
+                count--;
+            times[count] = recordTimes[index];
+            sorted[count] = records.get(index);
+            count++;
+        }
+        this.times = Arrays.copyOf(times, count);
+        this.records = Arrays.copyOf(sorted, count);
+        this.decoded = new AtomicReferenceArray<StoredBlock>(count);
     }
 
     /** Returns a checkpoints stream pointing to inside the bitcoinj JAR */
@@ -115,7 +160,7 @@ public class CheckpointManager {
      * After implementing support to 32-byte chain work to StoredBlock class,
       this method cannot read blocks which chain work surpassed 12 byte. */
     @Deprecated
-    private Sha256Hash readBinary(InputStream inputStream) throws IOException {
+    private Sha256Hash readBinary(InputStream inputStream, List<byte[]> records) throws IOException {
         DataInputStream dis = null;
         try {
             MessageDigest digest = Sha256Hash.newDigest();
@@ -136,13 +181,11 @@ public class CheckpointManager {
             int numCheckpoints = dis.readInt();
             checkState(numCheckpoints > 0);
             final int size = StoredBlock.COMPACT_SERIALIZED_SIZE_LEGACY;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
             for (int i = 0; i < numCheckpoints; i++) {
-                if (dis.read(buffer.array(), 0, size) < size)
+                byte[] record = new byte[size];
+                if (dis.read(record, 0, size) < size)
                     throw new IOException("Incomplete read whilst loading checkpoints.");
-                StoredBlock block = StoredBlock.deserializeCompactLegacy(params, buffer);
-                buffer.position(0);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
+                records.add(record);
             }
 
             int actualCheckpointsSize = dis.available();
@@ -156,17 +199,15 @@ public class CheckpointManager {
             }
 
             Sha256Hash dataHash = Sha256Hash.wrap(digest.digest());
-            log.debug("Read {} checkpoints, hash is {}", checkpoints.size(), dataHash);
+            log.debug("Read {} checkpoints, hash is {}", records.size(), dataHash);
             return dataHash;
-        } catch (ProtocolException e) {
-            throw new IOException(e);
         } finally {
             if (dis != null) dis.close();
             inputStream.close();
         }
     }
 
-    private Sha256Hash readTextual(InputStream inputStream) throws IOException {
+    private Sha256Hash readTextual(InputStream inputStream, List<byte[]> records) throws IOException {
         Hasher hasher = Hashing.sha256().newHasher();
         BufferedReader reader = null;
         try {
@@ -184,20 +225,13 @@ public class CheckpointManager {
             for (int i = 0; i < numCheckpoints; i++) {
                 byte[] bytes = BASE64.decode(reader.readLine());
                 hasher.putBytes(bytes);
-                ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                StoredBlock block;
-                if (bytes.length == StoredBlock.COMPACT_SERIALIZED_SIZE_LEGACY){
-                    block = StoredBlock.deserializeCompactLegacy(params, buffer);
-                } else if (bytes.length == StoredBlock.COMPACT_SERIALIZED_SIZE_V2) {
-                    block = StoredBlock.deserializeCompactV2(params, buffer);
-                } else {
+                if (bytes.length != StoredBlock.COMPACT_SERIALIZED_SIZE_LEGACY &&
+                        bytes.length != StoredBlock.COMPACT_SERIALIZED_SIZE_V2)
                     throw new IllegalStateException("unexpected length of checkpoint: " + bytes.length);
-                }
-
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
+                records.add(bytes);
             }
             HashCode hash = hasher.hash();
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), hash);
+            log.info("Read {} checkpoints, hash is {}", records.size(), hash);
             return Sha256Hash.wrap(hash.asBytes());
         } finally {
             if (reader != null) reader.close();
@@ -207,23 +241,82 @@ public class CheckpointManager {
     /**
      * Returns a {@link StoredBlock} representing the last checkpoint before the given time, for example, normally
      * you would want to know the checkpoint before the earliest wallet birthday.
+     *
+     * @throws ProtocolException if the checkpoint's record is corrupt.
      */
     public StoredBlock getCheckpointBefore(long time) {
+        checkArgument(time > params.getGenesisBlock().getTimeSeconds());
+        int index = Arrays.binarySearch(times, time);
+        if (index < 0)
+            index = -index - 2;  // The one before the insertion point.
+        if (index >= 0) return getCheckpoint(index);
         try {
-            checkArgument(time > params.getGenesisBlock().getTimeSeconds());
-            // This is thread safe because the map never changes after creation.
-            Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
-            if (entry != null) return entry.getValue();
             BtcBlock genesis = params.getGenesisBlock().cloneAsHeader();
-            return new StoredBlock(genesis, genesis.getWork(), 0);
+            return new StoredBlock(genesis, genesis.getWorkValue(), 0);
         } catch (VerificationException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
     }
 
+    /**
+     * Returns the checkpoints that were loaded, oldest first. This deserializes every checkpoint, see
+     * {@link #getCheckpointHashes()} when only their identity is needed.
+     *
+     * @throws ProtocolException if a checkpoint's record is corrupt.
+     */
+    public List<StoredBlock> getCheckpoints() {
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>(records.length);
+        for (int i = 0; i < records.length; i++)
+            checkpoints.add(getCheckpoint(i));
+        return checkpoints;
+    }
+
+    /**
+     * Returns the block hashes of the checkpoints that were loaded, oldest first, hashed straight from their serialized
+     * headers without deserializing them.
+     */
+    public List<Sha256Hash> getCheckpointHashes() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(records.length);
+        for (byte[] record : records) {
+            int headerOffset = record.length - BtcBlock.HEADER_SIZE;
+            hashes.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(record, headerOffset, BtcBlock.HEADER_SIZE)));
+        }
+        return hashes;
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
-        return checkpoints.size();
+        return records.length;
+    }
+
+    private StoredBlock getCheckpoint(int index) {
+        // Deserializing twice on a race is harmless, both threads get an equal block.
+        StoredBlock checkpoint = decoded.get(index);
+        if (checkpoint == null) {
+            byte[] record = records[index];
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            if (record.length == StoredBlock.COMPACT_SERIALIZED_SIZE_LEGACY)
+                checkpoint = StoredBlock.deserializeCompactLegacy(params, buffer);
+            else
+                checkpoint = StoredBlock.deserializeCompactV2(params, buffer);
+            // Any header parses, so a corrupt record shows in its proof of work.
+            boolean valid;
+            try {
+                valid = checkpoint.getHeader().checkProofOfWork(false);
+            } catch (VerificationException e) {
+                valid = false;
+            }
+            if (!valid)
+                throw new ProtocolException("Corrupt checkpoint, block " + checkpoint.getHeader().getHashAsString() +
+                        " doesn't meet its difficulty target");
+            decoded.set(index, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    private static long timeOf(byte[] record) {
+        int chainWorkSize = record.length - StoredBlock.COMPACT_SERIALIZED_SIZE_V2 + ChainWork.BYTES;
+        return Utils.readUint32(record, chainWorkSize + TIME_OFFSET);
     }
 
     /** Returns a hash of the concatenated checkpoint data. */
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs {@link BtcBlock#verifyHeader()} over a batch of headers on a fork-join pool. The checks done there (hashing the
+ * header and comparing it to its target) don't depend on any other header, so the batch is split in chunks verified in
+ * parallel, leaving linking and difficulty transitions to the caller. As a side effect the hash of every header is
+ * computed and cached.<p>
+ *
+ * Verification stops early once a header is found invalid: chunks after it are skipped, and only chunks before it keep
+ * going, to make sure the failure reported is the first one in the batch.
+ */
+final class HeaderBatchVerifier {
+    /** Number of headers verified by each task. */
+    static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    HeaderBatchVerifier(ForkJoinPool pool, int chunkSize) {
+        checkArgument(chunkSize > 0, "Chunk size must be positive: %s", chunkSize);
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /** An invalid header, at the given index of the batch. */
+    static final class Failure {
+        final int index;
+        final VerificationException cause;
+
+        Failure(int index, VerificationException cause) {
+            this.index = index;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Verifies the headers from the given index to the end of the list.
+     *
+     * @return the first invalid header, or null if they are all valid.
+     */
+    @Nullable
+    Failure verify(List<BtcBlock> headers, int from) {
+        BtcBlock[] batch = headers.subList(from, headers.size()).toArray(new BtcBlock[0]);
+        AtomicReference<Failure> firstFailure = new AtomicReference<Failure>();
+        if (batch.length <= chunkSize)
+            verifyChunk(batch, 0, batch.length, firstFailure);
+        else
+            pool.invoke(new VerifyTask(batch, 0, batch.length, firstFailure));
+        Failure failure = firstFailure.get();
+        return failure == null ? null : new Failure(from + failure.index, failure.cause);
+    }
+
+    private static void verifyChunk(BtcBlock[] batch, int from, int to, AtomicReference<Failure> firstFailure) {
+        for (int i = from; i < to; i++) {
+            Failure failure = firstFailure.get();
+            if (failure != null && failure.index < i)
+                return;
+            try {
+                batch[i].verifyHeader();
+            } catch (VerificationException e) {
+                Failure found = new Failure(i, e);
+                while (!firstFailure.compareAndSet(failure, found)) {
+                    failure = firstFailure.get();
+                    if (failure.index < i)
+                        return;
+                }
+                return;
+            }
+        }
+    }
+
+    private final class VerifyTask extends RecursiveAction {
+        private final BtcBlock[] batch;
+        private final int from;
+        private final int to;
+        private final AtomicReference<Failure> firstFailure;
+
+        VerifyTask(BtcBlock[] batch, int from, int to, AtomicReference<Failure> firstFailure) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.firstFailure = firstFailure;
+        }
+
+        @Override
+        protected void compute() {
+            Failure failure = firstFailure.get();
+            if (failure != null && failure.index < from)
+                return;
+            if (to - from <= chunkSize) {
+                verifyChunk(batch, from, to, firstFailure);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyTask(batch, from, middle, firstFailure),
+                        new VerifyTask(batch, middle, to, firstFailure));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.store.BlockStoreException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Keeps the timestamps of the last {@link #WINDOW} blocks ending at a chain tip, both in chain order and sorted, so the
+ * median time past of the tip is read directly and moving the tip one block forward is a pair of binary searches
+ * rather than a walk through the block store and a sort. Any other change of tip requires a {@link #reset}.<p>
+ *
+ * This class is thread safe, and reading the median never blocks.
+ */
+final class MedianTimePastTracker {
+    /** Number of blocks the median is taken over. */
+    static final int WINDOW = 11;
+
+    // Timestamps in chain order, as a ring starting at oldest.
+    private final long[] window = new long[WINDOW];
+    private final long[] sorted = new long[WINDOW];
+    private int oldest;
+    private int count;
+    @Nullable private Sha256Hash tipHash;
+    // The median of the window, published for readers that don't take the lock.
+    private volatile long median;
+
+    /** Rebuilds the window for the given tip, reading its ancestors from the store. */
+    synchronized void reset(StoredBlock tip, BtcBlockStore store) throws BlockStoreException {
+        long[] timestamps = new long[WINDOW];
+        int found = 0;
+        StoredBlock cursor = tip;
+        while (found < WINDOW && cursor != null) {
+            timestamps[found++] = cursor.getHeader().getTimeSeconds();
+            cursor = found < WINDOW ? cursor.getPrev(store) : null;
+        }
+        oldest = 0;
+        count = 0;
+        for (int i = found - 1; i >= 0; i--)
+            push(timestamps[i]);
+        tipHash = tip.getHeader().getHash();
+        median = sorted[(count + 1) / 2 - 1];
+    }
+
+    /**
+     * Moves the tip to the given block if it's a child of the current tip.
+     *
+     * @return false if the block doesn't extend the current tip, in which case nothing changes.
+     */
+    synchronized boolean extend(StoredBlock newTip) {
+        if (tipHash == null || !tipHash.equals(newTip.getHeader().getPrevBlockHash()))
+            return false;
+        push(newTip.getHeader().getTimeSeconds());
+        tipHash = newTip.getHeader().getHash();
+        median = sorted[(count + 1) / 2 - 1];
+        return true;
+    }
+
+    /** Returns true if the window currently ends at the given block. */
+    synchronized boolean isTip(StoredBlock block) {
+        return tipHash != null && tipHash.equals(block.getHeader().getHash());
+    }
+
+    /** Median of the timestamps in the window. With fewer blocks than the window the lower middle one is used. */
+    long getMedianTimePast() {
+        return median;
+    }
+
+    private void push(long time) {
+        if (count == WINDOW) {
+            long evicted = window[oldest];
+            window[oldest] = time;
+            oldest = (oldest + 1) % WINDOW;
+            int index = Arrays.binarySearch(sorted, 0, count, evicted);
+            System.arraycopy(sorted, index + 1, sorted, index, count - index - 1);
+            count--;
+        } else {
+            window[(oldest + count) % WINDOW] = time;
+        }
+        int position = Arrays.binarySearch(sorted, 0, count, time);
+        if (position < 0)
+            position = -position - 1;
+        System.arraycopy(sorted, position, sorted, position + 1, count - position);
+        sorted[position] = time;
+        count++;
+    }
+}
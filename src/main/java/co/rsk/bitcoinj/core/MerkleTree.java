@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * A merkle tree over a list of hashes, as used for the transactions of a block:
+ *
+ * <pre>
+ *         root
+ *        /     \
+ *       1        5
+ *     /   \     / \
+ *    2     3    4  4
+ *  / \   / \   / \
+ * t1 t2 t3 t4 t5 t5
+ * </pre>
+ *
+ * Each interior node is the double SHA-256 of its two children put together, and the last node of a level is paired
+ * with itself when the level has an odd number of nodes. This structure allows the creation of proof that a
+ * transaction was included in a block from just its {@link #getBranch(int) branch}.<p>
+ *
+ * All the nodes are kept in one array, in the byte order they're hashed in, so their hashes are only reversed on the
+ * way in and out. Each level is hashed in one batch, and large trees are split into subtrees hashed in parallel on the
+ * common fork-join pool. Use {@link #calculateRoot(List)} when only the root is needed: the levels are then hashed
+ * over each other in place.
+ */
+public final class MerkleTree {
+    /** Height of the subtrees hashed in parallel, so each covers 1024 leaves. */
+    static final int SUBTREE_HEIGHT = 10;
+    /** Number of leaves from which subtrees are hashed in parallel. */
+    static final int PARALLEL_THRESHOLD = 4 << SUBTREE_HEIGHT;
+
+    private static final int LENGTH = Sha256Hash.LENGTH;
+
+    private final int leafCount;
+    private final int height;
+    private final byte[] nodes;
+    // Offset of each level within nodes, or null when the levels were hashed over each other.
+    private final int[] levelOffsets;
+
+    private MerkleTree(List<Sha256Hash> leaves, boolean keepLevels) {
+        checkArgument(!leaves.isEmpty(), "A merkle tree needs at least one leaf");
+        leafCount = leaves.size();
+        int h = 0;
+        while (getWidth(h) > 1)
+            h++;
+        height = h;
+        if (keepLevels) {
+            levelOffsets = new int[height + 1];
+            int length = 0;
+            for (int level = 0; level <= height; level++) {
+                levelOffsets[level] = length;
+                length += paddedLength(getWidth(level));
+            }
+            nodes = new byte[length];
+        } else {
+            levelOffsets = null;
+            nodes = new byte[paddedLength(leafCount)];
+        }
+        for (int i = 0; i < leafCount; i++)
+            Utils.reverseBytes(leaves.get(i).getBytes(), 0, nodes, i * LENGTH, LENGTH);
+        hashLevels();
+    }
+
+    /**
+     * Builds the full tree over the given hashes.
+     *
+     * @param leaves the leaf hashes, such as transaction hashes, as returned by {@link BtcTransaction#getHash()}.
+     * @throws IllegalArgumentException if there are no leaves.
+     */
+    public static MerkleTree build(List<Sha256Hash> leaves) {
+        return new MerkleTree(leaves, true);
+    }
+
+    /**
+     * Calculates the root of the tree over the given hashes, without keeping the rest of the tree.
+     *
+     * @param leaves the leaf hashes, such as transaction hashes, as returned by {@link BtcTransaction#getHash()}.
+     * @throws IllegalArgumentException if there are no leaves.
+     */
+    public static Sha256Hash calculateRoot(List<Sha256Hash> leaves) {
+        return new MerkleTree(leaves, false).getRoot();
+    }
+
+    public Sha256Hash getRoot() {
+        return getNodeAt(offset(height, 0));
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /** Returns the number of levels above the leaves, 0 for a tree with a single leaf. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the number of nodes at the given height, the leaves being at height 0. */
+    public int getWidth(int height) {
+        return (leafCount + (1 << height) - 1) >> height;
+    }
+
+    /** Returns the hash of a node, by its height and its index within that level from the left. */
+    public Sha256Hash getNode(int height, int index) {
+        checkElementIndex(height, this.height + 1, "height");
+        checkElementIndex(index, getWidth(height), "index");
+        return getNodeAt(levelOffsets[height] + index * LENGTH);
+    }
+
+    /**
+     * Returns the merkle branch of a leaf: the hashes it's combined with on the way to the root, from the bottom up.
+     * A node without a pair is combined with itself.
+     */
+    public List<Sha256Hash> getBranch(int leafIndex) {
+        checkElementIndex(leafIndex, leafCount, "leaf index");
+        List<Sha256Hash> branch = new ArrayList<Sha256Hash>(height);
+        int index = leafIndex;
+        for (int level = 0; level < height; level++) {
+            branch.add(getNode(level, Math.min(index ^ 1, getWidth(level) - 1)));
+            index >>= 1;
+        }
+        return branch;
+    }
+
+    private Sha256Hash getNodeAt(int offset) {
+        byte[] hash = new byte[LENGTH];
+        Utils.reverseBytes(nodes, offset, hash, 0, LENGTH);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private void hashLevels() {
+        int level = 0;
+        int width = leafCount;
+        if (leafCount >= PARALLEL_THRESHOLD) {
+            int subtrees = (leafCount + (1 << SUBTREE_HEIGHT) - 1) >> SUBTREE_HEIGHT;
+            ForkJoinPool.commonPool().invoke(new SubtreeTask(0, subtrees));
+            level = SUBTREE_HEIGHT;
+            width = subtrees;
+            // Hashed in place, the roots of the subtrees are where their leaves started: bring them together.
+            if (levelOffsets == null) {
+                for (int subtree = 1; subtree < subtrees; subtree++)
+                    System.arraycopy(nodes, offset(level, subtree), nodes, subtree * LENGTH, LENGTH);
+            }
+        }
+        for (; width > 1; level++)
+            width = hashLevel(offset(level, 0), width, offset(level + 1, 0));
+    }
+
+    private void hashSubtree(int subtree) {
+        int width = Math.min(1 << SUBTREE_HEIGHT, leafCount - (subtree << SUBTREE_HEIGHT));
+        for (int level = 0; level < SUBTREE_HEIGHT; level++)
+            width = hashLevel(offset(level, subtree), width, offset(level + 1, subtree));
+    }
+
+    /**
+     * Returns where the nodes of a subtree start at the given level. Hashing in place, each subtree is hashed over its
+     * own leaves. With the levels kept, the nodes of the subtree are at their place in the level.
+     */
+    private int offset(int level, int subtree) {
+        if (levelOffsets == null)
+            return (subtree * LENGTH) << SUBTREE_HEIGHT;
+        return levelOffsets[level] + ((subtree * LENGTH) << SUBTREE_HEIGHT >> level);
+    }
+
+    /**
+     * Hashes the pairs of a run of nodes of a level into their parents, pairing the last node with itself if it has no
+     * pair, and returns the number of parents.
+     */
+    private int hashLevel(int from, int width, int to) {
+        if (width % 2 != 0)
+            System.arraycopy(nodes, from + (width - 1) * LENGTH, nodes, from + width * LENGTH, LENGTH);
+        int parents = (width + 1) / 2;
+        Sha256Hash.hashTwiceBatch(nodes, from, nodes, to, parents);
+        return parents;
+    }
+
+    /** Number of bytes taken by a level, with room to repeat its last node. */
+    private static int paddedLength(int width) {
+        return (width + 1) / 2 * 2 * LENGTH;
+    }
+
+    private final class SubtreeTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        SubtreeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                hashSubtree(from);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SubtreeTask(from, middle), new SubtreeTask(middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Holds blocks whose parent isn't known yet, so they can be connected as soon as it shows up instead of being fetched
+ * again. Orphans are indexed by their own hash and by the hash of the parent they wait for.<p>
+ *
+ * The pool is bounded: it holds at most {@code maxOrphans} blocks taking at most {@code maxBytes} serialized bytes,
+ * counting the filtered transactions they came with. To make room for a new block it drops the one with the least
+ * work, the oldest of those if there are several, and a new block with less work than any of them isn't kept at all.
+ * Orphans are only checked against the difficulty they claim, so this keeps a flood of cheap low difficulty blocks
+ * from pushing out genuine ones. Blocks that waited longer than {@code maxAgeMillis} are dropped whenever the pool is
+ * added to or looked up. Time is read from {@link Utils#currentTimeMillis()}, so it follows the mock clock.<p>
+ *
+ * This class is not thread safe, {@link BtcAbstractBlockChain} only uses it while holding its lock. The exception is
+ * {@link #isWaiting(Sha256Hash)}, which reads a concurrent copy of the hashes so readers don't wait for the lock.
+ */
+final class OrphanBlockPool {
+    /** Enough for a couple of headers messages arriving out of order. */
+    static final int DEFAULT_MAX_ORPHANS = 4000;
+    /** Room for a few dozen full blocks, or all of the orphans when they are headers. */
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    static final long DEFAULT_MAX_AGE_MILLIS = 30 * 60 * 1000;
+
+    /** A block waiting for its parent, with the filtered transactions it came with, if any. */
+    static final class OrphanBlock {
+        final BtcBlock block;
+        @Nullable final List<Sha256Hash> filteredTxHashes;
+        @Nullable final Map<Sha256Hash, BtcTransaction> filteredTxn;
+        @Nullable final FilteredBlock filteredBlock;
+        final long addedAtMillis;
+        final ChainWork work;
+        final long size;
+
+        OrphanBlock(BtcBlock block, @Nullable List<Sha256Hash> filteredTxHashes,
+                    @Nullable Map<Sha256Hash, BtcTransaction> filteredTxn, @Nullable FilteredBlock filteredBlock,
+                    long addedAtMillis) {
+            this.block = block;
+            this.filteredTxHashes = filteredTxHashes;
+            this.filteredTxn = filteredTxn;
+            this.filteredBlock = filteredBlock;
+            this.addedAtMillis = addedAtMillis;
+            this.work = block.getWorkValue();
+            this.size = sizeOf(block, filteredTxHashes, filteredTxn);
+        }
+
+        private static long sizeOf(BtcBlock block, @Nullable List<Sha256Hash> filteredTxHashes,
+                                   @Nullable Map<Sha256Hash, BtcTransaction> filteredTxn) {
+            long size = block.getOptimalEncodingMessageSize();
+            if (filteredTxHashes != null)
+                size += (long) filteredTxHashes.size() * Sha256Hash.LENGTH;
+            if (filteredTxn != null) {
+                for (BtcTransaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+            }
+            return size;
+        }
+    }
+
+    private final int maxOrphans;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    // Serialized size of the orphans held.
+    private long totalBytes;
+    // In insertion order, so the eldest entry is the first to go.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> byHash = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // The time each orphan was added at, by hash, for the readers that don't hold the lock.
+    private final ConcurrentHashMap<Sha256Hash, Long> addedAtByHash = new ConcurrentHashMap<Sha256Hash, Long>();
+    private final Map<Sha256Hash, List<OrphanBlock>> byPrevHash = new HashMap<Sha256Hash, List<OrphanBlock>>();
+
+    OrphanBlockPool() {
+        this(DEFAULT_MAX_ORPHANS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    OrphanBlockPool(int maxOrphans, long maxAgeMillis) {
+        this(maxOrphans, DEFAULT_MAX_BYTES, maxAgeMillis);
+    }
+
+    OrphanBlockPool(int maxOrphans, long maxBytes, long maxAgeMillis) {
+        checkArgument(maxOrphans > 0, "maxOrphans must be positive: %s", maxOrphans);
+        checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+        checkArgument(maxAgeMillis > 0, "maxAgeMillis must be positive: %s", maxAgeMillis);
+        this.maxOrphans = maxOrphans;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Adds a block to the pool, making room for it if needed.
+     *
+     * @return false if the block was already in the pool, or wasn't kept because it doesn't fit.
+     */
+    boolean add(BtcBlock block, @Nullable List<Sha256Hash> filteredTxHashes,
+                @Nullable Map<Sha256Hash, BtcTransaction> filteredTxn, @Nullable FilteredBlock filteredBlock) {
+        Sha256Hash hash = block.getHash();
+        long now = Utils.currentTimeMillis();
+        removeExpired(now);
+        if (byHash.containsKey(hash))
+            return false;
+        OrphanBlock orphan = new OrphanBlock(block, filteredTxHashes, filteredTxn, filteredBlock, now);
+        if (orphan.size > maxBytes)
+            return false;
+        while (byHash.size() >= maxOrphans || totalBytes + orphan.size > maxBytes) {
+            OrphanBlock leastWork = leastWork();
+            if (leastWork.work.compareTo(orphan.work) > 0)
+                return false;
+            remove(leastWork);
+        }
+        byHash.put(hash, orphan);
+        addedAtByHash.put(hash, now);
+        totalBytes += orphan.size;
+        List<OrphanBlock> siblings = byPrevHash.get(block.getPrevBlockHash());
+        if (siblings == null) {
+            siblings = new ArrayList<OrphanBlock>(1);
+            byPrevHash.put(block.getPrevBlockHash(), siblings);
+        }
+        siblings.add(orphan);
+        return true;
+    }
+
+    /** Returns true if a block with this hash is waiting in the pool. */
+    boolean contains(Sha256Hash hash) {
+        removeExpired();
+        return byHash.containsKey(hash);
+    }
+
+    /**
+     * Returns true if a block with this hash is waiting in the pool, like {@link #contains(Sha256Hash)}, but can be
+     * called from any thread. An orphan that waited too long isn't reported, even if it's not dropped yet.
+     */
+    boolean isWaiting(Sha256Hash hash) {
+        Long addedAtMillis = addedAtByHash.get(hash);
+        return addedAtMillis != null && Utils.currentTimeMillis() - addedAtMillis <= maxAgeMillis;
+    }
+
+    /** Returns the orphan with the given hash, or null if there is none. */
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        removeExpired();
+        return byHash.get(hash);
+    }
+
+    /** Removes and returns the orphans waiting for the given parent, in the order they were added. */
+    List<OrphanBlock> takeChildren(Sha256Hash parentHash) {
+        List<OrphanBlock> children = byPrevHash.remove(parentHash);
+        if (children == null)
+            return Collections.emptyList();
+        for (OrphanBlock child : children) {
+            byHash.remove(child.block.getHash());
+            addedAtByHash.remove(child.block.getHash());
+            totalBytes -= child.size;
+        }
+        return children;
+    }
+
+    /**
+     * Removes the orphans descending from the given block: its children, their children and so on. Used when the block
+     * is rejected, as none of them can ever connect.
+     *
+     * @return the number of orphans removed.
+     */
+    int removeDescendants(Sha256Hash blockHash) {
+        int removed = 0;
+        List<Sha256Hash> parents = new ArrayList<Sha256Hash>();
+        parents.add(blockHash);
+        while (!parents.isEmpty()) {
+            for (OrphanBlock child : takeChildren(parents.remove(parents.size() - 1))) {
+                parents.add(child.block.getHash());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        return byHash.size();
+    }
+
+    /** Returns the serialized size of the orphans held, as counted against {@code maxBytes}. */
+    long sizeInBytes() {
+        return totalBytes;
+    }
+
+    boolean isEmpty() {
+        return byHash.isEmpty();
+    }
+
+    /** Drops the orphans that waited too long. */
+    void removeExpired() {
+        if (!byHash.isEmpty())
+            removeExpired(Utils.currentTimeMillis());
+    }
+
+    private void removeExpired(long now) {
+        Iterator<OrphanBlock> eldestFirst = byHash.values().iterator();
+        while (eldestFirst.hasNext()) {
+            OrphanBlock orphan = eldestFirst.next();
+            if (now - orphan.addedAtMillis <= maxAgeMillis)
+                break;
+            eldestFirst.remove();
+            addedAtByHash.remove(orphan.block.getHash());
+            totalBytes -= orphan.size;
+            removeFromParent(orphan);
+        }
+    }
+
+    /** Returns the orphan with the least work, the oldest of them if there are several. The pool must not be empty. */
+    private OrphanBlock leastWork() {
+        OrphanBlock leastWork = null;
+        for (OrphanBlock orphan : byHash.values()) {
+            if (leastWork == null || orphan.work.compareTo(leastWork.work) < 0)
+                leastWork = orphan;
+        }
+        return leastWork;
+    }
+
+    private void remove(OrphanBlock orphan) {
+        byHash.remove(orphan.block.getHash());
+        addedAtByHash.remove(orphan.block.getHash());
+        totalBytes -= orphan.size;
+        removeFromParent(orphan);
+    }
+
+    private void removeFromParent(OrphanBlock orphan) {
+        Sha256Hash prevHash = orphan.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = byPrevHash.get(prevHash);
+        if (siblings == null)
+            return;
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byPrevHash.remove(prevHash);
+    }
+}
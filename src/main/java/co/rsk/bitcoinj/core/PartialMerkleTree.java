@@ -94,7 +94,8 @@ public class PartialMerkleTree extends Message {
             height++;
         List<Boolean> bitList = new ArrayList<Boolean>();
         List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        MerkleTree tree = MerkleTree.build(allLeafHashes);
+        traverseAndBuild(height, 0, allLeafHashes.size(), tree, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
@@ -130,11 +131,11 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+    private static void traverseAndBuild(int height, int pos, int leafCount, MerkleTree tree, byte[] includeBits,
                                          List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
-        for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
+        for (int p = pos << height; p < (pos+1) << height && p < leafCount; p++) {
             if (Utils.checkBitLE(includeBits, p)) {
                 parentOfMatch = true;
                 break;
@@ -144,35 +145,17 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            resultHashes.add(tree.getNode(height, pos));
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-            if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
+            traverseAndBuild(h, p, leafCount, tree, includeBits, matchedChildBits, resultHashes);
+            if (p + 1 < getTreeWidth(leafCount, h))
+                traverseAndBuild(h, p + 1, leafCount, tree, includeBits, matchedChildBits, resultHashes);
         }
     }
 
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
-        }
-        return combineLeftRight(left.getBytes(), right.getBytes());
-    }
-
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
     private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount + (1 << height) - 1) >> height;
@@ -182,9 +165,46 @@ public class PartialMerkleTree extends Message {
         public int bitsUsed = 0, hashesUsed = 0;
     }
     
+    /**
+     * The nodes of one height of the tree reached while extracting hashes, in the order they were reached. A node
+     * either has its hash stored in the tree or combines two consecutive nodes one height below (or the same one
+     * twice), in which case its hash is only known once the height below is.
+     */
+    private static class Level {
+        // Node hashes, as returned by Sha256Hash.getBytes().
+        byte[] hashes = new byte[2 * Sha256Hash.LENGTH];
+        // Index of the left and right child of each node in the height below, -1 for stored hashes.
+        int[] left = new int[2], right = new int[2];
+        int size, combined;
+
+        int addStored(byte[] hash) {
+            return add(-1, -1, hash);
+        }
+
+        int addCombined(int leftChild, int rightChild) {
+            combined++;
+            return add(leftChild, rightChild, null);
+        }
+
+        private int add(int leftChild, int rightChild, byte[] hash) {
+            if (size == left.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                left = Arrays.copyOf(left, left.length * 2);
+                right = Arrays.copyOf(right, right.length * 2);
+            }
+            left[size] = leftChild;
+            right[size] = rightChild;
+            if (hash != null)
+                System.arraycopy(hash, 0, hashes, size * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            return size++;
+        }
+    }
+
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
+    // it returns the index of the respective node within its level; the hashes of the nodes that aren't stored are
+    // calculated afterwards by combineLevels.
+    private int recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes,
+                                       Level[] levels) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("PartialMerkleTree overflowed its bits array");
@@ -199,40 +219,77 @@ public class PartialMerkleTree extends Message {
             Sha256Hash hash = hashes.get(used.hashesUsed++);
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
                 matchedHashes.add(hash);
-            return hash;
+            return levels[height].addStored(hash.getBytes());
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes).getBytes(), right;
-            if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1)) {
-                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes).getBytes();
-                if (Arrays.equals(right, left))
-                    throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
-            } else {
+            int left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes, levels), right;
+            if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1))
+                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes, levels);
+            else
                 right = left;
+            return levels[height].addCombined(left, right);
+        }
+    }
+
+    // calculates the hashes of the nodes of each level that combine nodes of the level below, from the bottom up,
+    // hashing all the pairs of a level in one batch. returns the hash of the root.
+    private Sha256Hash combineLevels(Level[] levels) throws VerificationException {
+        for (int height = 1; height < levels.length; height++) {
+            Level level = levels[height], below = levels[height - 1];
+            if (level.combined == 0)
+                continue;
+            // The pairs to hash, left and right hash of each, one after the other.
+            byte[] pairs = new byte[level.combined * 2 * Sha256Hash.LENGTH];
+            int pair = 0;
+            for (int node = 0; node < level.size; node++) {
+                if (level.left[node] < 0)
+                    continue;
+                int offset = pair++ * 2 * Sha256Hash.LENGTH;
+                int leftOffset = level.left[node] * Sha256Hash.LENGTH;
+                int rightOffset = level.right[node] * Sha256Hash.LENGTH;
+                System.arraycopy(below.hashes, leftOffset, pairs, offset, Sha256Hash.LENGTH);
+                System.arraycopy(below.hashes, rightOffset, pairs, offset + Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                if (level.left[node] != level.right[node] && equalHashes(pairs, offset, offset + Sha256Hash.LENGTH))
+                    throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
+                checkNotAValid64ByteTransaction(pairs, offset);
+                // Hashed in the reverse byte order.
+                reverseInPlace(pairs, offset);
+                reverseInPlace(pairs, offset + Sha256Hash.LENGTH);
             }
-            checkNotAValid64ByteTransaction(left, right);
-            // and combine them before returning
-            return combineLeftRight(left, right);
+            Sha256Hash.hashTwiceBatch(pairs, 0, pairs, 0, level.combined);
+            pair = 0;
+            for (int node = 0; node < level.size; node++) {
+                if (level.left[node] >= 0)
+                    reverseBytes(pairs, pair++ * Sha256Hash.LENGTH, level.hashes, node * Sha256Hash.LENGTH,
+                            Sha256Hash.LENGTH);
+            }
+        }
+        return Sha256Hash.wrap(Arrays.copyOf(levels[levels.length - 1].hashes, Sha256Hash.LENGTH));
+    }
+
+    private static boolean equalHashes(byte[] bytes, int offset1, int offset2) {
+        for (int i = 0; i < Sha256Hash.LENGTH; i++) {
+            if (bytes[offset1 + i] != bytes[offset2 + i])
+                return false;
         }
+        return true;
     }
 
-    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
+    private static void reverseInPlace(byte[] bytes, int offset) {
+        for (int i = 0, j = offset + Sha256Hash.LENGTH - 1; i < Sha256Hash.LENGTH / 2; i++, j--) {
+            byte b = bytes[offset + i];
+            bytes[offset + i] = bytes[j];
+            bytes[j] = b;
+        }
     }
 
     /**
-     * Checks supplied bytes DO NOT represent a valid bitcoin transaction.
+     * Checks the supplied 64 bytes, left and right node put together, DO NOT represent a valid bitcoin transaction.
      * Fixes attack described on https://bitslog.wordpress.com/2018/06/09/leaf-node-weakness-in-bitcoin-merkle-tree-design/
      * @throws VerificationException if bytes DO represent a valid bitcoin transaction.
      */
-    private void checkNotAValid64ByteTransaction(byte[] left, byte[] right) throws VerificationException {
-        byte[] leftAndRight = new byte[left.length + right.length];
-        System.arraycopy(left, 0, leftAndRight, 0, 32);
-        System.arraycopy(right, 0, leftAndRight, 32, 32);
-
-        int _offset = 0;
+    private void checkNotAValid64ByteTransaction(byte[] leftAndRight, int offset) throws VerificationException {
+        int _offset = offset;
 
         // Skip version
         _offset += 4;
@@ -348,14 +405,17 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashesOut);
+        Level[] levels = new Level[height + 1];
+        for (int i = 0; i <= height; i++)
+            levels[i] = new Level();
+        recursiveExtractHashes(height, 0, used, matchedHashesOut, levels);
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
                 used.hashesUsed != hashes.size())
             throw new VerificationException("Got a CPartialMerkleTree that didn't need all the data it provided");
         
-        return merkleRoot;
+        return combineLevels(levels);
     }
 
     public int getTransactionCount() {
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+import org.spongycastle.math.ec.FixedPointUtil;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps decoded public keys around, so that verifying signatures by the same keys again and again doesn't decompress
+ * them every time. The points of the most recently used keys are cached, along with the multiplication tables the
+ * elliptic curve library attaches to them.<p>
+ *
+ * Keys verifying lots of signatures, like the ones of a federation, can be {@link #register(byte[]) registered}. They
+ * stay decoded for good, with a fixed-point comb table like the one kept for the generator, and signatures by them are
+ * verified with two comb multiplications instead of a generic double multiplication. Each registered key takes about
+ * 16KB.<p>
+ *
+ * This class is thread safe. {@link BtcECKey} uses one instance for all its verifications, see
+ * {@link BtcECKey#getPubKeyRegistry()}.
+ */
+public final class PubKeyRegistry {
+    /** Number of decoded keys cached besides the registered ones. */
+    public static final int DEFAULT_MAX_DECODED = 1000;
+
+    /** Width of the comb tables of registered keys, 2^8 points each. */
+    static final int COMB_WIDTH = 8;
+
+    private static final ECMultiplier COMB_MULTIPLIER = new FixedPointCombMultiplier();
+
+    // Keyed by the encoded keys, as given.
+    private final Map<ByteBuffer, ECPoint> registered = new ConcurrentHashMap<ByteBuffer, ECPoint>();
+    private final Map<ByteBuffer, ECPoint> decoded;
+
+    public PubKeyRegistry() {
+        this(DEFAULT_MAX_DECODED);
+    }
+
+    public PubKeyRegistry(final int maxDecoded) {
+        checkArgument(maxDecoded >= 0, "maxDecoded must not be negative: %s", maxDecoded);
+        this.decoded = new LinkedHashMap<ByteBuffer, ECPoint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPoint> eldest) {
+                return size() > maxDecoded;
+            }
+        };
+    }
+
+    /**
+     * Decodes the key for good and precomputes its comb table, unless it's already registered. The key is looked up by
+     * its encoding, so a key used both compressed and uncompressed must be registered in both forms.
+     *
+     * @throws IllegalArgumentException if the key can't be decoded.
+     */
+    public void register(byte[] pubKey) {
+        ByteBuffer key = ByteBuffer.wrap(pubKey.clone());
+        if (registered.containsKey(key))
+            return;
+        ECPoint point = decodePoint(pubKey);
+        checkArgument(!point.isInfinity(), "Not a public key: the point at infinity");
+        FixedPointUtil.precompute(point, COMB_WIDTH);
+        registered.put(key, point);
+    }
+
+    /** Removes a registered key. Returns false if it wasn't registered. */
+    public boolean unregister(byte[] pubKey) {
+        return registered.remove(ByteBuffer.wrap(pubKey)) != null;
+    }
+
+    public boolean isRegistered(byte[] pubKey) {
+        return registered.containsKey(ByteBuffer.wrap(pubKey));
+    }
+
+    /**
+     * Returns the point of an encoded public key, normalized, from the registered or recently used keys if possible.
+     * The returned point keeps the compression of the encoding.
+     *
+     * @throws IllegalArgumentException if the key can't be decoded.
+     */
+    public ECPoint decode(byte[] pubKey) {
+        ByteBuffer key = ByteBuffer.wrap(pubKey);
+        ECPoint point = registered.get(key);
+        if (point != null)
+            return point;
+        synchronized (decoded) {
+            point = decoded.get(key);
+        }
+        if (point != null)
+            return point;
+        point = decodePoint(pubKey);
+        synchronized (decoded) {
+            decoded.put(ByteBuffer.wrap(pubKey.clone()), point);
+        }
+        return point;
+    }
+
+    /**
+     * Verifies the given ECDSA signature against the hash using the public key, like
+     * {@link BtcECKey#verify(byte[], BtcECKey.ECDSASignature, byte[])}.
+     *
+     * @throws IllegalArgumentException if the key can't be decoded.
+     */
+    boolean verify(byte[] data, BtcECKey.ECDSASignature signature, byte[] pubKey) {
+        ECPoint point = registered.get(ByteBuffer.wrap(pubKey));
+        if (point != null)
+            return verifyWithCombs(data, signature, point);
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(decode(pubKey), BtcECKey.CURVE));
+        return signer.verifySignature(data, signature.r, signature.s);
+    }
+
+    /** Same steps as {@link ECDSASigner#verifySignature(byte[], BigInteger, BigInteger)}, multiplying with combs. */
+    private static boolean verifyWithCombs(byte[] data, BtcECKey.ECDSASignature signature, ECPoint point) {
+        BigInteger n = BtcECKey.CURVE.getN();
+        BigInteger r = signature.r, s = signature.s;
+        if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, data);
+        if (data.length * 8 > n.bitLength())
+            e = e.shiftRight(data.length * 8 - n.bitLength());
+        BigInteger c = s.modInverse(n);
+        BigInteger u1 = e.multiply(c).mod(n);
+        BigInteger u2 = r.multiply(c).mod(n);
+        ECPoint sum = COMB_MULTIPLIER.multiply(BtcECKey.CURVE.getG(), u1)
+                .add(COMB_MULTIPLIER.multiply(point, u2)).normalize();
+        if (sum.isInfinity())
+            return false;
+        return sum.getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
+    private static ECPoint decodePoint(byte[] pubKey) {
+        return BtcECKey.CURVE.getCurve().decodePoint(pubKey).normalize();
+    }
+
+    public int getRegisteredCount() {
+        return registered.size();
+    }
+}
@@ -25,20 +25,33 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
 
 /**
  * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
- * map. It also checks that the length is correct and provides a bit more type safety.
+ * map. It also checks that the length is correct and provides a bit more type safety.<p>
+ *
+ * The static hashing methods reuse a digest per thread rather than looking one up for every hash. The ones writing
+ * into a given array, like {@link #hashTwiceInto(byte[], int, int, byte[], int)}, don't allocate anything.
  */
 public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Digests used by the static hashing methods, confined to their thread.
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     /**
@@ -191,7 +204,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -212,10 +225,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * chunks and then passing the result to {@link #hashTwice(byte[])}.
      */
     public static byte[] hashTwice(byte[] input1, byte[] input2) {
-        MessageDigest digest = newDigest();
-        digest.update(input1);
-        digest.update(input2);
-        return digest.digest(digest.digest());
+        return hashTwice(input1, 0, input1.length, input2, 0, input2.length);
     }
 
     /**
@@ -228,9 +238,9 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
-        digest.update(input, offset, length);
-        return digest.digest(digest.digest());
+        byte[] result = new byte[LENGTH];
+        hashTwiceInto(input, offset, length, result, 0);
+        return result;
     }
 
     /**
@@ -239,10 +249,94 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
-        return digest.digest(digest.digest());
+        byte[] result = new byte[LENGTH];
+        digestTwice(digest, result, 0);
+        return result;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, hashes the resulting hash again and writes it to the output
+     * array at the given offset. The output may overlap the input.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset the offset within the output array, which must have room for 32 bytes from there
+     */
+    public static void hashTwiceInto(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(input, offset, length);
+        digestTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the double-hash of two 32 byte hashes put together, as done to combine the nodes of a merkle tree,
+     * and writes it to the output array at the given offset. The output may overlap either input.
+     *
+     * @param left the array containing the first hash
+     * @param leftOffset the offset of the first hash within its array
+     * @param right the array containing the second hash
+     * @param rightOffset the offset of the second hash within its array
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset the offset within the output array, which must have room for 32 bytes from there
+     */
+    public static void hashTwiceInto(byte[] left, int leftOffset, byte[] right, int rightOffset,
+                                     byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(left, leftOffset, LENGTH);
+        digest.update(right, rightOffset, LENGTH);
+        digestTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the double-hashes of a run of independent 64 byte messages laid out one after the other, such as the
+     * pairs of nodes of a merkle tree level, and writes them one after the other to the output. One digest is used for
+     * the whole run and nothing is allocated, so that the cost of each message is little more than its compression.
+     * <p>
+     *
+     * The output may overlap the input as long as it doesn't start after it, so a level can be hashed in place into
+     * the next one, or be anywhere past the end of the messages.
+     *
+     * @param input the array containing the messages
+     * @param inputOffset the offset of the first message within the input
+     * @param output the array to write the double-hashes to (in big-endian order)
+     * @param outputOffset the offset within the output array, which must have room for {@code 32 * count} bytes
+     * @param count the number of messages to hash
+     */
+    public static void hashTwiceBatch(byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+        checkArgument(count >= 0, "Negative count: %s", count);
+        checkPositionIndexes(inputOffset, inputOffset + count * 2 * LENGTH, input.length);
+        checkPositionIndexes(outputOffset, outputOffset + count * LENGTH, output.length);
+        checkArgument(input != output || outputOffset <= inputOffset
+                || outputOffset >= inputOffset + count * 2 * LENGTH, "Output overwrites messages not yet hashed");
+        MessageDigest digest = threadDigest();
+        for (int i = 0; i < count; i++) {
+            digest.update(input, inputOffset + i * 2 * LENGTH, 2 * LENGTH);
+            digestTwice(digest, output, outputOffset + i * LENGTH);
+        }
+    }
+
+    /** Returns the digest of the current thread, ready to use. */
+    private static MessageDigest threadDigest() {
+        MessageDigest digest = DIGESTS.get();
+        // In case a previous use was cut short, e.g. by a bad offset.
+        digest.reset();
+        return digest;
+    }
+
+    /** Completes the hash being calculated by the digest, hashes it again and writes the result to the output. */
+    private static void digestTwice(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Only if the output is too small.
+        }
     }
 
     @Override
@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.core;
+
+/**
+ * Verifies ECDSA signatures, possibly remembering the outcome so that verifying the same signature again is cheap.
+ * Script execution and the redeem script parsers verify through the cache set with
+ * {@link BtcECKey#setSignatureCache(SignatureCache)}, see {@link BtcECKey#verifyCached(byte[], BtcECKey.ECDSASignature, byte[])}.
+ * <p>
+ *
+ * Implementations must be thread safe.
+ */
+public interface SignatureCache {
+    /** Verifies every signature, remembering nothing. */
+    SignatureCache NONE = new SignatureCache() {
+        @Override
+        public boolean verify(byte[] hash, BtcECKey.ECDSASignature signature, byte[] pubKey) {
+            return BtcECKey.verify(hash, signature, pubKey);
+        }
+    };
+
+    /**
+     * Returns whether the signature of the hash by the public key is valid, like
+     * {@link BtcECKey#verify(byte[], BtcECKey.ECDSASignature, byte[])}.
+     *
+     * @throws IllegalArgumentException if the public key can't be decoded.
+     */
+    boolean verify(byte[] hash, BtcECKey.ECDSASignature signature, byte[] pubKey);
+}
@@ -20,6 +20,7 @@ import co.rsk.bitcoinj.store.BtcBlockStore;
 import co.rsk.bitcoinj.store.BlockStoreException;
 import com.google.common.base.Objects;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Locale;
@@ -51,10 +52,23 @@ public class StoredBlock {
     public static final int COMPACT_SERIALIZED_SIZE_V2 = BtcBlock.HEADER_SIZE + CHAIN_WORK_BYTES_V2 + HEIGHT_BYTES;
 
     private BtcBlock header;
-    private BigInteger chainWork;
+    private ChainWork chainWork;
     private int height;
+    // Hash of the ancestor at getSkipHeight(height), as in Bitcoin Core's CBlockIndex::pskip. It is derived data that
+    // is not serialized, so blocks read back from disk or built without a store don't have it and callers fall back
+    // to following the previous block hashes. A new block is only linked when the skip ancestor can be reached
+    // through the skip pointers already held in memory, so connecting a block never walks the chain one by one.
+    @Nullable
+    private Sha256Hash skipHash;
 
+    /**
+     * @throws IllegalArgumentException if the chain work is negative or doesn't fit in 256 bits.
+     */
     public StoredBlock(BtcBlock header, BigInteger chainWork, int height) {
+        this(header, ChainWork.valueOf(chainWork), height);
+    }
+
+    public StoredBlock(BtcBlock header, ChainWork chainWork, int height) {
         this.header = header;
         this.chainWork = chainWork;
         this.height = height;
@@ -73,6 +87,14 @@ public class StoredBlock {
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
+        return chainWork.toBigInteger();
+    }
+
+    /**
+     * The same as {@link #getChainWork()}, as the fixed width value this block holds, which is cheaper to add to and
+     * compare.
+     */
+    public ChainWork getChainWorkValue() {
         return chainWork;
     }
 
@@ -107,11 +129,25 @@ public class StoredBlock {
     public StoredBlock build(BtcBlock block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        ChainWork chainWork = this.chainWork.add(block.getWorkValue());
         int height = this.height + 1;
         return new StoredBlock(block, chainWork, height);
     }
 
+    /**
+     * Creates a new StoredBlock like {@link #build(BtcBlock)}, also linking it to a skip ancestor looked up in the
+     * given store so that {@link #getAncestor(BtcBlockStore, int)} on the new block runs in logarithmic time. The
+     * ancestor is only looked up through existing skip pointers: if this block or one of the blocks on the way has
+     * none, as happens with blocks read back from disk, the new block is left unlinked instead of walking the chain.
+     */
+    public StoredBlock build(BtcBlock block, BtcBlockStore store) throws VerificationException, BlockStoreException {
+        StoredBlock next = build(block);
+        StoredBlock skip = findAncestor(store, getSkipHeight(next.height), false);
+        if (skip != null)
+            next.skipHash = skip.getHeader().getHash();
+        return next;
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
      * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
@@ -122,6 +158,75 @@ public class StoredBlock {
         return store.get(getHeader().getPrevBlockHash());
     }
 
+    /**
+     * Returns the ancestor of this block at the given height, or this block itself if the height is its own. Blocks
+     * built with {@link #build(BtcBlock, BtcBlockStore)} carry a skip pointer that lets the walk jump back in
+     * logarithmic steps; when a skip pointer is missing or its block is no longer in the store, the walk goes through
+     * the previous block instead.
+     *
+     * @return the ancestor, or null if the height is out of range or the walk ran off the blocks held by the store.
+     */
+    @Nullable
+    public StoredBlock getAncestor(BtcBlockStore store, int height) throws BlockStoreException {
+        return findAncestor(store, height, true);
+    }
+
+    /**
+     * Walks back to the ancestor at the given height. When unlinkedStepsAllowed is false the walk gives up and returns
+     * null as soon as it would have to step over a block whose skip pointer is missing or no longer in the store.
+     */
+    @Nullable
+    private StoredBlock findAncestor(BtcBlockStore store, int height, boolean unlinkedStepsAllowed)
+            throws BlockStoreException {
+        if (height > this.height || height < 0)
+            return null;
+        StoredBlock walk = this;
+        while (walk.height > height) {
+            int heightSkip = getSkipHeight(walk.height);
+            int heightSkipPrev = getSkipHeight(walk.height - 1);
+            StoredBlock next = null;
+            // Only follow the skip pointer if it doesn't overshoot, and if the previous block's skip wouldn't be a
+            // better choice (Bitcoin Core's CBlockIndex::GetAncestor).
+            if (heightSkip == height ||
+                    (heightSkip > height && !(heightSkipPrev < heightSkip - 2 && heightSkipPrev >= height))) {
+                if (walk.skipHash != null)
+                    next = store.get(walk.skipHash);
+                if (next == null && !unlinkedStepsAllowed)
+                    return null;
+            }
+            if (next == null)
+                next = walk.getPrev(store);
+            if (next == null)
+                return null;
+            walk = next;
+        }
+        return walk;
+    }
+
+    /** Hash of the ancestor at {@link #getSkipHeight(int)}, or null if this block wasn't linked to one. */
+    @Nullable
+    Sha256Hash getSkipHash() {
+        return skipHash;
+    }
+
+    /** Turns the lowest set bit of n off. */
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /**
+     * Height of the ancestor a block at the given height keeps a skip pointer to. Any height can be reached from any
+     * of its descendants in O(log n) skips.
+     */
+    static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Determine which height to jump back to. Any number strictly lower than height is acceptable,
+        // but the following expression seems to perform well in simulations (max 110 steps to go back
+        // up to 2**18 blocks).
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
     /**
      * @deprecated Use {@link #serializeCompactV2(ByteBuffer)} instead.
      *
@@ -147,8 +252,7 @@ public class StoredBlock {
     }
 
     private void serializeCompact(ByteBuffer buffer, int chainWorkSize) {
-        byte[] chainWorkBytes = Utils.bigIntegerToBytes(getChainWork(), chainWorkSize);
-        buffer.put(chainWorkBytes);
+        chainWork.write(buffer, chainWorkSize);
         buffer.putInt(getHeight());
         // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
         // avoiding serialization round-trips.
@@ -183,9 +287,7 @@ public class StoredBlock {
 
     private static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer,
         int chainWorkSize) {
-        byte[] chainWorkBytes = new byte[chainWorkSize];
-        buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        ChainWork chainWork = ChainWork.read(buffer, chainWorkSize);
         int height = buffer.getInt();  // +4 bytes
         byte[] header = new byte[BtcBlock.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
         buffer.get(header, 0, BtcBlock.HEADER_SIZE);
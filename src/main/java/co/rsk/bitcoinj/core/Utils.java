@@ -220,6 +220,16 @@ public class Utils {
         }
         return buf;
     }
+
+    /**
+     * Copies the given range of bytes into the output at the given offset, in reverse order. The ranges must not
+     * overlap.
+     */
+    public static void reverseBytes(byte[] bytes, int offset, byte[] output, int outputOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            output[outputOffset + i] = bytes[offset + length - 1 - i];
+        }
+    }
     
     /**
      * Returns a copy of the given byte array with the bytes of each double-word (4 bytes) reversed.
@@ -48,6 +48,8 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractBitcoinNetParams.class);
 
+    private final RetargetEpochCache retargetEpochCache = new RetargetEpochCache();
+
     public AbstractBitcoinNetParams() {
         super();
     }
@@ -61,10 +63,21 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         return ((storedPrev.getHeight() + 1) % this.getInterval()) == 0;
     }
 
+    /**
+     * Remembers which retarget epoch the given block belongs to, so that the difficulty transition at the end of the
+     * epoch doesn't need to walk back to its first block. Must be called for every block checked by
+     * {@link #checkDifficultyTransitions(StoredBlock, BtcBlock, BtcBlockStore)}, including by subclasses that don't
+     * delegate every block to it.
+     */
+    protected void trackRetargetEpoch(StoredBlock storedPrev, BtcBlock nextBlock) {
+        retargetEpochCache.add(storedPrev, nextBlock, this.getInterval());
+    }
+
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final BtcBlock nextBlock,
     	final BtcBlockStore blockStore) throws VerificationException, BlockStoreException {
         BtcBlock prev = storedPrev.getHeader();
+        trackRetargetEpoch(storedPrev, nextBlock);
 
         // Is this supposed to be a difficulty transition point?
         if (!isDifficultyTransitionPoint(storedPrev)) {
@@ -77,23 +90,25 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        final Stopwatch watch = Stopwatch.createStarted();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < this.getInterval() - 1; i++) {
+        // We need to find a block far back in the chain. Usually it was remembered when its epoch was connected, if not
+        // it's OK that this is expensive because it only occurs every two weeks after the initial block chain download.
+        BtcBlock blockIntervalAgo = retargetEpochCache.getEpochStart(storedPrev);
+        if (blockIntervalAgo == null) {
+            final Stopwatch watch = Stopwatch.createStarted();
+            StoredBlock cursor = blockStore.get(prev.getHash());
+            if (cursor != null)
+                cursor = cursor.getAncestor(blockStore, storedPrev.getHeight() - (this.getInterval() - 1));
             if (cursor == null) {
                 // This should never happen. If it does, it means we are following an incorrect or busted chain.
                 throw new VerificationException(
                         "Difficulty transition point but we did not find a way back to the genesis block.");
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            watch.stop();
+            if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
+                log.info("Difficulty transition traversal took {}", watch);
+            blockIntervalAgo = cursor.getHeader();
         }
-        watch.stop();
-        if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
-            log.info("Difficulty transition traversal took {}", watch);
 
-        BtcBlock blockIntervalAgo = cursor.getHeader();
         int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
         // Limit the adjustment step.
         final int targetTimespan = this.getTargetTimespan();
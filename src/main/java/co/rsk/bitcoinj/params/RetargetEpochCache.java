@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.params;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for recently checked blocks, the header that starts their difficulty retarget epoch, i.e. the block a
+ * difficulty transition measures the timespan from. Entries are keyed by block hash, and since a hash commits to the
+ * whole ancestry each entry belongs to exactly one branch: blocks of competing forks get their own entries and share
+ * the epoch start header when they fork after it.<p>
+ *
+ * The cache is filled as blocks are checked: a block at a retarget height starts a new epoch, any other block inherits
+ * the epoch start of its parent. Nothing is known about blocks whose parent wasn't seen, in which case callers fall back
+ * to walking the block store. This class is thread safe.
+ */
+final class RetargetEpochCache {
+    // Enough for a few epochs worth of blocks, plus forks, on every network.
+    private static final int MAX_ENTRIES = 3 * NetworkParameters.INTERVAL;
+
+    private final Map<Sha256Hash, BtcBlock> epochStarts = new LinkedHashMap<Sha256Hash, BtcBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, BtcBlock> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Records the epoch start of a block that is being connected on top of {@code storedPrev}.
+     *
+     * @param interval the number of blocks between difficulty transitions.
+     */
+    synchronized void add(StoredBlock storedPrev, BtcBlock nextBlock, int interval) {
+        int height = storedPrev.getHeight() + 1;
+        BtcBlock epochStart;
+        if (height % interval == 0) {
+            // Don't keep the transactions of full blocks alive.
+            epochStart = nextBlock.getTransactions() == null ? nextBlock : nextBlock.cloneAsHeader();
+        } else if (storedPrev.getHeight() % interval == 0) {
+            epochStart = storedPrev.getHeader();
+        } else {
+            epochStart = epochStarts.get(storedPrev.getHeader().getHash());
+        }
+        if (epochStart != null)
+            epochStarts.put(nextBlock.getHash(), epochStart);
+    }
+
+    /** Returns the header starting the retarget epoch {@code block} belongs to, or null if it isn't known. */
+    @Nullable
+    synchronized BtcBlock getEpochStart(StoredBlock block) {
+        return epochStarts.get(block.getHeader().getHash());
+    }
+}
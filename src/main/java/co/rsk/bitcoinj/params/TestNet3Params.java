@@ -92,6 +92,7 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
         final BtcBlockStore blockStore) throws VerificationException, BlockStoreException {
         if (!isDifficultyTransitionPoint(storedPrev) && nextBlock.getTime().after(testnetDiffDate)) {
             BtcBlock prev = storedPrev.getHeader();
+            trackRetargetEpoch(storedPrev, nextBlock);
 
             // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
             // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
@@ -57,7 +57,7 @@ public class StandardRedeemScriptParser implements RedeemScriptParser {
         int numKeys = getN();
         TransactionSignature signature = TransactionSignature.decodeFromBitcoin(signatureBytes, true);
         for (int i = 0; i < numKeys; i++) {
-            if (BtcECKey.fromPublicOnly(redeemScriptChunks.get(i + 1).data).verify(hash, signature)) {
+            if (BtcECKey.verifyCached(hash.getBytes(), signature, redeemScriptChunks.get(i + 1).data)) {
                 return i;
             }
         }
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+/**
+ * A {@link BtcBlockStore} able to apply a group of writes atomically, typically backed by a database transaction.<p>
+ *
+ * Writes made after {@link #beginDatabaseBatchWrite()} are applied all together by
+ * {@link #commitDatabaseBatchWrite()}, or dropped by {@link #abortDatabaseBatchWrite()}. Readers of the store see them
+ * as soon as they are made. Writes made outside of a batch are applied right away. Committing or aborting when no
+ * batch was begun does nothing.<p>
+ *
+ * {@link co.rsk.bitcoinj.core.BtcBlockChain} begins a batch before it writes the blocks that will move the chain head,
+ * and commits it once the head is set, so a connected block or a whole re-organize is stored atomically.
+ */
+public interface BatchedBtcBlockStore extends BtcBlockStore {
+    /** Starts grouping writes, if not already doing so. */
+    void beginDatabaseBatchWrite() throws BlockStoreException;
+
+    /** Applies the writes made since the batch was begun. */
+    void commitDatabaseBatchWrite() throws BlockStoreException;
+
+    /** Drops the writes made since the batch was begun. */
+    void abortDatabaseBatchWrite() throws BlockStoreException;
+}
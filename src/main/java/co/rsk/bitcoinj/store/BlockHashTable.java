@@ -0,0 +1,255 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An open addressing hash table from block hashes to {@link StoredBlock}s. Keys are kept as four primitive longs per
+ * slot, so lookups neither allocate nor follow pointers until the matching slot is found.<p>
+ *
+ * Reads are lock free and may run concurrently with a writer. Writes are not thread safe and must be serialized by the
+ * caller. A slot's key is written once, before its value is published through a volatile write, and is never reused
+ * within the same table; removed entries are marked with a tombstone that is only reclaimed when the writer rebuilds
+ * the table and publishes the new one. This way a reader never sees a key that is being rewritten.<p>
+ *
+ * When created with a maximum size the table behaves like an insertion ordered map that drops its eldest entry once
+ * full, which is the eviction policy {@link BtcMemoryBlockStore} always had.
+ */
+final class BlockHashTable {
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_SLOTS = 16;
+
+    private static final class Table {
+        // Four words per slot holding the 32 bytes of the hash.
+        final long[] keys;
+        // Either null (never used), TOMBSTONE or a StoredBlock.
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int slots) {
+            this.keys = new long[slots * 4];
+            this.values = new AtomicReferenceArray<Object>(slots);
+            this.mask = slots - 1;
+        }
+
+        int slots() {
+            return mask + 1;
+        }
+    }
+
+    private volatile Table table;
+
+    // Everything below is only touched by the writer.
+    private final int maxSize;
+    private int size;
+    // Live entries plus tombstones, i.e. slots that are no longer null.
+    private int used;
+    // Slots of the live entries in insertion order, as a ring. Only kept when the table is bounded.
+    @Nullable private int[] insertionOrder;
+    private int insertionHead;
+
+    /** Creates an unbounded table. */
+    BlockHashTable() {
+        this(0);
+    }
+
+    /**
+     * Creates a table holding at most {@code maxSize} entries, or an unbounded one if {@code maxSize} is zero. Once the
+     * limit is reached every new entry evicts the eldest one.
+     */
+    BlockHashTable(int maxSize) {
+        checkArgument(maxSize >= 0, "Negative size: %s", maxSize);
+        this.maxSize = maxSize;
+        this.table = new Table(slotsFor(maxSize));
+        if (maxSize > 0)
+            this.insertionOrder = new int[maxSize];
+    }
+
+    private static int slotsFor(int entries) {
+        // Keep the load factor at or below one half.
+        int slots = MIN_SLOTS;
+        while (slots < entries * 2)
+            slots <<= 1;
+        return slots;
+    }
+
+    private static int slotOf(long lastWord, int mask) {
+        // Block hashes are stored big endian with leading zeros, so the trailing word carries the entropy.
+        return (int) (lastWord ^ (lastWord >>> 32)) & mask;
+    }
+
+    /** Returns the block stored for the given hash, or null. Never blocks. */
+    @Nullable
+    StoredBlock get(Sha256Hash hash) {
+        final Table t = table;
+        final byte[] bytes = hash.getBytes();
+        final long k0 = Utils.readInt64(bytes, 0);
+        final long k1 = Utils.readInt64(bytes, 8);
+        final long k2 = Utils.readInt64(bytes, 16);
+        final long k3 = Utils.readInt64(bytes, 24);
+        int slot = slotOf(k3, t.mask);
+        while (true) {
+            // Reading the value first guarantees the key words written before it are visible.
+            Object value = t.values.get(slot);
+            if (value == null)
+                return null;
+            if (value != TOMBSTONE) {
+                int base = slot << 2;
+                if (t.keys[base + 3] == k3 && t.keys[base] == k0 && t.keys[base + 1] == k1 && t.keys[base + 2] == k2)
+                    return (StoredBlock) value;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+    }
+
+    /** Inserts or replaces the block stored for the given hash. Must not be called concurrently with itself. */
+    void put(Sha256Hash hash, StoredBlock block) {
+        final byte[] bytes = hash.getBytes();
+        final long k0 = Utils.readInt64(bytes, 0);
+        final long k1 = Utils.readInt64(bytes, 8);
+        final long k2 = Utils.readInt64(bytes, 16);
+        final long k3 = Utils.readInt64(bytes, 24);
+
+        Table t = table;
+        int slot = find(t, k0, k1, k2, k3);
+        if (slot >= 0) {
+            // Replacing keeps the original insertion position, like LinkedHashMap does.
+            t.values.set(slot, block);
+            return;
+        }
+        if (maxSize > 0 && size == maxSize)
+            evictEldest(t);
+        if (used + 1 > t.slots() - (t.slots() >>> 2)) {
+            rebuild();
+            t = table;
+        }
+        slot = insert(t, k0, k1, k2, k3, block);
+        used++;
+        if (insertionOrder != null)
+            insertionOrder[(insertionHead + size) % maxSize] = slot;
+        size++;
+    }
+
+    /**
+     * Removes the block stored for the given hash, if any. Only supported by unbounded tables. Must not be called
+     * concurrently with other writes.
+     *
+     * @return true if there was a block to remove.
+     */
+    boolean remove(Sha256Hash hash) {
+        checkState(insertionOrder == null, "Bounded tables evict in insertion order only");
+        final byte[] bytes = hash.getBytes();
+        Table t = table;
+        int slot = find(t, Utils.readInt64(bytes, 0), Utils.readInt64(bytes, 8), Utils.readInt64(bytes, 16),
+                Utils.readInt64(bytes, 24));
+        if (slot < 0)
+            return false;
+        t.values.set(slot, TOMBSTONE);
+        size--;
+        return true;
+    }
+
+    /** Returns the stored blocks, in no particular order. Must not be called concurrently with writes. */
+    List<StoredBlock> values() {
+        Table t = table;
+        List<StoredBlock> values = new ArrayList<StoredBlock>(size);
+        for (int slot = 0; slot < t.slots(); slot++) {
+            Object value = t.values.get(slot);
+            if (value != null && value != TOMBSTONE)
+                values.add((StoredBlock) value);
+        }
+        return values;
+    }
+
+    /** Number of live entries. */
+    int size() {
+        return size;
+    }
+
+    private static int find(Table t, long k0, long k1, long k2, long k3) {
+        int slot = slotOf(k3, t.mask);
+        while (true) {
+            Object value = t.values.get(slot);
+            if (value == null)
+                return -1;
+            int base = slot << 2;
+            if (value != TOMBSTONE && t.keys[base + 3] == k3 && t.keys[base] == k0 && t.keys[base + 1] == k1
+                    && t.keys[base + 2] == k2)
+                return slot;
+            slot = (slot + 1) & t.mask;
+        }
+    }
+
+    private static int insert(Table t, long k0, long k1, long k2, long k3, Object value) {
+        int slot = slotOf(k3, t.mask);
+        // Tombstones are deliberately skipped: reusing them would rewrite keys concurrent readers may be comparing.
+        while (t.values.get(slot) != null)
+            slot = (slot + 1) & t.mask;
+        int base = slot << 2;
+        t.keys[base] = k0;
+        t.keys[base + 1] = k1;
+        t.keys[base + 2] = k2;
+        t.keys[base + 3] = k3;
+        // Volatile write: publishes the key words above together with the value.
+        t.values.set(slot, value);
+        return slot;
+    }
+
+    private void evictEldest(Table t) {
+        int slot = insertionOrder[insertionHead];
+        t.values.set(slot, TOMBSTONE);
+        insertionHead = (insertionHead + 1) % maxSize;
+        size--;
+    }
+
+    /** Copies the live entries into a fresh table, dropping tombstones, and publishes it. */
+    private void rebuild() {
+        Table old = table;
+        int slots = maxSize > 0 ? old.slots() : slotsFor(size + 1);
+        Table fresh = new Table(slots);
+        if (insertionOrder != null) {
+            // Preserve insertion order so eviction keeps working on the new slots.
+            for (int i = 0; i < size; i++) {
+                int ringIndex = (insertionHead + i) % maxSize;
+                insertionOrder[ringIndex] = copy(old, insertionOrder[ringIndex], fresh);
+            }
+        } else {
+            for (int slot = 0; slot < old.slots(); slot++) {
+                Object value = old.values.get(slot);
+                if (value != null && value != TOMBSTONE)
+                    copy(old, slot, fresh);
+            }
+        }
+        used = size;
+        table = fresh;
+    }
+
+    private static int copy(Table from, int slot, Table to) {
+        int base = slot << 2;
+        return insert(to, from.keys[base], from.keys[base + 1], from.keys[base + 2], from.keys[base + 3],
+                from.values.get(slot));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.CheckpointManager;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides which blocks a pruning store such as {@link BtcMemoryBlockStore} keeps as the chain grows:<ul>
+ *     <li>the last {@code mainChainDepth} blocks of the main chain,</li>
+ *     <li>every main chain block at a retarget boundary, the first block of a difficulty period,</li>
+ *     <li>every main chain block that is a checkpoint of the given {@link CheckpointManager},</li>
+ *     <li>side chain blocks less than {@code sideChainHorizon} blocks below the chain head, as long as their whole
+ *     branch down to the main chain is kept too.</li>
+ * </ul>
+ *
+ * A difficulty transition looks back to the first block of the period that ends, so the main chain depth must be at
+ * least a retarget interval: the walk back then only goes through blocks that are kept, down to a retarget boundary
+ * block. Networks that never retarget, like regtest whose interval is {@link Integer#MAX_VALUE}, don't have that
+ * limit. Side chains forking deeper than the horizon are dropped, and can't cause a re-organize any more.
+ */
+public final class BlockRetentionPolicy {
+    /** Default number of main chain blocks kept below the chain head, two retarget intervals on the main network. */
+    public static final int DEFAULT_MAIN_CHAIN_DEPTH = 4032;
+    /** Default depth below the chain head after which side chain blocks are dropped, a day of blocks. */
+    public static final int DEFAULT_SIDE_CHAIN_HORIZON = 144;
+
+    private final int mainChainDepth;
+    private final int sideChainHorizon;
+    private final int retargetInterval;
+    private final Set<Sha256Hash> checkpoints;
+
+    /** Creates a policy with the default depths. */
+    public BlockRetentionPolicy(NetworkParameters params, @Nullable CheckpointManager checkpoints) {
+        this(params, retargets(params) ? Math.max(DEFAULT_MAIN_CHAIN_DEPTH, params.getInterval()) :
+                DEFAULT_MAIN_CHAIN_DEPTH, DEFAULT_SIDE_CHAIN_HORIZON, checkpoints);
+    }
+
+    /**
+     * Creates a policy keeping {@code mainChainDepth} main chain blocks, at least a retarget interval, and side chain
+     * blocks up to {@code sideChainHorizon} blocks below the chain head, at most the main chain depth. Checkpoints are
+     * kept if a checkpoint manager is given.
+     */
+    public BlockRetentionPolicy(NetworkParameters params, int mainChainDepth, int sideChainHorizon,
+                                @Nullable CheckpointManager checkpoints) {
+        checkNotNull(params);
+        checkArgument(mainChainDepth >= params.getInterval() || !retargets(params),
+                "Main chain depth %s is less than the retarget interval %s", mainChainDepth, params.getInterval());
+        checkArgument(sideChainHorizon > 0 && sideChainHorizon <= mainChainDepth,
+                "Side chain horizon must be positive and not above the main chain depth: %s", sideChainHorizon);
+        this.mainChainDepth = mainChainDepth;
+        this.sideChainHorizon = sideChainHorizon;
+        this.retargetInterval = params.getInterval();
+        if (checkpoints == null) {
+            this.checkpoints = Collections.emptySet();
+        } else {
+            this.checkpoints = Collections.unmodifiableSet(
+                    new HashSet<Sha256Hash>(checkpoints.getCheckpointHashes()));
+        }
+    }
+
+    private static boolean retargets(NetworkParameters params) {
+        return params.getInterval() < Integer.MAX_VALUE;
+    }
+
+    public int getMainChainDepth() {
+        return mainChainDepth;
+    }
+
+    public int getSideChainHorizon() {
+        return sideChainHorizon;
+    }
+
+    /** Returns true if the given main chain block is kept however deep it gets: a retarget boundary or a checkpoint. */
+    public boolean isAnchor(int height, Sha256Hash hash) {
+        return height % retargetInterval == 0 || checkpoints.contains(hash);
+    }
+
+    /** Returns true if a main chain block at the given height is kept while the chain head is at {@code headHeight}. */
+    public boolean keepsMainChainBlock(int height, Sha256Hash hash, int headHeight) {
+        return height > headHeight - mainChainDepth || isAnchor(height, hash);
+    }
+
+    /**
+     * Returns true if a side chain block at the given height is kept while the chain head is at {@code headHeight},
+     * provided its parent is kept.
+     */
+    public boolean keepsSideChainBlock(int height, int headHeight) {
+        return height > headHeight - sideChainHorizon;
+    }
+
+    /** Number of blocks the chain head advances between two prunings. */
+    int getPruneInterval() {
+        return Math.max(1, sideChainHorizon / 4);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockRetentionPolicy{mainChainDepth=" + mainChainDepth + ", sideChainHorizon=" + sideChainHorizon +
+                ", retargetInterval=" + retargetInterval + ", checkpoints=" + checkpoints.size() + '}';
+    }
+}
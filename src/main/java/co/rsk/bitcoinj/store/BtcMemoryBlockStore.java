@@ -17,35 +17,83 @@
 package co.rsk.bitcoinj.store;
 
 import co.rsk.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Keeps {@link co.rsk.bitcoinj.core.StoredBlock}s in memory. Used primarily for unit testing.
+ * Keeps {@link co.rsk.bitcoinj.core.StoredBlock}s in memory. Used primarily for unit testing.<p>
+ *
+ * By default the store is bounded and drops its eldest blocks first. Given a {@link BlockRetentionPolicy} it's
+ * unbounded instead, and prunes the blocks the policy doesn't keep as the chain head moves, so that it stays about the
+ * same size however long the chain gets without losing the blocks needed to verify it.
  */
 public class BtcMemoryBlockStore implements BtcBlockStore {
-    private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+    private static final Logger log = LoggerFactory.getLogger(BtcMemoryBlockStore.class);
+
+    /** The default number of blocks, and of main chain heights, kept by the store. */
+    public static final int DEFAULT_MAX_BLOCKS = 5000;
+
+    private static final Comparator<StoredBlock> BY_HEIGHT = new Comparator<StoredBlock>() {
         @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
-            return blockMap.size() > 5000;
+        public int compare(StoredBlock a, StoredBlock b) {
+            return Integer.compare(a.getHeight(), b.getHeight());
         }
     };
-    private StoredBlock chainHead;
+
+    // Lookups don't lock: the table supports lock free readers next to the single writer serialized by put().
+    private volatile BlockHashTable blockMap;
+    private volatile StoredBlock chainHead;
     private NetworkParameters params;
-    private LinkedHashMap<Integer, Sha256Hash> blockHashMap = new LinkedHashMap<Integer, Sha256Hash>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, Sha256Hash> eldest) {
-            return blockHashMap.size() > 5000;
-        }
-    };
+    private volatile MainChainHashIndex mainChainIndex;
+
+    // Only with a retention policy: main chain blocks kept below the main chain index, and when pruning last ran.
+    @Nullable private final BlockRetentionPolicy retentionPolicy;
+    private final ConcurrentNavigableMap<Integer, Sha256Hash> mainChainAnchors =
+            new ConcurrentSkipListMap<Integer, Sha256Hash>();
+    private int lastPruneHeight;
 
     public BtcMemoryBlockStore(NetworkParameters params) {
-        // Insert the genesis block.
+        this(params, DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+     * Creates a store that keeps at most {@code maxBlocks} blocks, dropping the eldest ones first, and the main chain
+     * hashes of the highest {@code maxBlocks} heights.
+     */
+    public BtcMemoryBlockStore(NetworkParameters params, int maxBlocks) {
+        checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+        this.blockMap = new BlockHashTable(maxBlocks);
+        this.mainChainIndex = new MainChainHashIndex(maxBlocks);
+        this.retentionPolicy = null;
+        insertGenesis(params);
+    }
+
+    /** Creates a store that keeps the blocks the given policy asks for, see {@link #prune()}. */
+    public BtcMemoryBlockStore(NetworkParameters params, BlockRetentionPolicy retentionPolicy) {
+        this.retentionPolicy = checkNotNull(retentionPolicy);
+        this.blockMap = new BlockHashTable();
+        this.mainChainIndex = new MainChainHashIndex(
+                retentionPolicy.getMainChainDepth() + retentionPolicy.getPruneInterval());
+        insertGenesis(params);
+    }
+
+    private void insertGenesis(NetworkParameters params) {
         try {
             BtcBlock genesisHeader = params.getGenesisBlock().cloneAsHeader();
-            StoredBlock storedGenesis = new StoredBlock(genesisHeader, genesisHeader.getWork(), 0);
+            StoredBlock storedGenesis = new StoredBlock(genesisHeader, genesisHeader.getWorkValue(), 0);
             put(storedGenesis);
             setChainHead(storedGenesis);
             this.params = params;
@@ -58,13 +106,15 @@ public class BtcMemoryBlockStore implements BtcBlockStore {
 
     @Override
     public synchronized final void put(StoredBlock block) throws BlockStoreException {
+        final BlockHashTable blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         Sha256Hash hash = block.getHeader().getHash();
         blockMap.put(hash, block);
     }
 
     @Override
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        final BlockHashTable blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         return blockMap.get(hash);
     }
@@ -77,21 +127,32 @@ public class BtcMemoryBlockStore implements BtcBlockStore {
 
     @Override
     public final void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        final MainChainHashIndex mainChainIndex = this.mainChainIndex;
+        if (blockMap == null || mainChainIndex == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
+        // Nothing above the chain head belongs to the main chain, e.g. what's left of a longer branch after a re-org.
+        mainChainIndex.truncateAbove(chainHead.getHeight());
+        mainChainAnchors.tailMap(chainHead.getHeight(), false).clear();
         this.setMainChainBlock(chainHead.getHeight(), chainHead.getHeader().getHash());
+        if (retentionPolicy != null && chainHead.getHeight() - lastPruneHeight >= retentionPolicy.getPruneInterval())
+            prune();
     }
 
     @Override
     public Optional<StoredBlock> getInMainchain(int height) {
-        if (blockHashMap == null) {
+        final MainChainHashIndex mainChainIndex = this.mainChainIndex;
+        if (mainChainIndex == null) {
             return Optional.empty();
         }
 
-        Sha256Hash blockHash = blockHashMap.get(height);
+        Sha256Hash blockHash = mainChainIndex.get(height);
+        if (blockHash == null)
+            blockHash = mainChainAnchors.get(height);
+        if (blockHash == null) {
+            return Optional.empty();
+        }
         try {
-            StoredBlock block = get(blockHash);
-            return Optional.of(block);
+            return Optional.ofNullable(get(blockHash));
         } catch (BlockStoreException e) {
             return Optional.empty();
         }
@@ -99,14 +160,63 @@ public class BtcMemoryBlockStore implements BtcBlockStore {
 
     @Override
     public void setMainChainBlock(int height, Sha256Hash blockHash) throws BlockStoreException {
-        if (blockHashMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
-        blockHashMap.put(height, blockHash);
+        final MainChainHashIndex mainChainIndex = this.mainChainIndex;
+        if (mainChainIndex == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        mainChainIndex.set(height, blockHash);
+        if (retentionPolicy != null && retentionPolicy.isAnchor(height, blockHash))
+            mainChainAnchors.put(height, blockHash);
+        else
+            mainChainAnchors.remove(height);
+    }
+
+    /**
+     * Drops the blocks the retention policy doesn't keep at the current chain head. Runs on its own every few blocks
+     * the chain head advances, and does nothing if the store wasn't created with a retention policy.<p>
+     *
+     * Blocks are visited from the lowest up, so a side chain block is only kept if its parent was.
+     */
+    public synchronized void prune() throws BlockStoreException {
+        final BlockHashTable blockMap = this.blockMap;
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        if (retentionPolicy == null)
+            return;
+        StoredBlock head = chainHead;
+        int headHeight = head.getHeight();
+        List<StoredBlock> blocks = blockMap.values();
+        Collections.sort(blocks, BY_HEIGHT);
+        Set<Sha256Hash> kept = new HashSet<Sha256Hash>();
+        int pruned = 0;
+        for (StoredBlock block : blocks) {
+            Sha256Hash hash = block.getHeader().getHash();
+            int height = block.getHeight();
+            boolean keep;
+            if (hash.equals(getMainChainHash(height)))
+                keep = retentionPolicy.keepsMainChainBlock(height, hash, headHeight);
+            else
+                keep = retentionPolicy.keepsSideChainBlock(height, headHeight)
+                        && kept.contains(block.getHeader().getPrevBlockHash());
+            if (keep) {
+                kept.add(hash);
+            } else {
+                blockMap.remove(hash);
+                pruned++;
+            }
+        }
+        lastPruneHeight = headHeight;
+        if (pruned > 0)
+            log.debug("Pruned {} blocks at height {}, {} left", pruned, headHeight, blockMap.size());
+    }
+
+    @Nullable
+    private Sha256Hash getMainChainHash(int height) {
+        Sha256Hash hash = mainChainIndex.get(height);
+        return hash != null ? hash : mainChainAnchors.get(height);
     }
 
     @Override
     public void close() {
         blockMap = null;
-        blockHashMap = null;
+        mainChainIndex = null;
     }
 
     @Override
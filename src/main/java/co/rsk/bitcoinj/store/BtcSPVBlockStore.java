@@ -0,0 +1,411 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
+ * but as they are virtually unheard of this is not a significant risk.<p>
+ *
+ * Next to the ring of headers the file keeps a ring of main chain hashes indexed by height, so
+ * {@link #getInMainchain(int)} survives a restart as well. When the store is reopened only the hashes of the ring are
+ * read back to rebuild an in-memory index; headers are decoded lazily on first access.
+ */
+public class BtcSPVBlockStore implements BtcBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(BtcSPVBlockStore.class);
+
+    /** The default number of headers that will be stored in the ring buffer. */
+    public static final int DEFAULT_NUM_HEADERS = 5000;
+    public static final String HEADER_MAGIC = "SPV2";
+
+    // File format:
+    //   4 header bytes = "SPV2"
+    //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
+    //   32 bytes for the hash of the chain head
+    //   4 bytes with the number of headers the ring was created with
+    //
+    // For each header (148 bytes)
+    //   32 bytes hash of the header
+    //   32 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    //
+    // For each main chain slot (32 bytes), indexed by height modulo the number of headers
+    //   32 bytes hash of the main chain block at that height
+    protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE_V2;
+    protected static final int MAIN_CHAIN_RECORD_SIZE = 32;
+
+    private static final int RING_CURSOR_OFFSET = 4;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int NUM_HEADERS_OFFSET = 40;
+
+    private static final byte[] EMPTY_HASH = new byte[32];
+
+    protected volatile MappedByteBuffer buffer;
+    protected final int numHeaders;
+    protected final NetworkParameters params;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    // Maps every hash held in the ring to the offset of its record. It is rebuilt from the hashes on disk when the
+    // store is opened, so a lookup never needs to scan the ring.
+    private final Map<Sha256Hash, Integer> recordIndex = new HashMap<Sha256Hash, Integer>();
+    // MMapping a file in Java gives us a ByteBuffer rather than objects, and decoding a header involves a copy and a
+    // parse. Keep the most recently used blocks decoded, sized slightly above a difficulty transition period.
+    private final Map<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > 2050;
+        }
+    };
+    private StoredBlock lastChainHead = null;
+
+    // Used to stop other applications/processes from opening the store.
+    private FileLock fileLock = null;
+    private RandomAccessFile randomAccessFile = null;
+
+    /**
+     * Creates and initializes an SPV block store holding {@link #DEFAULT_NUM_HEADERS} headers. Will create the given
+     * file if it's missing. This operation will block on disk.
+     */
+    public BtcSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that can hold a given amount of headers. Will create the given file
+     * if it's missing. An existing file must have been created with the same capacity. This operation will block on
+     * disk.
+     */
+    public BtcSPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
+        checkNotNull(file);
+        checkArgument(numHeaders > 0, "numHeaders must be positive");
+        checkArgument(getFileSize(numHeaders) <= Integer.MAX_VALUE, "Too many headers to map: %s", numHeaders);
+        this.params = checkNotNull(params);
+        this.numHeaders = numHeaders;
+        try {
+            boolean exists = file.exists();
+            // Set up the backing file.
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            long fileSize = getFileSize(numHeaders);
+            if (!exists) {
+                log.info("Creating new SPV block chain file " + file);
+                randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() != fileSize) {
+                throw new BlockStoreException("File size on disk does not match expected size: " +
+                        randomAccessFile.length() + " vs " + fileSize);
+            }
+
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+
+            // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
+            // efficient times, which may mean that until the map is deallocated the data on disk is randomly
+            // inconsistent. However the only process accessing it is us, via this mapping, so our own view will
+            // always be correct.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            // Check or initialize the header bytes to ensure we don't try to open some random file.
+            if (exists) {
+                byte[] header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (buffer.getInt(NUM_HEADERS_OFFSET) != numHeaders)
+                    throw new BlockStoreException("Store was created for " + buffer.getInt(NUM_HEADERS_OFFSET) +
+                            " headers, not " + numHeaders);
+                rebuildIndex();
+            } else {
+                initNewStore();
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(NUM_HEADERS_OFFSET, numHeaders);
+        lock.lock();
+        try {
+            setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+        } finally {
+            lock.unlock();
+        }
+        // Insert the genesis block.
+        try {
+            BtcBlock genesis = params.getGenesisBlock().cloneAsHeader();
+            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWorkValue(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void rebuildIndex() {
+        lock.lock();
+        try {
+            byte[] scratch = new byte[32];
+            for (int cursor = FILE_PROLOGUE_BYTES; cursor < getRingEnd(); cursor += RECORD_SIZE) {
+                buffer.position(cursor);
+                buffer.get(scratch);
+                if (!Arrays.equals(scratch, EMPTY_HASH))
+                    recordIndex.put(Sha256Hash.wrap(scratch.clone()), cursor);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the size in bytes of the file that is used to store the given amount of headers. */
+    public static long getFileSize(int numHeaders) {
+        return FILE_PROLOGUE_BYTES + (long) (RECORD_SIZE + MAIN_CHAIN_RECORD_SIZE) * numHeaders;
+    }
+
+    private int getRingEnd() {
+        return FILE_PROLOGUE_BYTES + RECORD_SIZE * numHeaders;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHeader().getHash();
+            Integer existing = recordIndex.get(hash);
+            int cursor;
+            if (existing != null) {
+                // Overwrite in place rather than keeping two copies of the same header in the ring.
+                cursor = existing;
+            } else {
+                cursor = getRingCursor(buffer);
+                if (cursor == getRingEnd()) {
+                    // Wrapped around.
+                    cursor = FILE_PROLOGUE_BYTES;
+                }
+                evictRecordAt(buffer, cursor);
+                setRingCursor(buffer, cursor + RECORD_SIZE);
+            }
+            buffer.position(cursor);
+            buffer.put(hash.getBytes());
+            block.serializeCompactV2(buffer);
+            recordIndex.put(hash, cursor);
+            blockCache.put(hash, block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictRecordAt(ByteBuffer buffer, int cursor) {
+        byte[] scratch = new byte[32];
+        buffer.position(cursor);
+        buffer.get(scratch);
+        if (Arrays.equals(scratch, EMPTY_HASH))
+            return;
+        Sha256Hash evicted = Sha256Hash.wrap(scratch);
+        recordIndex.remove(evicted);
+        blockCache.remove(evicted);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null)
+                return cacheHit;
+            Integer cursor = recordIndex.get(hash);
+            if (cursor == null)
+                return null;
+            buffer.position(cursor + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompactV2(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (lastChainHead == null) {
+                byte[] headHash = new byte[32];
+                buffer.position(CHAIN_HEAD_OFFSET);
+                buffer.get(headHash);
+                Sha256Hash hash = Sha256Hash.wrap(headHash);
+                StoredBlock block = get(hash);
+                if (block == null)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+                lastChainHead = block;
+            }
+            return lastChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            lastChainHead = chainHead;
+            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            buffer.position(CHAIN_HEAD_OFFSET);
+            buffer.put(headHash);
+            setMainChainBlock(chainHead.getHeight(), chainHead.getHeader().getHash());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<StoredBlock> getInMainchain(int height) {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null || height < 0) {
+            return Optional.empty();
+        }
+
+        lock.lock();
+        try {
+            // Slots above the chain head may still hold what's left of a longer branch after a re-org.
+            if (height > getChainHead().getHeight()) {
+                return Optional.empty();
+            }
+            byte[] hashBytes = new byte[32];
+            buffer.position(getMainChainSlot(height));
+            buffer.get(hashBytes);
+            if (Arrays.equals(hashBytes, EMPTY_HASH)) {
+                return Optional.empty();
+            }
+            StoredBlock block = get(Sha256Hash.wrap(hashBytes));
+            // The slot is shared by every height with the same remainder, so make sure it's the one we asked for.
+            if (block == null || block.getHeight() != height) {
+                return Optional.empty();
+            }
+            return Optional.of(block);
+        } catch (BlockStoreException e) {
+            return Optional.empty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setMainChainBlock(int height, Sha256Hash blockHash) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        checkArgument(height >= 0, "Negative height: %s", height);
+
+        lock.lock();
+        try {
+            buffer.position(getMainChainSlot(height));
+            buffer.put(blockHash.getBytes());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getMainChainSlot(int height) {
+        return getRingEnd() + (height % numHeaders) * MAIN_CHAIN_RECORD_SIZE;
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            recordIndex.clear();
+            blockCache.clear();
+            lastChainHead = null;
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private int getRingCursor(ByteBuffer buffer) {
+        int c = buffer.getInt(RING_CURSOR_OFFSET);
+        checkState(c >= FILE_PROLOGUE_BYTES, "Integer overflow");
+        return c;
+    }
+
+    private void setRingCursor(ByteBuffer buffer, int newCursor) {
+        checkArgument(newCursor >= 0);
+        buffer.putInt(RING_CURSOR_OFFSET, newCursor);
+    }
+}
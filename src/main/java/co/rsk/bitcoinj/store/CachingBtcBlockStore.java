@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps the blocks of another {@link BtcBlockStore} in memory, so the lookups done around the chain head, such as
+ * difficulty transitions, median time past or re-organize checks, don't go to a slower persistent store.<p>
+ *
+ * Blocks are kept in a {@link TinyLfuCache} bounded both in number of blocks and in total weight, an estimate of their
+ * size in bytes. The main chain hashes of the most recent heights are kept too, as well as the hashes recently looked
+ * up and not found, which are usually the parents of orphan blocks and new blocks being checked for duplicates.<p>
+ *
+ * Writes go through to the wrapped store right away. If it is a {@link BatchedBtcBlockStore} batches are passed on,
+ * and what was cached during a batch that gets aborted is dropped. The wrapped store must not be written to other than
+ * through this one, or the cache could serve stale blocks and miss new ones.
+ */
+public class CachingBtcBlockStore implements BatchedBtcBlockStore {
+    /** Default number of blocks kept in memory, enough to look back further than any reasonable re-organize. */
+    public static final int DEFAULT_MAX_BLOCKS = 20000;
+    /** Default bound on the estimated size of the blocks kept in memory. */
+    public static final long DEFAULT_MAX_WEIGHT = 32 * 1024 * 1024;
+    /** Default number of hashes remembered as not in the store. */
+    public static final int DEFAULT_MAX_ABSENT = 1000;
+
+    // Estimated size of a stored header with its objects and cache entry.
+    private static final int HEADER_WEIGHT = 400;
+
+    private final BtcBlockStore delegate;
+    private final TinyLfuCache<Sha256Hash, StoredBlock> blocks;
+    private final MainChainHashIndex mainChain;
+    private final Map<Sha256Hash, Boolean> absent;
+    // Blocks cached during the current batch, to forget if it's aborted.
+    private final List<Sha256Hash> putInBatch = new ArrayList<Sha256Hash>();
+    private boolean inBatch;
+
+    /** Wraps the given store with the default cache bounds. */
+    public CachingBtcBlockStore(BtcBlockStore delegate) {
+        this(delegate, DEFAULT_MAX_BLOCKS, DEFAULT_MAX_WEIGHT, DEFAULT_MAX_ABSENT);
+    }
+
+    /**
+     * Wraps the given store, keeping at most {@code maxBlocks} blocks weighing {@code maxWeight} bytes, the main chain
+     * hashes of the highest {@code maxBlocks} heights and {@code maxAbsent} hashes known not to be in the store.
+     */
+    public CachingBtcBlockStore(BtcBlockStore delegate, int maxBlocks, long maxWeight, final int maxAbsent) {
+        checkArgument(maxAbsent >= 0, "maxAbsent must not be negative: %s", maxAbsent);
+        this.delegate = checkNotNull(delegate);
+        this.blocks = new TinyLfuCache<Sha256Hash, StoredBlock>(maxBlocks, maxWeight);
+        this.mainChain = new MainChainHashIndex(maxBlocks);
+        this.absent = new LinkedHashMap<Sha256Hash, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                return size() > maxAbsent;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        delegate.put(block);
+        Sha256Hash hash = block.getHeader().getHash();
+        absent.remove(hash);
+        blocks.put(hash, block, weigh(block));
+        if (inBatch)
+            putInBatch.add(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = blocks.get(hash);
+        if (block != null)
+            return block;
+        synchronized (this) {
+            if (absent.containsKey(hash))
+                return null;
+            block = delegate.get(hash);
+            if (block == null)
+                absent.put(hash, Boolean.TRUE);
+            else
+                blocks.put(hash, block, weigh(block));
+            return block;
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return delegate.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        delegate.setChainHead(chainHead);
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        mainChain.truncateAbove(chainHead.getHeight());
+        mainChain.set(chainHead.getHeight(), hash);
+        absent.remove(hash);
+        blocks.put(hash, chainHead, weigh(chainHead));
+    }
+
+    @Override
+    public Optional<StoredBlock> getInMainchain(int height) {
+        Sha256Hash hash = mainChain.get(height);
+        if (hash != null) {
+            StoredBlock block = blocks.get(hash);
+            if (block != null)
+                return Optional.of(block);
+        }
+        synchronized (this) {
+            Optional<StoredBlock> block = delegate.getInMainchain(height);
+            if (block.isPresent()) {
+                Sha256Hash blockHash = block.get().getHeader().getHash();
+                mainChain.set(height, blockHash);
+                blocks.put(blockHash, block.get(), weigh(block.get()));
+            }
+            return block;
+        }
+    }
+
+    @Override
+    public synchronized void setMainChainBlock(int height, Sha256Hash blockHash) throws BlockStoreException {
+        delegate.setMainChainBlock(height, blockHash);
+        mainChain.set(height, blockHash);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (delegate instanceof BatchedBtcBlockStore)
+            ((BatchedBtcBlockStore) delegate).beginDatabaseBatchWrite();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = false;
+        try {
+            if (delegate instanceof BatchedBtcBlockStore)
+                ((BatchedBtcBlockStore) delegate).commitDatabaseBatchWrite();
+            putInBatch.clear();
+        } catch (BlockStoreException e) {
+            // The batch is lost, as if aborted.
+            forgetBatch();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = false;
+        try {
+            if (delegate instanceof BatchedBtcBlockStore)
+                ((BatchedBtcBlockStore) delegate).abortDatabaseBatchWrite();
+        } finally {
+            forgetBatch();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        blocks.invalidateAll();
+        mainChain.clear();
+        absent.clear();
+        delegate.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return delegate.getParams();
+    }
+
+    /** Returns the number of blocks kept in memory. */
+    public int getCachedBlockCount() {
+        return blocks.size();
+    }
+
+    private void forgetBatch() {
+        for (Sha256Hash hash : putInBatch)
+            blocks.invalidate(hash);
+        putInBatch.clear();
+        // The batch may have moved the main chain around, start over from the wrapped store.
+        mainChain.clear();
+    }
+
+    private static long weigh(StoredBlock block) {
+        BtcBlock header = block.getHeader();
+        if (header.getTransactions() == null)
+            return HEADER_WEIGHT;
+        return HEADER_WEIGHT + header.unsafeBitcoinSerialize().length;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingBtcBlockStore{" + blocks + ", delegate=" + delegate + '}';
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A block store backed by an H2 database accessed through JDBC, holding every header it's given in a single table with
+ * a flag marking the main chain.<p>
+ *
+ * The table is keyed by block hash and indexed by (height, is_main), so both {@link #get(Sha256Hash)} and
+ * {@link #getInMainchain(int)} are a single indexed lookup. Every statement is prepared once, when the store is opened,
+ * and reused. H2 is an optional dependency of this library, add it to use this store.<p>
+ *
+ * Writes made during a batch (see {@link BatchedBtcBlockStore}) are kept in memory, visible to readers of this store,
+ * and applied with JDBC batch updates in a single database transaction when it is committed. As
+ * {@link co.rsk.bitcoinj.core.BtcBlockChain} groups the writes of a connected block, or of a whole re-organize, with
+ * the chain head change, the database always holds a consistent chain. Writes made outside a batch are committed
+ * right away.<p>
+ *
+ * This class is thread safe, but uses a single connection so database access is serialized.
+ */
+public class H2BtcBlockStore implements BatchedBtcBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(H2BtcBlockStore.class);
+
+    private static final String DRIVER = "org.h2.Driver";
+    private static final String CHAIN_HEAD_SETTING = "chainhead";
+
+    private static final String CREATE_HEADERS_TABLE = "CREATE TABLE IF NOT EXISTS headers ("
+            + "hash BINARY(32) NOT NULL, "
+            + "height INT NOT NULL, "
+            + "is_main BOOLEAN NOT NULL, "
+            + "chain_work BINARY(32) NOT NULL, "
+            + "header BINARY(80) NOT NULL, "
+            + "CONSTRAINT headers_pk PRIMARY KEY (hash))";
+    private static final String CREATE_HEIGHT_INDEX =
+            "CREATE INDEX IF NOT EXISTS headers_height_main_idx ON headers (height, is_main)";
+    private static final String CREATE_SETTINGS_TABLE = "CREATE TABLE IF NOT EXISTS settings ("
+            + "name VARCHAR(32) NOT NULL, "
+            + "value BINARY(32), "
+            + "CONSTRAINT settings_pk PRIMARY KEY (name))";
+
+    private static final String SELECT_HEADER = "SELECT chain_work, height, header FROM headers WHERE hash = ?";
+    private static final String SELECT_MAIN_CHAIN_HEADER =
+            "SELECT chain_work, height, header FROM headers WHERE height = ? AND is_main = TRUE";
+    private static final String INSERT_HEADER =
+            "INSERT INTO headers (hash, height, is_main, chain_work, header) VALUES (?, ?, FALSE, ?, ?)";
+    private static final String CLEAR_MAIN_CHAIN_AT =
+            "UPDATE headers SET is_main = FALSE WHERE height = ? AND is_main = TRUE";
+    private static final String CLEAR_MAIN_CHAIN_ABOVE =
+            "UPDATE headers SET is_main = FALSE WHERE height > ? AND is_main = TRUE";
+    private static final String SET_MAIN_CHAIN = "UPDATE headers SET is_main = TRUE WHERE hash = ?";
+    private static final String SELECT_SETTING = "SELECT value FROM settings WHERE name = ?";
+    private static final String MERGE_SETTING = "MERGE INTO settings (name, value) KEY (name) VALUES (?, ?)";
+
+    private static final int CHAIN_WORK_OFFSET = 0;
+    private static final int HEIGHT_OFFSET = 32;
+    private static final int HEADER_OFFSET = 36;
+
+    private final NetworkParameters params;
+    private Connection connection;
+
+    private final PreparedStatement selectHeader;
+    private final PreparedStatement selectMainChainHeader;
+    private final PreparedStatement insertHeader;
+    private final PreparedStatement clearMainChainAt;
+    private final PreparedStatement clearMainChainAbove;
+    private final PreparedStatement setMainChain;
+    private final PreparedStatement selectSetting;
+    private final PreparedStatement mergeSetting;
+
+    // Writes not applied to the database yet. Blocks are inserted in the order they were put.
+    private final Map<Sha256Hash, StoredBlock> pendingBlocks = new LinkedHashMap<Sha256Hash, StoredBlock>();
+    private final TreeMap<Integer, Sha256Hash> pendingMainChain = new TreeMap<Integer, Sha256Hash>();
+    @Nullable private StoredBlock pendingChainHead;
+    private StoredBlock chainHead;
+    private boolean inBatch;
+
+    /**
+     * Opens the H2 database with the given name, usually a file path without extension, creating and initializing it
+     * with the genesis block if it doesn't exist.
+     */
+    public H2BtcBlockStore(NetworkParameters params, String dbName) throws BlockStoreException {
+        this(params, dbName, null, null);
+    }
+
+    /** Same as {@link #H2BtcBlockStore(NetworkParameters, String)}, with the given credentials. */
+    public H2BtcBlockStore(NetworkParameters params, String dbName, @Nullable String username,
+                           @Nullable String password) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        checkNotNull(dbName);
+        String connectionUrl = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000;DB_CLOSE_ON_EXIT=FALSE";
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException e) {
+            throw new BlockStoreException("H2 database driver not found in the classpath", e);
+        }
+        try {
+            connection = DriverManager.getConnection(connectionUrl, username, password);
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate(CREATE_HEADERS_TABLE);
+                statement.executeUpdate(CREATE_HEIGHT_INDEX);
+                statement.executeUpdate(CREATE_SETTINGS_TABLE);
+            } finally {
+                statement.close();
+            }
+            connection.setAutoCommit(false);
+            selectHeader = connection.prepareStatement(SELECT_HEADER);
+            selectMainChainHeader = connection.prepareStatement(SELECT_MAIN_CHAIN_HEADER);
+            insertHeader = connection.prepareStatement(INSERT_HEADER);
+            clearMainChainAt = connection.prepareStatement(CLEAR_MAIN_CHAIN_AT);
+            clearMainChainAbove = connection.prepareStatement(CLEAR_MAIN_CHAIN_ABOVE);
+            setMainChain = connection.prepareStatement(SET_MAIN_CHAIN);
+            selectSetting = connection.prepareStatement(SELECT_SETTING);
+            mergeSetting = connection.prepareStatement(MERGE_SETTING);
+        } catch (SQLException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        }
+        try {
+            initChainHead();
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private synchronized void initChainHead() throws BlockStoreException {
+        byte[] headHash = readSetting(CHAIN_HEAD_SETTING);
+        if (headHash != null) {
+            chainHead = get(Sha256Hash.wrap(headHash));
+            if (chainHead == null)
+                throw new BlockStoreException("Corrupt block store: chain head not found");
+            return;
+        }
+        // Brand new store, start with the genesis block.
+        BtcBlock genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWorkValue(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    /** Adds the block, unless the store already has it: blocks with the same hash are the same. */
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = block.getHeader().getHash();
+        if (get(hash) != null)
+            return;
+        pendingBlocks.put(hash, block);
+        commitUnlessInBatch();
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        StoredBlock pending = pendingBlocks.get(hash);
+        if (pending != null)
+            return pending;
+        try {
+            selectHeader.setBytes(1, hash.getBytes());
+            return readBlock(selectHeader);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return currentChainHead();
+    }
+
+    /**
+     * Sets the chain head. Main chain flags above the new head, left over from a longer chain that was re-organized
+     * away, are cleared in the same transaction.
+     */
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        pendingMainChain.tailMap(chainHead.getHeight(), false).clear();
+        pendingMainChain.put(chainHead.getHeight(), chainHead.getHeader().getHash());
+        pendingChainHead = chainHead;
+        commitUnlessInBatch();
+    }
+
+    @Override
+    public synchronized Optional<StoredBlock> getInMainchain(int height) {
+        StoredBlock head = connection == null ? null : currentChainHead();
+        if (head == null || height < 0 || height > head.getHeight())
+            return Optional.empty();
+        try {
+            Sha256Hash hash = pendingMainChain.get(height);
+            if (hash != null)
+                return Optional.ofNullable(get(hash));
+            selectMainChainHeader.setInt(1, height);
+            return Optional.ofNullable(readBlock(selectMainChainHeader));
+        } catch (BlockStoreException | SQLException e) {
+            log.warn("Could not read the main chain block at height " + height, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public synchronized void setMainChainBlock(int height, Sha256Hash blockHash) throws BlockStoreException {
+        checkOpen();
+        pendingMainChain.put(height, blockHash);
+        commitUnlessInBatch();
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = false;
+        commit();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = false;
+        clearPending();
+    }
+
+    /** Drops the writes of a batch still in progress, if any, and closes the database connection. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (connection == null)
+            return;
+        inBatch = false;
+        clearPending();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            connection = null;
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private StoredBlock currentChainHead() {
+        return pendingChainHead != null ? pendingChainHead : chainHead;
+    }
+
+    private void commitUnlessInBatch() throws BlockStoreException {
+        if (!inBatch)
+            commit();
+    }
+
+    /**
+     * Applies the pending writes in one transaction: new blocks first, then main chain flags, cleared before being set
+     * so a height never ends up with two main chain blocks.
+     */
+    private void commit() throws BlockStoreException {
+        if (pendingBlocks.isEmpty() && pendingMainChain.isEmpty() && pendingChainHead == null)
+            return;
+        try {
+            if (!pendingBlocks.isEmpty()) {
+                ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+                for (Map.Entry<Sha256Hash, StoredBlock> entry : pendingBlocks.entrySet()) {
+                    buffer.clear();
+                    entry.getValue().serializeCompactV2(buffer);
+                    byte[] bytes = buffer.array();
+                    insertHeader.setBytes(1, entry.getKey().getBytes());
+                    insertHeader.setInt(2, entry.getValue().getHeight());
+                    insertHeader.setBytes(3, Arrays.copyOfRange(bytes, CHAIN_WORK_OFFSET, HEIGHT_OFFSET));
+                    insertHeader.setBytes(4, Arrays.copyOfRange(bytes, HEADER_OFFSET, bytes.length));
+                    insertHeader.addBatch();
+                }
+                insertHeader.executeBatch();
+            }
+            if (!pendingMainChain.isEmpty()) {
+                for (Map.Entry<Integer, Sha256Hash> entry : pendingMainChain.entrySet()) {
+                    clearMainChainAt.setInt(1, entry.getKey());
+                    clearMainChainAt.addBatch();
+                    setMainChain.setBytes(1, entry.getValue().getBytes());
+                    setMainChain.addBatch();
+                }
+                clearMainChainAt.executeBatch();
+                setMainChain.executeBatch();
+            }
+            StoredBlock newHead = pendingChainHead;
+            if (newHead != null) {
+                clearMainChainAbove.setInt(1, newHead.getHeight());
+                clearMainChainAbove.executeUpdate();
+                mergeSetting.setString(1, CHAIN_HEAD_SETTING);
+                mergeSetting.setBytes(2, newHead.getHeader().getHash().getBytes());
+                mergeSetting.executeUpdate();
+            }
+            connection.commit();
+            if (newHead != null)
+                chainHead = newHead;
+        } catch (SQLException e) {
+            rollbackQuietly();
+            throw new BlockStoreException(e);
+        } finally {
+            clearPending();
+        }
+    }
+
+    private void clearPending() {
+        pendingBlocks.clear();
+        pendingMainChain.clear();
+        pendingChainHead = null;
+        try {
+            insertHeader.clearBatch();
+            clearMainChainAt.clearBatch();
+            setMainChain.clearBatch();
+        } catch (SQLException e) {
+            log.warn("Could not clear the statement batches", e);
+        }
+    }
+
+    @Nullable
+    private StoredBlock readBlock(PreparedStatement query) throws SQLException {
+        ResultSet results = query.executeQuery();
+        try {
+            if (!results.next())
+                return null;
+            ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+            buffer.put(results.getBytes(1));
+            buffer.putInt(results.getInt(2));
+            buffer.put(results.getBytes(3));
+            buffer.flip();
+            return StoredBlock.deserializeCompactV2(params, buffer);
+        } finally {
+            results.close();
+        }
+    }
+
+    @Nullable
+    private byte[] readSetting(String name) throws BlockStoreException {
+        try {
+            selectSetting.setString(1, name);
+            ResultSet results = selectSetting.executeQuery();
+            try {
+                return results.next() ? results.getBytes(1) : null;
+            } finally {
+                results.close();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (connection == null) throw new BlockStoreException("Store is closed");
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            log.warn("Could not roll back the block store transaction", e);
+        }
+    }
+
+    private void closeQuietly() {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Could not close the block store connection", e);
+        } finally {
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A block store backed by LevelDB, holding every header it's given along with an index of the main chain by height,
+ * so it isn't limited in size like {@link BtcSPVBlockStore} or {@link BtcMemoryBlockStore}.<p>
+ *
+ * Writes made during a batch (see {@link BatchedBtcBlockStore}) are collected in a LevelDB write batch and applied in
+ * a single atomic write when it is committed. As {@link co.rsk.bitcoinj.core.BtcBlockChain} groups the writes of a
+ * connected block, or of a whole re-organize, with the chain head change, the database always holds a consistent
+ * chain even after a crash. Writes that change the chain head are synced to disk. Pending writes are visible to
+ * readers of this store right away.<p>
+ *
+ * Keys are a one byte prefix followed by a block hash for blocks, or by a big endian height for the main chain.
+ * Blocks are stored in the format of {@link StoredBlock#serializeCompactV2(ByteBuffer)}.
+ */
+public class LevelDBBtcBlockStore implements BatchedBtcBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LevelDBBtcBlockStore.class);
+
+    private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes(StandardCharsets.US_ASCII);
+    private static final byte BLOCK_PREFIX = 'b';
+    private static final byte MAIN_CHAIN_PREFIX = 'm';
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final DBFactory dbFactory;
+    private volatile DB db;
+
+    // Writes not applied to the database yet, and what they will write, for readers.
+    @Nullable private WriteBatch pendingBatch;
+    private final Map<Sha256Hash, StoredBlock> pendingBlocks = new ConcurrentHashMap<Sha256Hash, StoredBlock>();
+    private final Map<Integer, Sha256Hash> pendingMainChain = new ConcurrentHashMap<Integer, Sha256Hash>();
+    @Nullable private volatile StoredBlock pendingChainHead;
+    private volatile StoredBlock chainHead;
+    private boolean inBatch;
+
+    /**
+     * Opens the LevelDB database in the given directory, creating and initializing it with the genesis block if it
+     * doesn't exist. Uses the native LevelDB library bundled with leveldbjni.
+     */
+    public LevelDBBtcBlockStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this(params, directory, JniDBFactory.factory);
+    }
+
+    /** Same as {@link #LevelDBBtcBlockStore(NetworkParameters, File)}, with the given LevelDB implementation. */
+    public LevelDBBtcBlockStore(NetworkParameters params, File directory, DBFactory dbFactory)
+            throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.dbFactory = checkNotNull(dbFactory);
+        Options options = new Options();
+        options.createIfMissing(true);
+        try {
+            tryOpen(options);
+        } catch (IOException e) {
+            try {
+                log.warn("Could not open the block store, trying to repair it", e);
+                dbFactory.repair(directory, options);
+                tryOpen(options);
+            } catch (IOException e1) {
+                throw new BlockStoreException(e1);
+            }
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private synchronized void tryOpen(Options options) throws IOException, BlockStoreException {
+        db = dbFactory.open(directory, options);
+        byte[] headHash = db.get(CHAIN_HEAD_KEY);
+        if (headHash != null) {
+            chainHead = get(Sha256Hash.wrap(headHash));
+            if (chainHead == null)
+                throw new BlockStoreException("Corrupt block store: chain head not found");
+            return;
+        }
+        // Brand new store, start with the genesis block.
+        BtcBlock genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWorkValue(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = block.getHeader().getHash();
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+        block.serializeCompactV2(buffer);
+        batch().put(blockKey(hash), buffer.array());
+        pendingBlocks.put(hash, block);
+        commitUnlessInBatch();
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock pending = pendingBlocks.get(hash);
+        if (pending != null)
+            return pending;
+        try {
+            byte[] bytes = checkOpen().get(blockKey(hash));
+            if (bytes == null)
+                return null;
+            return StoredBlock.deserializeCompactV2(params, ByteBuffer.wrap(bytes));
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return currentChainHead();
+    }
+
+    /**
+     * Sets the chain head. Main chain entries above the new head, left over from a longer chain that was re-organized
+     * away, are removed in the same write.
+     */
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        WriteBatch batch = batch();
+        StoredBlock previousHead = currentChainHead();
+        if (previousHead != null) {
+            for (int height = chainHead.getHeight() + 1; height <= previousHead.getHeight(); height++) {
+                batch.delete(mainChainKey(height));
+                pendingMainChain.remove(height);
+            }
+        }
+        batch.put(mainChainKey(chainHead.getHeight()), hash.getBytes());
+        pendingMainChain.put(chainHead.getHeight(), hash);
+        batch.put(CHAIN_HEAD_KEY, hash.getBytes());
+        pendingChainHead = chainHead;
+        commitUnlessInBatch();
+    }
+
+    @Override
+    public Optional<StoredBlock> getInMainchain(int height) {
+        StoredBlock head = currentChainHead();
+        if (db == null || head == null || height < 0 || height > head.getHeight())
+            return Optional.empty();
+        try {
+            Sha256Hash hash = pendingMainChain.get(height);
+            if (hash == null) {
+                byte[] hashBytes = checkOpen().get(mainChainKey(height));
+                if (hashBytes == null)
+                    return Optional.empty();
+                hash = Sha256Hash.wrap(hashBytes);
+            }
+            return Optional.ofNullable(get(hash));
+        } catch (BlockStoreException | DBException e) {
+            log.warn("Could not read the main chain block at height " + height, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public synchronized void setMainChainBlock(int height, Sha256Hash blockHash) throws BlockStoreException {
+        checkOpen();
+        batch().put(mainChainKey(height), blockHash.getBytes());
+        pendingMainChain.put(height, blockHash);
+        commitUnlessInBatch();
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = false;
+        commit();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = false;
+        discard();
+    }
+
+    /** Drops the writes of a batch still in progress, if any, and closes the database. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (db == null)
+            return;
+        inBatch = false;
+        discard();
+        try {
+            db.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            db = null;
+        }
+    }
+
+    /** Closes the store and deletes the database. */
+    public synchronized void destroy() throws BlockStoreException {
+        close();
+        try {
+            dbFactory.destroy(directory, new Options());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private WriteBatch batch() {
+        if (pendingBatch == null)
+            pendingBatch = db.createWriteBatch();
+        return pendingBatch;
+    }
+
+    private StoredBlock currentChainHead() {
+        StoredBlock pending = pendingChainHead;
+        return pending != null ? pending : chainHead;
+    }
+
+    private void commitUnlessInBatch() throws BlockStoreException {
+        if (!inBatch)
+            commit();
+    }
+
+    private void commit() throws BlockStoreException {
+        if (pendingBatch == null)
+            return;
+        StoredBlock newHead = pendingChainHead;
+        try {
+            db.write(pendingBatch, new WriteOptions().sync(newHead != null));
+        } catch (DBException e) {
+            discard();
+            throw new BlockStoreException(e);
+        }
+        if (newHead != null)
+            chainHead = newHead;
+        // Only now that the database has them, so readers always find the blocks in one place or the other.
+        clearPending();
+    }
+
+    private void discard() {
+        if (pendingBatch != null)
+            clearPending();
+    }
+
+    private void clearPending() {
+        pendingChainHead = null;
+        pendingBlocks.clear();
+        pendingMainChain.clear();
+        try {
+            pendingBatch.close();
+        } catch (IOException e) {
+            log.warn("Could not release a write batch", e);
+        } finally {
+            pendingBatch = null;
+        }
+    }
+
+    private DB checkOpen() throws BlockStoreException {
+        DB db = this.db;
+        if (db == null) throw new BlockStoreException("Store is closed");
+        return db;
+    }
+
+    private static byte[] blockKey(Sha256Hash hash) {
+        byte[] key = new byte[1 + Sha256Hash.LENGTH];
+        key[0] = BLOCK_PREFIX;
+        System.arraycopy(hash.getBytes(), 0, key, 1, Sha256Hash.LENGTH);
+        return key;
+    }
+
+    private static byte[] mainChainKey(int height) {
+        return ByteBuffer.allocate(5).put(MAIN_CHAIN_PREFIX).putInt(height).array();
+    }
+}
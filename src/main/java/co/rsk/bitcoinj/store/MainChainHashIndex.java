@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Maps main chain heights to block hashes. The hashes are packed in a single growable byte array indexed by
+ * {@code height - baseHeight}, so a lookup is an offset computation and a 32 byte copy.<p>
+ *
+ * The index covers one contiguous range of heights. Heights inside the range that were never set read as unknown.
+ * When created with a retention limit only the highest {@code retention} heights are kept; older ones are dropped as
+ * the chain grows. On a re-organize the new branch is simply written over the old one, and
+ * {@link #truncateAbove(int)} drops whatever the old branch had above the new chain head.<p>
+ *
+ * This class is thread safe.
+ */
+final class MainChainHashIndex {
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Maximum number of heights kept, or zero to keep them all.
+    private final int retention;
+    private byte[] hashes;
+    // Position, in hashes, of the entry for baseHeight.
+    private int offset;
+    private int baseHeight;
+    private int count;
+
+    /** Creates an index that keeps every height it's given. */
+    MainChainHashIndex() {
+        this(0);
+    }
+
+    /** Creates an index that keeps at most the highest {@code retention} heights, or all of them if zero. */
+    MainChainHashIndex(int retention) {
+        checkArgument(retention >= 0, "Negative retention: %s", retention);
+        this.retention = retention;
+        int capacity = retention > 0 ? Math.min(retention, INITIAL_CAPACITY) : INITIAL_CAPACITY;
+        this.hashes = new byte[capacity * HASH_LENGTH];
+    }
+
+    /** Returns the main chain hash at the given height, or null if it isn't known. */
+    @Nullable
+    synchronized Sha256Hash get(int height) {
+        if (height < baseHeight || height >= baseHeight + count)
+            return null;
+        int from = (offset + height - baseHeight) * HASH_LENGTH;
+        if (isEmpty(hashes, from))
+            return null;
+        return Sha256Hash.wrap(Arrays.copyOfRange(hashes, from, from + HASH_LENGTH));
+    }
+
+    /** Records the main chain hash at the given height, replacing any previous one. */
+    synchronized void set(int height, Sha256Hash hash) {
+        checkArgument(height >= 0, "Negative height: %s", height);
+        if (count == 0) {
+            baseHeight = height;
+            offset = 0;
+        } else if (height < baseHeight) {
+            if (retention > 0 && getEndHeight() - height > retention)
+                return; // Older than the retained window.
+            growFront(baseHeight - height);
+        } else if (height >= getEndHeight() && retention > 0) {
+            dropBelow(height + 1 - retention);
+            if (count == 0) {
+                baseHeight = height;
+                offset = 0;
+            }
+        }
+        if (height >= getEndHeight())
+            growBack(height + 1 - getEndHeight());
+        System.arraycopy(hash.getBytes(), 0, hashes, (offset + height - baseHeight) * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    /** Forgets every height above the given one, typically the height of a new chain head. */
+    synchronized void truncateAbove(int height) {
+        if (height < baseHeight)
+            count = 0;
+        else if (height + 1 < getEndHeight())
+            count = height + 1 - baseHeight;
+    }
+
+    /** Forgets every height. */
+    synchronized void clear() {
+        count = 0;
+        offset = 0;
+    }
+
+    private int getEndHeight() {
+        return baseHeight + count;
+    }
+
+    private int capacity() {
+        return hashes.length / HASH_LENGTH;
+    }
+
+    private void dropBelow(int height) {
+        if (height <= baseHeight)
+            return;
+        if (height >= getEndHeight()) {
+            count = 0;
+            offset = 0;
+            return;
+        }
+        int dropped = height - baseHeight;
+        offset += dropped;
+        count -= dropped;
+        baseHeight = height;
+    }
+
+    private void growBack(int entries) {
+        int needed = count + entries;
+        if (offset + needed > capacity()) {
+            if (needed <= capacity()) {
+                // Enough room once the entries dropped at the front are reclaimed.
+                System.arraycopy(hashes, offset * HASH_LENGTH, hashes, 0, count * HASH_LENGTH);
+            } else {
+                byte[] grown = new byte[newCapacity(needed) * HASH_LENGTH];
+                System.arraycopy(hashes, offset * HASH_LENGTH, grown, 0, count * HASH_LENGTH);
+                hashes = grown;
+            }
+            offset = 0;
+        }
+        // The region may hold hashes of a previously truncated branch.
+        Arrays.fill(hashes, (offset + count) * HASH_LENGTH, (offset + needed) * HASH_LENGTH, (byte) 0);
+        count = needed;
+    }
+
+    private void growFront(int entries) {
+        int needed = count + entries;
+        if (offset >= entries) {
+            offset -= entries;
+            Arrays.fill(hashes, offset * HASH_LENGTH, (offset + entries) * HASH_LENGTH, (byte) 0);
+        } else {
+            byte[] grown = new byte[newCapacity(needed) * HASH_LENGTH];
+            System.arraycopy(hashes, offset * HASH_LENGTH, grown, entries * HASH_LENGTH, count * HASH_LENGTH);
+            hashes = grown;
+            offset = 0;
+        }
+        baseHeight -= entries;
+        count = needed;
+    }
+
+    private int newCapacity(int needed) {
+        int doubled = capacity() * 2;
+        if (retention > 0)
+            doubled = Math.min(doubled, retention);
+        return Math.max(doubled, needed);
+    }
+
+    private static boolean isEmpty(byte[] bytes, int from) {
+        for (int i = from; i < from + HASH_LENGTH; i++) {
+            if (bytes[i] != 0)
+                return false;
+        }
+        return true;
+    }
+}
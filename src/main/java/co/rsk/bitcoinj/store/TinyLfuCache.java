@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A cache bounded both by number of entries and by total weight, evicting with the W-TinyLFU policy.<p>
+ *
+ * New entries go to a small LRU window. When the window overflows its eldest entry becomes a candidate for the main
+ * area, which is a segmented LRU: entries start on probation and move to the protected segment when they are hit
+ * again. If the cache is full the candidate is only admitted if it was used more often than the eldest entry on
+ * probation, which is evicted in its place. Use frequencies, of cached and uncached keys alike, are estimated by a
+ * count-min sketch with 4 hash functions whose counters are halved periodically, so that old popularity fades.<p>
+ *
+ * The window lets bursts of new keys, like the blocks of a chain being synced, stay in the cache for a while, and the
+ * admission filter keeps them from flushing out the blocks that are looked up again and again.<p>
+ *
+ * This class is thread safe.
+ */
+final class TinyLfuCache<K, V> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final class Entry<V> {
+        V value;
+        long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final int maxWindowEntries;
+    private final int maxProtectedEntries;
+    private final FrequencySketch sketch;
+
+    // All in access order, eldest first.
+    private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> protectedSegment = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private long weight;
+
+    TinyLfuCache(int maxEntries, long maxWeight) {
+        checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+        checkArgument(maxWeight > 0, "maxWeight must be positive: %s", maxWeight);
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.maxWindowEntries = Math.max(1, maxEntries * WINDOW_PERCENT / 100);
+        this.maxProtectedEntries = (maxEntries - maxWindowEntries) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /** Returns the cached value for the key, or null. Either way, counts as a use of the key. */
+    @Nullable
+    synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+        Entry<V> entry = window.get(key);
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry == null)
+                    return null;
+                protect(key, entry);
+            }
+        }
+        return entry.value;
+    }
+
+    /** Caches a value with the given weight, replacing any previous one, then evicts entries as needed. */
+    synchronized void put(K key, V value, long weight) {
+        checkNotNull(value);
+        checkArgument(weight >= 0, "Negative weight: %s", weight);
+        Entry<V> entry = find(key);
+        if (entry != null) {
+            this.weight += weight - entry.weight;
+            entry.value = value;
+            entry.weight = weight;
+        } else {
+            sketch.increment(key.hashCode());
+            window.put(key, new Entry<V>(value, weight));
+            this.weight += weight;
+        }
+        evict();
+    }
+
+    synchronized void invalidate(K key) {
+        Entry<V> entry = window.remove(key);
+        if (entry == null)
+            entry = probation.remove(key);
+        if (entry == null)
+            entry = protectedSegment.remove(key);
+        if (entry != null)
+            weight -= entry.weight;
+    }
+
+    synchronized void invalidateAll() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        weight = 0;
+    }
+
+    synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    @Nullable
+    private Entry<V> find(K key) {
+        // Replacing a value counts as an access, the entry moves up in its segment.
+        Entry<V> entry = window.get(key);
+        if (entry == null)
+            entry = probation.get(key);
+        if (entry == null)
+            entry = protectedSegment.get(key);
+        return entry;
+    }
+
+    private void protect(K key, Entry<V> entry) {
+        protectedSegment.put(key, entry);
+        if (protectedSegment.size() > maxProtectedEntries) {
+            // The eldest protected entry gets another chance on probation.
+            Iterator<Map.Entry<K, Entry<V>>> eldest = protectedSegment.entrySet().iterator();
+            Map.Entry<K, Entry<V>> demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void evict() {
+        while (window.size() > maxWindowEntries) {
+            Iterator<Map.Entry<K, Entry<V>>> eldest = window.entrySet().iterator();
+            Map.Entry<K, Entry<V>> candidate = eldest.next();
+            eldest.remove();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+        // Entries heavy enough to overflow the cache on their own weight are dropped from the window too.
+        while (isOverflowing() && !window.isEmpty())
+            removeEldest(window);
+    }
+
+    /** Moves a candidate from the window to probation, if it's used more often than what it would evict. */
+    private void admit(K key, Entry<V> candidate) {
+        // The candidate is out of the window but still counts against the limits.
+        while (size() + 1 > maxEntries || weight > maxWeight) {
+            LinkedHashMap<K, Entry<V>> victims = probation.isEmpty() ? protectedSegment : probation;
+            if (victims.isEmpty()) {
+                weight -= candidate.weight;
+                return;
+            }
+            K victim = victims.keySet().iterator().next();
+            if (sketch.frequency(key.hashCode()) <= sketch.frequency(victim.hashCode())) {
+                weight -= candidate.weight;
+                return;
+            }
+            removeEldest(victims);
+        }
+        probation.put(key, candidate);
+    }
+
+    private boolean isOverflowing() {
+        return size() > maxEntries || weight > maxWeight;
+    }
+
+    private void removeEldest(LinkedHashMap<K, Entry<V>> segment) {
+        Iterator<Entry<V>> eldest = segment.values().iterator();
+        weight -= eldest.next().weight;
+        eldest.remove();
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters, 16 to a long, estimating how often each key was used. The 4 rows share one
+     * table. Once 10 uses per cache entry were recorded, every counter is halved.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            int entries = Integer.highestOneBit(Math.max(16, Math.min(maxEntries, 1 << 24)) - 1) << 1;
+            this.table = new long[entries / 4];
+            this.tableMask = table.length - 1;
+            this.sampleSize = 10 * entries;
+        }
+
+        /** Returns the estimated number of uses of the key, at most 15. */
+        int frequency(int keyHash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long hash = hash(keyHash, i);
+                frequency = Math.min(frequency, (int) ((table[indexOf(hash)] >>> offsetOf(hash)) & 0xf));
+            }
+            return frequency;
+        }
+
+        void increment(int keyHash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long hash = hash(keyHash, i);
+                int index = indexOf(hash);
+                int offset = offsetOf(hash);
+                if (((table[index] >>> offset) & 0xf) != 0xf) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions /= 2;
+        }
+
+        private static long hash(int keyHash, int row) {
+            long hash = (keyHash + SEEDS[row]) * SEEDS[row];
+            return hash ^ (hash >>> 32);
+        }
+
+        private int indexOf(long hash) {
+            return (int) hash & tableMask;
+        }
+
+        private static int offsetOf(long hash) {
+            return (int) (hash >>> 60) << 2;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TinyLfuCache{entries=" + size() + "/" + maxEntries + ", weight=" + weight + "/" + maxWeight +
+                ", window=" + window.size() + ", probation=" + probation.size() + ", protected=" +
+                protectedSegment.size() + '}';
+    }
+}
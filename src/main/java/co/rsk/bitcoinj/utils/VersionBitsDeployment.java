@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A soft fork deployed with BIP9 version bits: miners signal readiness by setting a bit of the block version, and
+ * the deployment locks in once enough blocks of a retarget period signal it, between its start time and its timeout.
+ *
+ * @see VersionBitsTally
+ */
+public final class VersionBitsDeployment {
+    /** Number of bits of the block version available to deployments. */
+    public static final int NUM_BITS = 29;
+    /** Top bits of the version of a block taking part in version bits deployments. */
+    public static final long TOP_BITS = 0x20000000L;
+    /** Mask of the top bits of the block version. */
+    public static final long TOP_MASK = 0xE0000000L;
+
+    /** State of a deployment for all the blocks of a retarget period. */
+    public enum State {
+        /** The start time wasn't reached yet. */
+        DEFINED,
+        /** Blocks signal the deployment. */
+        STARTED,
+        /** Enough blocks signalled, the deployment will be active from the next period on. */
+        LOCKED_IN,
+        /** The rules of the deployment apply. */
+        ACTIVE,
+        /** The timeout was reached before the deployment locked in. */
+        FAILED
+    }
+
+    private final String name;
+    private final int bit;
+    private final long startTime;
+    private final long timeout;
+
+    /**
+     * @param bit the version bit signalling the deployment, from 0 to 28.
+     * @param startTime median time past, in seconds, from which the deployment is signalled.
+     * @param timeout median time past, in seconds, at which the deployment fails if it didn't lock in.
+     */
+    public VersionBitsDeployment(String name, int bit, long startTime, long timeout) {
+        checkArgument(bit >= 0 && bit < NUM_BITS, "Not a version bit: %s", bit);
+        checkArgument(startTime <= timeout, "Start time %s is after the timeout %s", startTime, timeout);
+        this.name = checkNotNull(name);
+        this.bit = bit;
+        this.startTime = startTime;
+        this.timeout = timeout;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBit() {
+        return bit;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /** Returns true if a block with the given version signals this deployment. */
+    public boolean signals(long version) {
+        return usesVersionBits(version) && (version & (1L << bit)) != 0;
+    }
+
+    /** Returns true if the given block version takes part in version bits deployments. */
+    public static boolean usesVersionBits(long version) {
+        return (version & TOP_MASK) == TOP_BITS;
+    }
+
+    /**
+     * Returns the state of this deployment for the next retarget period, given its state for the period that ends,
+     * the median time past of the last block of that period and the number of blocks in it signalling the deployment.
+     */
+    State nextState(State state, long medianTimePast, int signalling, int threshold) {
+        switch (state) {
+            case DEFINED:
+                if (medianTimePast >= timeout)
+                    return State.FAILED;
+                return medianTimePast >= startTime ? State.STARTED : State.DEFINED;
+            case STARTED:
+                if (medianTimePast >= timeout)
+                    return State.FAILED;
+                return signalling >= threshold ? State.LOCKED_IN : State.STARTED;
+            case LOCKED_IN:
+                return State.ACTIVE;
+            default:
+                return state;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (bit " + bit + ')';
+    }
+}
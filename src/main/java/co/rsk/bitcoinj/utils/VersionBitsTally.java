@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.utils;
+
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.store.BlockStoreException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Follows the state of {@link VersionBitsDeployment BIP9 deployments} along a chain, one retarget period at a time.
+ * Blocks are added and removed one by one at the tip: the blocks signalling each deployment in the current period are
+ * counted as they come, and at the end of a period the states of the deployments for the next one are worked out from
+ * those counts and the median time past of the last block. The states of every period since the first block added
+ * are kept, as well as the counts of the periods that ended, so removing blocks on a re-organize undoes it all.<p>
+ *
+ * The tally must start at the first block of a period where every deployment is still
+ * {@link VersionBitsDeployment.State#DEFINED}, like the genesis block or a checkpoint older than their start times.
+ * This class is NOT thread safe.
+ */
+public class VersionBitsTally {
+    /** Number of blocks the median time past is taken over. */
+    private static final int MEDIAN_TIME_SPAN = 11;
+
+    private final int period;
+    private final int threshold;
+    private final VersionBitsDeployment[] deployments;
+
+    /** Height of the next block, or -1 before the first block is added. */
+    private int nextHeight = -1;
+    private int firstPeriod;
+
+    /** Blocks signalling each deployment in the current period. */
+    private int[] signalling;
+
+    /** States of the deployments for each period from the first one, and the counts of the periods that ended. */
+    private final List<VersionBitsDeployment.State[]> states = new ArrayList<VersionBitsDeployment.State[]>();
+    private final List<int[]> endedPeriodCounts = new ArrayList<int[]>();
+
+    /**
+     * @param threshold number of blocks of a period that must signal a deployment for it to lock in, 1916 of 2016 on
+     * the main network and 1512 on the test network.
+     */
+    public VersionBitsTally(NetworkParameters params, int threshold, List<VersionBitsDeployment> deployments) {
+        this.period = params.getInterval();
+        checkArgument(threshold > 0 && threshold <= period, "Threshold out of range: %s", threshold);
+        this.threshold = threshold;
+        this.deployments = deployments.toArray(new VersionBitsDeployment[0]);
+        this.signalling = new int[this.deployments.length];
+    }
+
+    /**
+     * Adds the block extending the chain followed so far.
+     *
+     * @param medianTimePast the median time past of the block, only used if it ends a period.
+     */
+    public void add(StoredBlock block, long medianTimePast) {
+        add(block.getHeight(), block.getHeader().getVersion(), medianTimePast);
+    }
+
+    /**
+     * Removes the last block added, after it was disconnected from the chain.
+     *
+     * @throws IllegalArgumentException if the block isn't the last one added.
+     */
+    public void remove(StoredBlock block) {
+        int height = block.getHeight();
+        checkState(nextHeight > firstPeriod * period, "No block left to remove");
+        checkArgument(height == nextHeight - 1, "Block at height %s is not the last one added", height);
+        if (nextHeight % period == 0) {
+            // The block ended a period, which is open again.
+            states.remove(states.size() - 1);
+            signalling = endedPeriodCounts.remove(endedPeriodCounts.size() - 1);
+        }
+        long version = block.getHeader().getVersion();
+        for (int i = 0; i < deployments.length; i++) {
+            if (deployments[i].signals(version))
+                signalling[i]--;
+        }
+        nextHeight = height;
+    }
+
+    /**
+     * Adds the blocks of the given chain from the given height, the first of a period, up to the chain head. The
+     * tally must be empty.
+     */
+    public void initialize(BtcBlockStore blockStore, StoredBlock chainHead, int fromHeight)
+            throws BlockStoreException {
+        checkState(nextHeight == -1, "Tally already has blocks");
+        checkArgument(fromHeight <= chainHead.getHeight(), "Height %s is above the chain head", fromHeight);
+        // The timestamps of the blocks before the first one are needed for the median time past.
+        int count = chainHead.getHeight() - fromHeight + 1;
+        long[] versions = new long[count];
+        long[] times = new long[count + MEDIAN_TIME_SPAN - 1];
+        int lowest = times.length;
+        StoredBlock cursor = chainHead;
+        for (int i = times.length - 1; i >= 0 && cursor != null; i--) {
+            if (i >= MEDIAN_TIME_SPAN - 1)
+                versions[i - MEDIAN_TIME_SPAN + 1] = cursor.getHeader().getVersion();
+            times[i] = cursor.getHeader().getTimeSeconds();
+            lowest = i;
+            cursor = i > 0 ? cursor.getPrev(blockStore) : null;
+        }
+        if (lowest > MEDIAN_TIME_SPAN - 1)
+            throw new BlockStoreException("Block at height " + (fromHeight + lowest - MEDIAN_TIME_SPAN) +
+                    " is not in the store");
+
+        for (int i = 0; i < count; i++) {
+            int height = fromHeight + i;
+            long medianTimePast = 0;
+            if ((height + 1) % period == 0) {
+                int from = Math.max(lowest, i);
+                long[] span = Arrays.copyOfRange(times, from, i + MEDIAN_TIME_SPAN);
+                Arrays.sort(span);
+                medianTimePast = span[(span.length + 1) / 2 - 1];
+            }
+            add(height, versions[i], medianTimePast);
+        }
+    }
+
+    /** Returns the state of the deployment for the block after the last one added. */
+    public VersionBitsDeployment.State getState(VersionBitsDeployment deployment) {
+        checkState(nextHeight != -1, "Tally has no blocks");
+        return states.get(states.size() - 1)[indexOf(deployment)];
+    }
+
+    /**
+     * Returns the state of the deployment for the block at the given height, or null if it's not in a period followed
+     * by this tally.
+     */
+    @Nullable
+    public VersionBitsDeployment.State getState(VersionBitsDeployment deployment, int height) {
+        int index = indexOf(deployment);
+        if (nextHeight == -1 || height < 0 || height > nextHeight)
+            return null;
+        int periodIndex = height / period - firstPeriod;
+        if (periodIndex < 0 || periodIndex >= states.size())
+            return null;
+        return states.get(periodIndex)[index];
+    }
+
+    /** Returns the number of blocks signalling the deployment so far in the current period. */
+    public int getSignallingCount(VersionBitsDeployment deployment) {
+        return signalling[indexOf(deployment)];
+    }
+
+    /** Returns the height of the last block added, or -1 if there is none. */
+    public int getHeight() {
+        return nextHeight == -1 ? -1 : nextHeight - 1;
+    }
+
+    private void add(int height, long version, long medianTimePast) {
+        if (nextHeight == -1) {
+            checkArgument(height % period == 0, "The first block must start a period, not be at height %s", height);
+            firstPeriod = height / period;
+            VersionBitsDeployment.State[] initial = new VersionBitsDeployment.State[deployments.length];
+            Arrays.fill(initial, VersionBitsDeployment.State.DEFINED);
+            states.add(initial);
+            nextHeight = height;
+        }
+        checkArgument(height == nextHeight, "Expected a block at height %s, not %s", nextHeight, height);
+        for (int i = 0; i < deployments.length; i++) {
+            if (deployments[i].signals(version))
+                signalling[i]++;
+        }
+        nextHeight++;
+        if (nextHeight % period == 0) {
+            VersionBitsDeployment.State[] current = states.get(states.size() - 1);
+            VersionBitsDeployment.State[] next = new VersionBitsDeployment.State[deployments.length];
+            for (int i = 0; i < deployments.length; i++)
+                next[i] = deployments[i].nextState(current[i], medianTimePast, signalling[i], threshold);
+            states.add(next);
+            endedPeriodCounts.add(signalling);
+            signalling = new int[deployments.length];
+        }
+    }
+
+    private int indexOf(VersionBitsDeployment deployment) {
+        for (int i = 0; i < deployments.length; i++) {
+            if (deployments[i] == deployment)
+                return i;
+        }
+        throw new IllegalArgumentException("Unknown deployment: " + deployment);
+    }
+}
@@ -16,55 +16,118 @@
 
 package co.rsk.bitcoinj.utils;
 
-import java.util.Stack;
 import co.rsk.bitcoinj.core.NetworkParameters;
 import co.rsk.bitcoinj.core.StoredBlock;
 import co.rsk.bitcoinj.store.BtcBlockStore;
 import co.rsk.bitcoinj.store.BlockStoreException;
 
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Caching counter for the block versions within a moving window. This class
  * is NOT thread safe (as if two threads are trying to use it concurrently,
- * there's risk of getting versions out of sequence).
+ * there's risk of getting versions out of sequence).<p>
+ *
+ * Counts are kept up to date as versions come in and go out of the window,
+ * so a query doesn't scan the window: there's a counter for every version
+ * bit of {@link VersionBitsDeployment BIP9} and one for each version passed
+ * to {@link #getCountAtOrAbove(long)}, for the first few different ones. A
+ * few more versions than the window are remembered, so that the last ones
+ * can be removed on a re-organize, bringing older ones back in the window.
  *
  * @see co.rsk.bitcoinj.core.NetworkParameters#getMajorityWindow()
  * @see co.rsk.bitcoinj.core.NetworkParameters#getMajorityEnforceBlockUpgrade()
  * @see co.rsk.bitcoinj.core.NetworkParameters#getMajorityRejectBlockOutdated()
  */
 public class VersionTally {
+    /** Default number of versions that can be removed without initializing the tally again. */
+    public static final int DEFAULT_MAX_REMOVED = 100;
+
+    /** Number of versions queried with their own counter, the others are counted scanning the window. */
+    private static final int MAX_THRESHOLDS = 8;
+
     /**
-     * Cache of version numbers.
+     * Number of versions counted.
      */
-    private final long[] versionWindow;
+    private final int windowSize;
 
     /**
-     * Offset within the version window at which the next version will be
+     * Cache of version numbers, the window and the versions before it, as a
+     * ring.
+     */
+    private final long[] versionHistory;
+
+    /**
+     * Offset within the version history at which the next version will be
      * written.
      */
     private int versionWriteHead = 0;
 
     /**
-     * Number of versions written into the tally. Until this matches the length
-     * of the version window, we do not have sufficient data to return values.
+     * Number of versions in the history. Until the window is full, we do not
+     * have sufficient data to return values.
      */
     private int versionsStored = 0;
 
+    /** Versions queried so far, and the number of versions at or above each of them in the window. */
+    private long[] thresholds = new long[0];
+    private int[] thresholdCounts = new int[0];
+
+    /** Number of versions in the window signalling each version bit. */
+    private final int[] bitCounts = new int[VersionBitsDeployment.NUM_BITS];
+
     public VersionTally(final NetworkParameters params) {
-        versionWindow = new long[params.getMajorityWindow()];
+        this(params, DEFAULT_MAX_REMOVED);
+    }
+
+    /**
+     * Creates a tally that can take back up to the given number of versions
+     * with {@link #removeLast()}.
+     */
+    public VersionTally(final NetworkParameters params, final int maxRemoved) {
+        checkArgument(maxRemoved >= 0, "maxRemoved must not be negative: %s", maxRemoved);
+        windowSize = params.getMajorityWindow();
+        versionHistory = new long[windowSize + maxRemoved];
     }
 
     /**
-     * Add a new block version to the tally, and return the count for that version
-     * within the window.
+     * Add a new block version to the tally.
      *
      * @param version the block version to add.
      */
     public void add(final long version) {
-        versionWindow[versionWriteHead++] = version;
-        if (versionWriteHead == versionWindow.length) {
+        if (versionsStored >= windowSize) {
+            count(versionHistory[index(windowSize)], -1);
+        }
+        versionHistory[versionWriteHead++] = version;
+        if (versionWriteHead == versionHistory.length) {
             versionWriteHead = 0;
         }
-        versionsStored++;
+        versionsStored = Math.min(versionsStored + 1, versionHistory.length);
+        count(version, 1);
+    }
+
+    /**
+     * Remove the last block version added to the tally, after it was
+     * disconnected from the chain. The version before the window, if still
+     * remembered, comes back into it.
+     *
+     * @return the version removed.
+     * @throws IllegalStateException if there's no version left to remove.
+     */
+    public long removeLast() {
+        checkState(versionsStored > 0, "No version left to remove");
+        versionWriteHead = index(1);
+        long version = versionHistory[versionWriteHead];
+        versionsStored--;
+        count(version, -1);
+        if (versionsStored >= windowSize) {
+            count(versionHistory[index(windowSize)], 1);
+        }
+        return version;
     }
 
     /**
@@ -75,19 +138,46 @@ public class VersionTally {
      * full.
      */
     public Integer getCountAtOrAbove(final long version) {
-        if (versionsStored < versionWindow.length) {
+        if (versionsStored < windowSize) {
             return null;
         }
+        for (int i = 0; i < thresholds.length; i++) {
+            if (thresholds[i] == version) {
+                return thresholdCounts[i];
+            }
+        }
         int count = 0;
-        for (int versionIdx = 0; versionIdx < versionWindow.length; versionIdx++) {
-            if (versionWindow[versionIdx] >= version) {
+        for (int offset = 1; offset <= windowSize; offset++) {
+            if (versionHistory[index(offset)] >= version) {
                 count++;
             }
         }
-
+        if (thresholds.length < MAX_THRESHOLDS) {
+            // Keep counting this version from now on.
+            thresholds = Arrays.copyOf(thresholds, thresholds.length + 1);
+            thresholdCounts = Arrays.copyOf(thresholdCounts, thresholdCounts.length + 1);
+            thresholds[thresholds.length - 1] = version;
+            thresholdCounts[thresholdCounts.length - 1] = count;
+        }
         return count;
     }
 
+    /**
+     * Get the count of blocks signalling the given version bit, within the
+     * window.
+     *
+     * @param bit the version bit, from 0 to 28.
+     * @return the count for the bit, or null if the window is not yet full.
+     * @see VersionBitsDeployment#signals(long)
+     */
+    public Integer getCountSignalling(final int bit) {
+        checkArgument(bit >= 0 && bit < VersionBitsDeployment.NUM_BITS, "Not a version bit: %s", bit);
+        if (versionsStored < windowSize) {
+            return null;
+        }
+        return bitCounts[bit];
+    }
+
     /**
      * Initialize the version tally from the block store. Note this does not
      * search backwards past the start of the block store, so if starting from
@@ -98,22 +188,18 @@ public class VersionTally {
      */
     public void initialize(final BtcBlockStore blockStore, final StoredBlock chainHead)
         throws BlockStoreException {
-        StoredBlock versionBlock = chainHead;
-        final Stack<Long> versions = new Stack<Long>();
-
         // We don't know how many blocks back we can go, so load what we can first
-        versions.push(versionBlock.getHeader().getVersion());
-        for (int headOffset = 0; headOffset < versionWindow.length; headOffset++) {
-            versionBlock = versionBlock.getPrev(blockStore);
-            if (null == versionBlock) {
-                break;
-            }
-            versions.push(versionBlock.getHeader().getVersion());
+        final long[] versions = new long[windowSize];
+        int found = 0;
+        StoredBlock versionBlock = chainHead;
+        while (found < windowSize && versionBlock != null) {
+            versions[found++] = versionBlock.getHeader().getVersion();
+            versionBlock = found < windowSize ? versionBlock.getPrev(blockStore) : null;
         }
 
         // Replay the versions into the tally
-        while (!versions.isEmpty()) {
-            add(versions.pop());
+        for (int i = found - 1; i >= 0; i--) {
+            add(versions[i]);
         }
     }
 
@@ -121,6 +207,27 @@ public class VersionTally {
      * Get the size of the version window.
      */
     public int size() {
-        return versionWindow.length;
+        return windowSize;
+    }
+
+    /** Offset within the version history of the version added the given number of versions ago, from 1. */
+    private int index(final int versionsAgo) {
+        int index = versionWriteHead - versionsAgo;
+        return index < 0 ? index + versionHistory.length : index;
+    }
+
+    private void count(final long version, final int delta) {
+        for (int i = 0; i < thresholds.length; i++) {
+            if (version >= thresholds[i]) {
+                thresholdCounts[i] += delta;
+            }
+        }
+        if (VersionBitsDeployment.usesVersionBits(version)) {
+            for (int bit = 0; bit < VersionBitsDeployment.NUM_BITS; bit++) {
+                if ((version & (1L << bit)) != 0) {
+                    bitCounts[bit] += delta;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,69 @@
+package co.rsk.bitcoinj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedSignatureCacheTest {
+    private final BtcECKey key = new BtcECKey();
+    private final BtcECKey otherKey = new BtcECKey();
+
+    @Test
+    public void verify_remembersValidAndInvalidSignatures() {
+        BoundedSignatureCache cache = new BoundedSignatureCache(1000);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        BtcECKey.ECDSASignature signature = key.sign(hash);
+
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertFalse(cache.verify(hash.getBytes(), signature, otherKey.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertFalse(cache.verify(hash.getBytes(), signature, otherKey.getPubKey()));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // Another hash is another entry.
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 2 }).getBytes(), signature, key.getPubKey()));
+        assertEquals(3, cache.getMisses());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void verify_staysWithinMaxEntries() {
+        BoundedSignatureCache cache = new BoundedSignatureCache(32);
+        BtcECKey.ECDSASignature signature = key.sign(Sha256Hash.ZERO_HASH);
+        for (int i = 0; i < 200; i++)
+            cache.verify(Sha256Hash.of(new byte[] { (byte) i }).getBytes(), signature, key.getPubKey());
+        assertTrue(cache.size() <= 32);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(200, cache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verify_rejectsBadPublicKey() {
+        BoundedSignatureCache cache = new BoundedSignatureCache(32);
+        cache.verify(Sha256Hash.ZERO_HASH.getBytes(), key.sign(Sha256Hash.ZERO_HASH), new byte[] { 2, 3 });
+    }
+
+    @Test
+    public void verifyCached_usesConfiguredCache() {
+        SignatureCache previous = BtcECKey.getSignatureCache();
+        BoundedSignatureCache cache = new BoundedSignatureCache(32);
+        BtcECKey.setSignatureCache(cache);
+        try {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { 3 });
+            BtcECKey.ECDSASignature signature = key.sign(hash);
+            assertTrue(BtcECKey.verifyCached(hash.getBytes(), signature, key.getPubKey()));
+            assertTrue(BtcECKey.verifyCached(hash.getBytes(), signature, key.getPubKey()));
+            assertEquals(1, cache.getHits());
+        } finally {
+            BtcECKey.setSignatureCache(previous);
+        }
+    }
+}
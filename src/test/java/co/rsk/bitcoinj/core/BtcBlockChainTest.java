@@ -1,18 +1,42 @@
 package co.rsk.bitcoinj.core;
 
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.store.BlockStoreException;
 import co.rsk.bitcoinj.store.BtcBlockStore;
 import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import co.rsk.bitcoinj.store.H2BtcBlockStore;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static co.rsk.bitcoinj.core.TransactionOutputTest.PARAMS;
 import static co.rsk.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BtcBlockChainTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     BtcAbstractBlockChain blockchain;
 
     @Before
@@ -38,4 +62,419 @@ public class BtcBlockChainTest {
         assertFalse(blockchain.add(block.cloneAsHeader()));
     }
 
+
+    @Test
+    public void deepReorg_switchesMainChain() throws Exception {
+        // Regtest never retargets, so arbitrarily long chains can be built.
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockStore store = new BtcMemoryBlockStore(regtest);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+
+        List<BtcBlock> mainBranch = buildBranch(regtest.getGenesisBlock(), 300);
+        for (BtcBlock block : mainBranch)
+            assertTrue(chain.add(block));
+        assertEquals(300, chain.getBestChainHeight());
+
+        // A side branch forking at height 10 that doesn't overtake the main one.
+        BtcBlock forkPoint = mainBranch.get(9);
+        List<BtcBlock> sideBranch = buildBranch(forkPoint, 320);
+        for (BtcBlock block : sideBranch.subList(0, 290))
+            assertTrue(chain.add(block));
+        assertEquals(mainBranch.get(299).getHash(), chain.getChainHead().getHeader().getHash());
+
+        // Overtake it: the side branch becomes the main chain.
+        for (BtcBlock block : sideBranch.subList(290, 320))
+            assertTrue(chain.add(block));
+        assertEquals(330, chain.getBestChainHeight());
+        assertEquals(sideBranch.get(319).getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(forkPoint.getHash(), store.getInMainchain(10).get().getHeader().getHash());
+        assertEquals(sideBranch.get(0).getHash(), store.getInMainchain(11).get().getHeader().getHash());
+        assertEquals(sideBranch.get(289).getHash(), store.getInMainchain(300).get().getHeader().getHash());
+    }
+
+    @Test
+    public void addHeaders_connectsBatchAndIndexesMainChain() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockStore store = new BtcMemoryBlockStore(regtest);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+
+        List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 300);
+        assertTrue(chain.addHeaders(headers.subList(0, 200)).success());
+        assertEquals(200, chain.getBestChainHeight());
+        // Overlapping batches skip what is already known.
+        assertTrue(chain.addHeaders(headers.subList(150, 300)).success());
+        assertEquals(300, chain.getBestChainHeight());
+        assertEquals(headers.get(299).getHash(), chain.getChainHead().getHeader().getHash());
+        for (int height = 1; height <= 300; height++)
+            assertEquals(headers.get(height - 1).getHash(), store.getInMainchain(height).get().getHeader().getHash());
+
+        // A batch forking the chain falls back to adding headers one by one, and still re-organizes.
+        List<BtcBlock> fork = buildBranch(headers.get(249), 60);
+        assertTrue(chain.addHeaders(fork).success());
+        assertEquals(310, chain.getBestChainHeight());
+        assertEquals(fork.get(59).getHash(), store.getInMainchain(310).get().getHeader().getHash());
+        assertEquals(fork.get(0).getHash(), store.getInMainchain(251).get().getHeader().getHash());
+    }
+
+    @Test
+    public void addHeaders_invalidHeader_keepsHeadersBeforeIt() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockStore store = new BtcMemoryBlockStore(regtest);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+
+        List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 20);
+        // Doesn't meet its target.
+        BtcBlock invalid = FakeTxBuilder.makeSolvedTestBlock(headers.get(9)).cloneAsHeader();
+        while (invalid.checkProofOfWork(false))
+            invalid.setNonce(invalid.getNonce() + 1);
+        List<BtcBlock> batch = new ArrayList<BtcBlock>(headers.subList(0, 10));
+        batch.add(invalid);
+        try {
+            chain.addHeaders(batch);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(10, chain.getBestChainHeight());
+        assertEquals(headers.get(9).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void add_failingVerification_doesNotAbortAnotherWritersBatch() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        String dbName = new File(tmp.getRoot(), "headers").getAbsolutePath();
+        H2BtcBlockStore store = new H2BtcBlockStore(regtest, dbName);
+        final CountDownLatch aborting = new CountDownLatch(1);
+        final CountDownLatch otherBatchBegun = new CountDownLatch(1);
+        final CountDownLatch aborted = new CountDownLatch(1);
+        // Gives the other writer the chance to begin its batch while the failing one is about to abort, and makes it
+        // wait for the abort before writing, which is what happens if the failing writer doesn't hold the lock.
+        final BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store) {
+            @Override
+            protected void beginSettingChainHead() throws BlockStoreException {
+                super.beginSettingChainHead();
+                otherBatchBegun.countDown();
+                awaitQuietly(aborted);
+            }
+
+            @Override
+            protected void notSettingChainHead() throws BlockStoreException {
+                aborting.countDown();
+                awaitQuietly(otherBatchBegun);
+                super.notSettingChainHead();
+                aborted.countDown();
+            }
+        };
+        final BtcBlock valid = buildBranch(regtest.getGenesisBlock(), 1).get(0);
+        // Doesn't meet its target.
+        final BtcBlock invalid = FakeTxBuilder.makeSolvedTestBlock(regtest.getGenesisBlock()).cloneAsHeader();
+        while (invalid.checkProofOfWork(false))
+            invalid.setNonce(invalid.getNonce() + 1);
+
+        ExecutorService writers = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> failingAdd = writers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return chain.add(invalid);
+                }
+            });
+            assertTrue(aborting.await(10, TimeUnit.SECONDS));
+            Future<Boolean> validAdd = writers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return chain.add(valid);
+                }
+            });
+            try {
+                failingAdd.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof VerificationException);
+            }
+            assertTrue(validAdd.get(10, TimeUnit.SECONDS));
+        } finally {
+            writers.shutdown();
+        }
+        store.close();
+
+        // The chain head and its block were both written.
+        store = new H2BtcBlockStore(regtest, dbName);
+        assertEquals(valid.getHash(), store.getChainHead().getHeader().getHash());
+        assertNotNull(store.get(valid.getHash()));
+        store.close();
+    }
+
+    @Test
+    public void addHeaders_unconnected_fails() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), new BtcMemoryBlockStore(regtest));
+        List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 20);
+        assertFalse(chain.addHeaders(headers.subList(10, 20)).success());
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void chainHeadReads_dontWaitForWriters() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        final BtcBlockChain chain = new BtcBlockChain(new Context(regtest), new BtcMemoryBlockStore(regtest));
+        final List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 10);
+        assertTrue(chain.addHeaders(headers.subList(0, 5)).success());
+
+        // A writer holds the chain while another one waits for it.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                chain.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    chain.lock.unlock();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> pendingAdd = writer.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return chain.addHeaders(headers.subList(5, 10)).success();
+                }
+            });
+
+            assertEquals(5, chain.getBestChainHeight());
+            assertEquals(headers.get(4).getHash(), chain.getChainHead().getHeader().getHash());
+            // Genesis and five blocks, the lower middle one is at height 2.
+            assertEquals(headers.get(1).getTimeSeconds(), chain.getMedianTimePast());
+            assertFalse(pendingAdd.isDone());
+
+            release.countDown();
+            assertTrue(pendingAdd.get(10, TimeUnit.SECONDS));
+            assertEquals(10, chain.getBestChainHeight());
+        } finally {
+            release.countDown();
+            writer.shutdown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void orphanAndTipReads_dontWaitForWriters() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        final BtcBlockChain chain = new BtcBlockChain(new Context(regtest), new BtcMemoryBlockStore(regtest));
+        List<BtcBlock> mainBranch = buildBranch(regtest.getGenesisBlock(), 5);
+        assertTrue(chain.addHeaders(mainBranch).success());
+        for (BtcBlock block : buildBranch(mainBranch.get(1), 2))
+            assertTrue(chain.add(block));
+        final List<BtcBlock> orphans = buildBranch(mainBranch.get(4), 2);
+        assertFalse(chain.add(orphans.get(1)));
+
+        // A writer holds the chain.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                chain.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    chain.lock.unlock();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> isOrphan = reader.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return chain.isOrphan(orphans.get(1).getHash()) && !chain.isOrphan(orphans.get(0).getHash());
+                }
+            });
+            assertTrue(isOrphan.get(10, TimeUnit.SECONDS));
+            Future<List<ChainTip>> tips = reader.submit(new Callable<List<ChainTip>>() {
+                @Override
+                public List<ChainTip> call() throws Exception {
+                    return chain.getChainTips();
+                }
+            });
+            assertEquals(2, tips.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            release.countDown();
+            reader.shutdown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void add_connectsOrphansOnceParentArrives() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), new BtcMemoryBlockStore(regtest));
+        List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 10);
+
+        for (int i = 9; i >= 1; i--) {
+            assertFalse(chain.add(headers.get(i)));
+            assertTrue(chain.isOrphan(headers.get(i).getHash()));
+        }
+        assertEquals(0, chain.getBestChainHeight());
+
+        BlockchainAddResult result = chain.addBlock(headers.get(0));
+        assertTrue(result.success());
+        assertEquals(headers.subList(1, 10), result.getOrphansBlockConnected());
+        assertEquals(10, chain.getBestChainHeight());
+        assertFalse(chain.isOrphan(headers.get(9).getHash()));
+    }
+
+    @Test
+    public void addHeaders_batchesOutOfOrder() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), new BtcMemoryBlockStore(regtest));
+        List<BtcBlock> headers = buildBranch(regtest.getGenesisBlock(), 300);
+
+        assertFalse(chain.addHeaders(headers.subList(200, 300)).success());
+        assertFalse(chain.addHeaders(headers.subList(100, 200)).success());
+        assertEquals(0, chain.getBestChainHeight());
+
+        BlockchainAddResult result = chain.addHeaders(headers.subList(0, 100));
+        assertTrue(result.success());
+        assertEquals(headers.subList(100, 300), result.getOrphansBlockConnected());
+        assertEquals(300, chain.getBestChainHeight());
+        assertEquals(headers.get(299).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void getChainTips_tracksSideChainsAcrossReorgs() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockStore store = new BtcMemoryBlockStore(regtest);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+
+        List<BtcBlock> mainBranch = buildBranch(regtest.getGenesisBlock(), 20);
+        for (BtcBlock block : mainBranch)
+            assertTrue(chain.add(block));
+        List<ChainTip> tips = chain.getChainTips();
+        assertEquals(1, tips.size());
+        assertTrue(tips.get(0).isActive());
+        assertEquals(0, tips.get(0).getBranchLength());
+
+        // Two side chains, forking at heights 5 and 10.
+        List<BtcBlock> sideA = buildBranch(mainBranch.get(4), 8);
+        List<BtcBlock> sideB = buildBranch(mainBranch.get(9), 4);
+        for (BtcBlock block : sideA)
+            assertTrue(chain.add(block));
+        for (BtcBlock block : sideB)
+            assertTrue(chain.add(block));
+        tips = chain.getChainTips();
+        assertEquals(3, tips.size());
+        assertEquals(mainBranch.get(19).getHash(), tips.get(0).getTip().getHeader().getHash());
+        // Most work first.
+        assertEquals(sideB.get(3).getHash(), tips.get(1).getTip().getHeader().getHash());
+        assertEquals(10, tips.get(1).getForkPoint().getHeight());
+        assertEquals(4, tips.get(1).getBranchLength());
+        assertEquals(sideA.get(7).getHash(), tips.get(2).getTip().getHeader().getHash());
+        assertEquals(5, tips.get(2).getForkPoint().getHeight());
+        assertEquals(8, tips.get(2).getBranchLength());
+
+        // Side chain A overtakes the main chain.
+        List<BtcBlock> sideAMore = buildBranch(sideA.get(7), 10);
+        for (BtcBlock block : sideAMore)
+            assertTrue(chain.add(block));
+        assertEquals(23, chain.getBestChainHeight());
+        tips = chain.getChainTips();
+        assertEquals(3, tips.size());
+        assertEquals(sideAMore.get(9).getHash(), tips.get(0).getTip().getHeader().getHash());
+        assertTrue(tips.get(0).isActive());
+        // The old main chain and side chain B now fork where side chain A did.
+        assertEquals(mainBranch.get(19).getHash(), tips.get(1).getTip().getHeader().getHash());
+        assertEquals(5, tips.get(1).getForkPoint().getHeight());
+        assertEquals(15, tips.get(1).getBranchLength());
+        assertEquals(sideB.get(3).getHash(), tips.get(2).getTip().getHeader().getHash());
+        assertEquals(5, tips.get(2).getForkPoint().getHeight());
+        assertFalse(tips.get(2).isActive());
+
+        // Rolling back turns the abandoned blocks into a side chain.
+        chain.rollbackBlockStore(20);
+        tips = chain.getChainTips();
+        assertEquals(4, tips.size());
+        assertEquals(20, tips.get(0).getTip().getHeight());
+        assertEquals(sideAMore.get(9).getHash(), tips.get(1).getTip().getHeader().getHash());
+        assertEquals(20, tips.get(1).getForkPoint().getHeight());
+        assertEquals(3, tips.get(1).getBranchLength());
+    }
+
+    @Test
+    public void eventListener_seesConnectionsReorganizesAndRollbacks() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BtcBlockStore store = new BtcMemoryBlockStore(regtest);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+        final List<String> events = new ArrayList<String>();
+        chain.addEventListener(new ChainEventListener() {
+            @Override
+            public void onBlockConnected(StoredBlock block) {
+                events.add("connected " + block.getHeight());
+            }
+
+            @Override
+            public void onBlockDisconnected(StoredBlock block) {
+                events.add("disconnected " + block.getHeight());
+            }
+
+            @Override
+            public void onReorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+                events.add("reorganize at " + splitPoint.getHeight() + ", " + oldBlocks.size() + " old, " +
+                        newBlocks.size() + " new");
+            }
+
+            @Override
+            public void onEventsDropped(int count) {
+                events.add("dropped " + count);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        List<BtcBlock> mainBranch = buildBranch(regtest.getGenesisBlock(), 3);
+        assertTrue(chain.add(mainBranch.get(0)));
+        assertTrue(chain.addHeaders(mainBranch.subList(1, 3)).success());
+        assertEquals(Arrays.asList("connected 1", "connected 2", "connected 3"), events);
+
+        // A side chain is silent until it overtakes the best chain.
+        events.clear();
+        List<BtcBlock> side = buildBranch(mainBranch.get(0), 3);
+        for (BtcBlock block : side)
+            assertTrue(chain.add(block));
+        assertEquals(Arrays.asList("reorganize at 1, 2 old, 3 new", "disconnected 3", "disconnected 2",
+                "connected 2", "connected 3", "connected 4"), events);
+
+        events.clear();
+        chain.rollbackBlockStore(2);
+        assertEquals(Arrays.asList("disconnected 4", "disconnected 3"), events);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<BtcBlock> buildBranch(BtcBlock from, int length) throws Exception {
+        List<BtcBlock> branch = new ArrayList<BtcBlock>();
+        BtcBlock prev = from;
+        for (int i = 0; i < length; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            branch.add(prev);
+        }
+        return branch;
+    }
 }
@@ -0,0 +1,120 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.RegTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChainEventPublisherTest {
+    private static final NetworkParameters PARAMS = RegTestParams.get();
+
+    /** Runs the tasks given to it only when asked, like an executor that fell behind. */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    private static class RecordingListener implements ChainEventListener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onBlockConnected(StoredBlock block) {
+            events.add("connected " + block.getHeight());
+        }
+
+        @Override
+        public void onBlockDisconnected(StoredBlock block) {
+            events.add("disconnected " + block.getHeight());
+        }
+
+        @Override
+        public void onReorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+            events.add("reorganize");
+        }
+
+        @Override
+        public void onEventsDropped(int count) {
+            events.add("dropped " + count);
+        }
+    }
+
+    @Test
+    public void slowListener_getsDropCountInsteadOfBlockingPublisher() throws Exception {
+        ChainEventPublisher publisher = new ChainEventPublisher();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener, executor, 3);
+
+        for (int height = 1; height <= 5; height++)
+            publisher.blockConnected(block(height));
+        // A single drain task was submitted.
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        // The events queued before the overflow are discarded, so the notice comes before anything newer only.
+        assertEquals(Arrays.asList("dropped 4", "connected 5"), listener.events);
+
+        // Once drained, events flow again.
+        listener.events.clear();
+        publisher.blockDisconnected(block(2));
+        executor.runAll();
+        assertEquals(Arrays.asList("disconnected 2"), listener.events);
+    }
+
+    @Test
+    public void repeatedOverflows_addUpInOneNotice() throws Exception {
+        ChainEventPublisher publisher = new ChainEventPublisher();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener, executor, 2);
+
+        for (int height = 1; height <= 6; height++)
+            publisher.blockConnected(block(height));
+        executor.runAll();
+        assertEquals(Arrays.asList("dropped 5", "connected 6"), listener.events);
+    }
+
+    @Test
+    public void failingListener_doesNotStopOthers() throws Exception {
+        ChainEventPublisher publisher = new ChainEventPublisher();
+        ManualExecutor executor = new ManualExecutor();
+        publisher.addListener(new RecordingListener() {
+            @Override
+            public void onBlockConnected(StoredBlock block) {
+                throw new RuntimeException("Listener bug");
+            }
+        }, executor, 10);
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener, executor, 10);
+
+        publisher.blockConnected(block(1));
+        publisher.blockConnected(block(2));
+        executor.runAll();
+        assertEquals(Arrays.asList("connected 1", "connected 2"), listener.events);
+
+        assertTrue(publisher.removeListener(listener));
+        assertFalse(publisher.removeListener(listener));
+        publisher.blockConnected(block(3));
+        executor.runAll();
+        assertEquals(2, listener.events.size());
+    }
+
+    private static StoredBlock block(int height) {
+        return new StoredBlock(PARAMS.getGenesisBlock().cloneAsHeader(), ChainWork.valueOf(height), height);
+    }
+}
@@ -0,0 +1,130 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.store.BlockStoreException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChainSnapshotTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    // Magic, genesis hash and number of blocks.
+    private static final int PREFIX_SIZE = 18 + 32 + 4;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+    }
+
+    @Test
+    public void roundTrip_fromGenesis() throws Exception {
+        BtcMemoryBlockStore source = new BtcMemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = extend(source, 50);
+        byte[] snapshot = write(source, 0);
+        assertEquals(PREFIX_SIZE + 51 * StoredBlock.COMPACT_SERIALIZED_SIZE_V2 + 32, snapshot.length);
+
+        BtcMemoryBlockStore target = new BtcMemoryBlockStore(PARAMS);
+        StoredBlock head = ChainSnapshot.load(new ByteArrayInputStream(snapshot), target);
+        assertEquals(chain.get(49), head);
+        assertEquals(head, target.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, target.get(block.getHeader().getHash()));
+            assertEquals(block, target.getInMainchain(block.getHeight()).get());
+        }
+    }
+
+    @Test
+    public void roundTrip_fromHeight() throws Exception {
+        BtcMemoryBlockStore source = new BtcMemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = extend(source, 30);
+        byte[] snapshot = write(source, 20);
+
+        BtcMemoryBlockStore target = new BtcMemoryBlockStore(PARAMS);
+        ChainSnapshot.load(new ByteArrayInputStream(snapshot), target);
+        assertEquals(chain.get(29), target.getChainHead());
+        assertEquals(chain.get(19), target.getInMainchain(20).get());
+        assertNull(target.get(chain.get(18).getHeader().getHash()));
+
+        // The loaded chain can be extended as usual.
+        BtcBlockChain blockChain = new BtcBlockChain(new Context(PARAMS), target);
+        assertTrue(blockChain.add(chain.get(29).getHeader().createNextBlock(null).cloneAsHeader()));
+        assertEquals(31, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void load_rejectsCorruptedSnapshot() throws Exception {
+        BtcMemoryBlockStore source = new BtcMemoryBlockStore(PARAMS);
+        extend(source, 10);
+        byte[] snapshot = write(source, 0);
+        snapshot[PREFIX_SIZE + 100] ^= 1;
+        BtcMemoryBlockStore target = new BtcMemoryBlockStore(PARAMS);
+        try {
+            ChainSnapshot.load(new ByteArrayInputStream(snapshot), target);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+        assertEquals(0, target.getChainHead().getHeight());
+    }
+
+    @Test
+    public void load_rejectsBrokenLinkage() throws Exception {
+        BtcMemoryBlockStore source = new BtcMemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = extend(source, 10);
+        // A block of another branch in the middle, with a valid checksum.
+        StoredBlock other = chain.get(3).build(chain.get(3).getHeader().createNextBlock(null).cloneAsHeader());
+        source.put(other);
+        byte[] snapshot = write(source, 1);
+        int size = StoredBlock.COMPACT_SERIALIZED_SIZE_V2;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        other.serializeCompactV2(record);
+        System.arraycopy(record.array(), 0, snapshot, PREFIX_SIZE + 4 * size, size);
+        byte[] data = Arrays.copyOf(snapshot, snapshot.length - 32);
+        System.arraycopy(Sha256Hash.hash(data), 0, snapshot, data.length, 32);
+
+        try {
+            ChainSnapshot.load(new ByteArrayInputStream(snapshot), new BtcMemoryBlockStore(PARAMS));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("at height 6"));
+        }
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void load_rejectsChainWithLessWork() throws Exception {
+        BtcMemoryBlockStore source = new BtcMemoryBlockStore(PARAMS);
+        extend(source, 5);
+        BtcMemoryBlockStore target = new BtcMemoryBlockStore(PARAMS);
+        extend(target, 10);
+        ChainSnapshot.load(new ByteArrayInputStream(write(source, 0)), target);
+    }
+
+    private static byte[] write(BtcBlockStore store, int fromHeight) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChainSnapshot.write(store, fromHeight, out);
+        return out.toByteArray();
+    }
+
+    private static List<StoredBlock> extend(BtcBlockStore store, int count) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            chain.add(prev);
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,112 @@
+package co.rsk.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChainWorkTest {
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+    private static final BigInteger MAX_256 = LARGEST_HASH.subtract(BigInteger.ONE);
+    private static final NetworkParameters mainnet = NetworkParameters.fromID(NetworkParameters.ID_MAINNET);
+
+    @Test
+    public void valueOf_roundTrips() {
+        BigInteger[] values = {BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(Long.MAX_VALUE),
+                BigInteger.ONE.shiftLeft(64), BigInteger.ONE.shiftLeft(200).add(BigInteger.TEN), MAX_256};
+        for (BigInteger value : values)
+            assertEquals(value, ChainWork.valueOf(value).toBigInteger());
+        assertEquals(ChainWork.valueOf(12345L), ChainWork.valueOf(BigInteger.valueOf(12345L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valueOf_negative_throwsException() {
+        ChainWork.valueOf(BigInteger.valueOf(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valueOf_moreThan256Bits_throwsException() {
+        ChainWork.valueOf(LARGEST_HASH);
+    }
+
+    @Test
+    public void add_matchesBigInteger() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = new BigInteger(1 + random.nextInt(255), random);
+            BigInteger b = new BigInteger(1 + random.nextInt(255), random);
+            BigInteger expected = a.add(b);
+            if (expected.bitLength() > 256)
+                continue;
+            assertEquals(expected, ChainWork.valueOf(a).add(ChainWork.valueOf(b)).toBigInteger());
+        }
+        // Carries through every word.
+        BigInteger allOnes = BigInteger.ONE.shiftLeft(192).subtract(BigInteger.ONE);
+        assertEquals(BigInteger.ONE.shiftLeft(192),
+                ChainWork.valueOf(allOnes).add(ChainWork.valueOf(1)).toBigInteger());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void add_overflow_throwsException() {
+        ChainWork.valueOf(MAX_256).add(ChainWork.valueOf(1));
+    }
+
+    @Test
+    public void compareTo_matchesBigInteger() {
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = new BigInteger(1 + random.nextInt(256), random);
+            BigInteger b = random.nextBoolean() ? a : new BigInteger(1 + random.nextInt(256), random);
+            assertEquals(Integer.signum(a.compareTo(b)),
+                    Integer.signum(ChainWork.valueOf(a).compareTo(ChainWork.valueOf(b))));
+        }
+    }
+
+    @Test
+    public void fromCompactBits_matchesWorkOfTarget() {
+        long[] bitsValues = {0x1d00ffffL, 0x1b0404cbL, 0x17053894L, 0x207fffffL, 0x1f00ffffL};
+        BigInteger maxTarget = Utils.decodeCompactBits(0x207fffffL);
+        for (long bits : bitsValues) {
+            BigInteger target = Utils.decodeCompactBits(bits);
+            BigInteger expected = LARGEST_HASH.divide(target.add(BigInteger.ONE));
+            assertEquals(expected, ChainWork.fromCompactBits(bits, maxTarget).toBigInteger());
+            // Served from the cache the second time.
+            assertEquals(expected, ChainWork.fromCompactBits(bits, maxTarget).toBigInteger());
+        }
+    }
+
+    @Test(expected = VerificationException.class)
+    public void fromCompactBits_targetAboveMax_throwsException() {
+        ChainWork.fromCompactBits(0x207fffffL, mainnet.getMaxTarget());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void fromCompactBits_zeroTarget_throwsException() {
+        ChainWork.fromCompactBits(0x1d000000L, mainnet.getMaxTarget());
+    }
+
+    @Test
+    public void writeAndRead_areBigEndianWhateverTheBufferOrder() {
+        BigInteger value = new BigInteger("0102030405060708090a0b0c", 16);
+        ChainWork work = ChainWork.valueOf(value);
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        work.write(buffer, 12);
+        assertArrayEquals(Utils.bigIntegerToBytes(value, 12), buffer.array());
+        buffer.rewind();
+        assertEquals(work, ChainWork.read(buffer, 12));
+
+        buffer = ByteBuffer.allocate(ChainWork.BYTES);
+        ChainWork.valueOf(MAX_256).write(buffer, ChainWork.BYTES);
+        buffer.rewind();
+        assertEquals(MAX_256, ChainWork.read(buffer, ChainWork.BYTES).toBigInteger());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_tooLargeForSize_throwsException() {
+        ChainWork.valueOf(BigInteger.ONE.shiftLeft(96)).write(ByteBuffer.allocate(12), 12);
+    }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.DigestOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -71,7 +72,7 @@ public class CheckpointManagerTest {
         try (InputStream binaryCheckpoint = generateBinaryCheckpoints(checkpoints)) {
             CheckpointManager checkpointManager = new CheckpointManager(MAINNET, binaryCheckpoint);
 
-            List<StoredBlock> actualCheckpoints = new ArrayList<>(checkpointManager.checkpoints.values());
+            List<StoredBlock> actualCheckpoints = checkpointManager.getCheckpoints();
             Assert.assertEquals(checkpoints, actualCheckpoints);
         }
     }
@@ -137,7 +138,7 @@ public class CheckpointManagerTest {
         try (InputStream binaryCheckpoint = generateBinaryCheckpoints(checkpointsV2Format)) {
             CheckpointManager checkpointManager = new CheckpointManager(MAINNET, binaryCheckpoint);
 
-            List<StoredBlock> actualCheckpoints = new ArrayList<>(checkpointManager.checkpoints.values());
+            List<StoredBlock> actualCheckpoints = checkpointManager.getCheckpoints();
 
             Assert.assertNotEquals(checkpointsV2Format, actualCheckpoints);
         }
@@ -157,7 +158,7 @@ public class CheckpointManagerTest {
         try (InputStream binaryCheckpoint = generateBinaryCheckpoints(checkpoints)) {
             CheckpointManager checkpointManager = new CheckpointManager(MAINNET, binaryCheckpoint);
 
-            List<StoredBlock> actualCheckpoints = new ArrayList<>(checkpointManager.checkpoints.values());
+            List<StoredBlock> actualCheckpoints = checkpointManager.getCheckpoints();
 
             Assert.assertNotEquals(checkpointsV2Format, actualCheckpoints);
         }
@@ -186,16 +187,59 @@ public class CheckpointManagerTest {
         InputStream checkpointStream = getClass().getResourceAsStream("/co/rsk/bitcoinj/core/checkpointmanagertest/validTextualFormat.checkpoints.txt");
         CheckpointManager checkpointManager = new CheckpointManager(MAINNET, checkpointStream);
 
-        List<StoredBlock> actualCheckpoints = new ArrayList<>(checkpointManager.checkpoints.values());
+        List<StoredBlock> actualCheckpoints = checkpointManager.getCheckpoints();
         Assert.assertEquals(6, actualCheckpoints.size());
     }
 
+    @Test
+    public void getCheckpointBefore_returnsLatestCheckpointNotAfterTime() throws IOException {
+        InputStream checkpointStream = getClass().getResourceAsStream("/co/rsk/bitcoinj/core/checkpointmanagertest/validTextualFormat.checkpoints.txt");
+        CheckpointManager checkpointManager = new CheckpointManager(MAINNET, checkpointStream);
+        List<StoredBlock> checkpoints = checkpointManager.getCheckpoints();
+
+        StoredBlock first = checkpoints.get(0);
+        Assert.assertEquals(0, checkpointManager.getCheckpointBefore(first.getHeader().getTimeSeconds() - 1).getHeight());
+        for (int i = 0; i < checkpoints.size(); i++) {
+            StoredBlock checkpoint = checkpoints.get(i);
+            long time = checkpoint.getHeader().getTimeSeconds();
+            Assert.assertEquals(checkpoint, checkpointManager.getCheckpointBefore(time));
+            Assert.assertEquals(checkpoint, checkpointManager.getCheckpointBefore(time + 1));
+            if (i > 0)
+                Assert.assertEquals(checkpoints.get(i - 1), checkpointManager.getCheckpointBefore(time - 1));
+        }
+    }
+
+    @Test
+    public void getCheckpointHashes_matchesDeserializedCheckpoints() throws IOException {
+        InputStream checkpointStream = getClass().getResourceAsStream("/co/rsk/bitcoinj/core/checkpointmanagertest/mixFormats.checkpoints.txt");
+        CheckpointManager checkpointManager = new CheckpointManager(MAINNET, checkpointStream);
+
+        List<Sha256Hash> hashes = checkpointManager.getCheckpointHashes();
+        List<StoredBlock> checkpoints = checkpointManager.getCheckpoints();
+        Assert.assertEquals(checkpoints.size(), hashes.size());
+        for (int i = 0; i < checkpoints.size(); i++)
+            Assert.assertEquals(checkpoints.get(i).getHeader().getHash(), hashes.get(i));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void getCheckpointBefore_corruptRecord_throwsProtocolException() throws IOException {
+        byte[] record = BASE64.decode(CHECKPOINTS_12_BYTES_CHAINWORK_ENCODED.get(0));
+        // Changes the nonce.
+        record[record.length - 1] ^= 0x01;
+        String checkpoints = "TXT CHECKPOINTS 1\n0\n1\n" + BASE64.encode(record) + "\n";
+        CheckpointManager checkpointManager = new CheckpointManager(MAINNET,
+            new ByteArrayInputStream(checkpoints.getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertEquals(1, checkpointManager.numCheckpoints());
+
+        checkpointManager.getCheckpointBefore(Long.MAX_VALUE);
+    }
+
     @Test
     public void canReadTextualMixFormats() throws IOException {
         InputStream checkpointStream = getClass().getResourceAsStream("/co/rsk/bitcoinj/core/checkpointmanagertest/mixFormats.checkpoints.txt");
         CheckpointManager checkpointManager = new CheckpointManager(MAINNET, checkpointStream);
 
-        List<StoredBlock> actualCheckpoints = new ArrayList<>(checkpointManager.checkpoints.values());
+        List<StoredBlock> actualCheckpoints = checkpointManager.getCheckpoints();
         Assert.assertEquals(6, actualCheckpoints.size());
     }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class HeaderBatchVerifierTest {
+    private ForkJoinPool pool;
+    private HeaderBatchVerifier verifier;
+
+    @Before
+    public void setUp() {
+        new Context(RegTestParams.get());
+        pool = new ForkJoinPool(4);
+        verifier = new HeaderBatchVerifier(pool, 8);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void verify_validHeaders() throws Exception {
+        List<BtcBlock> headers = buildHeaders(200);
+        assertNull(verifier.verify(headers, 0));
+        assertNull(verifier.verify(headers, 150));
+        assertNull(verifier.verify(headers, 200));
+    }
+
+    @Test
+    public void verify_reportsFirstInvalidHeader() throws Exception {
+        List<BtcBlock> headers = buildHeaders(200);
+        breakProofOfWork(headers.get(170));
+        breakProofOfWork(headers.get(90));
+        breakProofOfWork(headers.get(91));
+
+        HeaderBatchVerifier.Failure failure = verifier.verify(headers, 0);
+        assertNotNull(failure);
+        assertEquals(90, failure.index);
+        assertTrue(failure.cause.getMessage().contains(headers.get(90).getHashAsString()));
+
+        // Indexes are relative to the whole list.
+        failure = verifier.verify(headers, 100);
+        assertNotNull(failure);
+        assertEquals(170, failure.index);
+    }
+
+    @Test
+    public void verify_smallBatchRunsInline() throws Exception {
+        List<BtcBlock> headers = buildHeaders(5);
+        breakProofOfWork(headers.get(3));
+        HeaderBatchVerifier.Failure failure = verifier.verify(headers, 0);
+        assertNotNull(failure);
+        assertEquals(3, failure.index);
+    }
+
+    private static List<BtcBlock> buildHeaders(int count) throws Exception {
+        List<BtcBlock> headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = RegTestParams.get().getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+        return headers;
+    }
+
+    private static void breakProofOfWork(BtcBlock header) {
+        while (header.checkProofOfWork(false))
+            header.setNonce(header.getNonce() + 1);
+    }
+}
@@ -0,0 +1,87 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MedianTimePastTrackerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BtcBlockStore store;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BtcMemoryBlockStore(PARAMS);
+        random = new Random(42);
+    }
+
+    @Test
+    public void extend_matchesMedianOfLastBlocks() throws Exception {
+        MedianTimePastTracker tracker = new MedianTimePastTracker();
+        StoredBlock tip = store.getChainHead();
+        tracker.reset(tip, store);
+        assertEquals(tip.getHeader().getTimeSeconds(), tracker.getMedianTimePast());
+
+        List<StoredBlock> chain = buildBranch(tip, 100);
+        for (StoredBlock block : chain) {
+            assertTrue(tracker.extend(block));
+            assertTrue(tracker.isTip(block));
+            assertEquals(naiveMedianTimePast(block), tracker.getMedianTimePast());
+        }
+    }
+
+    @Test
+    public void extend_rejectsBlocksNotOnTip() throws Exception {
+        MedianTimePastTracker tracker = new MedianTimePastTracker();
+        List<StoredBlock> chain = buildBranch(store.getChainHead(), 20);
+        tracker.reset(chain.get(19), store);
+        List<StoredBlock> fork = buildBranch(chain.get(14), 10);
+
+        assertFalse(tracker.extend(fork.get(0)));
+        assertTrue(tracker.isTip(chain.get(19)));
+        assertEquals(naiveMedianTimePast(chain.get(19)), tracker.getMedianTimePast());
+
+        tracker.reset(fork.get(9), store);
+        assertTrue(tracker.isTip(fork.get(9)));
+        assertFalse(tracker.isTip(chain.get(19)));
+        assertEquals(naiveMedianTimePast(fork.get(9)), tracker.getMedianTimePast());
+    }
+
+    private List<StoredBlock> buildBranch(StoredBlock from, int length) throws Exception {
+        List<StoredBlock> branch = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < length; i++) {
+            // Timestamps move forward on average but are often out of order, as they are on the real chains.
+            long time = prev.getHeader().getTimeSeconds() + random.nextInt(1200) - 400;
+            BtcBlock header = new BtcBlock(PARAMS, BtcBlock.BLOCK_VERSION_GENESIS, prev.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, time, prev.getHeader().getDifficultyTarget(), i,
+                    Collections.<BtcTransaction>emptyList()).cloneAsHeader();
+            prev = new StoredBlock(header, prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+            store.put(prev);
+            branch.add(prev);
+        }
+        return branch;
+    }
+
+    private long naiveMedianTimePast(StoredBlock block) throws Exception {
+        List<Long> timestamps = new ArrayList<Long>();
+        StoredBlock cursor = block;
+        while (cursor != null && timestamps.size() < MedianTimePastTracker.WINDOW) {
+            timestamps.add(cursor.getHeader().getTimeSeconds());
+            cursor = cursor.getPrev(store);
+        }
+        Collections.sort(timestamps);
+        return timestamps.get((timestamps.size() + 1) / 2 - 1);
+    }
+}
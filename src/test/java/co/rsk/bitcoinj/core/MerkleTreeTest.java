@@ -0,0 +1,81 @@
+package co.rsk.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MerkleTreeTest {
+    @Test
+    public void calculateRoot_matchesPairwiseHashing() {
+        for (int count : new int[] { 1, 2, 3, 5, 64, 1023, MerkleTree.PARALLEL_THRESHOLD,
+                MerkleTree.PARALLEL_THRESHOLD + 1, 9 * 1024 + 3 }) {
+            List<Sha256Hash> leaves = leaves(count);
+            List<List<Sha256Hash>> levels = levels(leaves);
+            Sha256Hash root = levels.get(levels.size() - 1).get(0);
+            assertEquals("count " + count, root, MerkleTree.calculateRoot(leaves));
+
+            MerkleTree tree = MerkleTree.build(leaves);
+            assertEquals(root, tree.getRoot());
+            assertEquals(levels.size() - 1, tree.getHeight());
+            for (int height = 0; height < levels.size(); height++) {
+                List<Sha256Hash> level = levels.get(height);
+                assertEquals(level.size(), tree.getWidth(height));
+                // Spot check the edges of the level and a few nodes in between.
+                for (int index = 0; index < level.size(); index += Math.max(1, level.size() / 7))
+                    assertEquals(level.get(index), tree.getNode(height, index));
+                assertEquals(level.get(level.size() - 1), tree.getNode(height, level.size() - 1));
+            }
+        }
+    }
+
+    @Test
+    public void getBranch_leadsToRoot() {
+        List<Sha256Hash> leaves = leaves(13);
+        MerkleTree tree = MerkleTree.build(leaves);
+        for (int i = 0; i < leaves.size(); i++) {
+            Sha256Hash node = leaves.get(i);
+            int index = i;
+            for (Sha256Hash sibling : tree.getBranch(i)) {
+                node = index % 2 == 0 ? combine(node, sibling) : combine(sibling, node);
+                index >>= 1;
+            }
+            assertEquals(tree.getRoot(), node);
+        }
+        assertEquals(Collections.<Sha256Hash>emptyList(), MerkleTree.build(leaves(1)).getBranch(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsEmptyTree() {
+        MerkleTree.build(new ArrayList<Sha256Hash>());
+    }
+
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.twiceOf(new byte[] { (byte) i, (byte) (i >> 8) }));
+        return leaves;
+    }
+
+    /** The levels of the tree calculated the straightforward way, one pair at a time. */
+    private static List<List<Sha256Hash>> levels(List<Sha256Hash> leaves) {
+        List<List<Sha256Hash>> levels = new ArrayList<List<Sha256Hash>>();
+        List<Sha256Hash> level = leaves;
+        levels.add(level);
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < level.size(); i += 2)
+                next.add(combine(level.get(i), level.get(Math.min(i + 1, level.size() - 1))));
+            levels.add(next);
+            level = next;
+        }
+        return levels;
+    }
+
+    private static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(left.getReversedBytes(), right.getReversedBytes()));
+    }
+}
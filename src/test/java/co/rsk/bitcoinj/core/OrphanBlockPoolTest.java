@@ -0,0 +1,161 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OrphanBlockPoolTest {
+    private List<BtcBlock> headers;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(RegTestParams.get());
+        Utils.setMockClock();
+        headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = RegTestParams.get().getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void takeChildren_returnsOrphansWaitingForParent() {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        assertTrue(pool.add(headers.get(3), null, null, null));
+        assertTrue(pool.add(headers.get(5), null, null, null));
+        assertFalse(pool.add(headers.get(3), null, null, null));
+        assertEquals(2, pool.size());
+        assertTrue(pool.contains(headers.get(3).getHash()));
+
+        assertTrue(pool.takeChildren(headers.get(0).getHash()).isEmpty());
+        List<OrphanBlockPool.OrphanBlock> children = pool.takeChildren(headers.get(2).getHash());
+        assertEquals(1, children.size());
+        assertEquals(headers.get(3), children.get(0).block);
+        assertFalse(pool.contains(headers.get(3).getHash()));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void removeDescendants_removesWholeSubtree() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        for (int i = 3; i <= 6; i++)
+            pool.add(headers.get(i), null, null, null);
+        BtcBlock sibling = FakeTxBuilder.makeSolvedTestBlock(headers.get(3)).cloneAsHeader();
+        pool.add(sibling, null, null, null);
+        pool.add(headers.get(9), null, null, null);
+
+        // Rejecting the block at index 3 leaves the orphans at 4, 5, 6 and the sibling at 4 without a way to connect.
+        assertEquals(4, pool.removeDescendants(headers.get(3).getHash()));
+        assertTrue(pool.contains(headers.get(3).getHash()));
+        assertFalse(pool.contains(sibling.getHash()));
+        assertFalse(pool.contains(headers.get(6).getHash()));
+        assertTrue(pool.contains(headers.get(9).getHash()));
+        assertEquals(2, pool.size());
+        assertEquals(0, pool.removeDescendants(headers.get(9).getHash()));
+    }
+
+    @Test
+    public void add_evictsOldestWhenFull() {
+        OrphanBlockPool pool = new OrphanBlockPool(3, OrphanBlockPool.DEFAULT_MAX_AGE_MILLIS);
+        for (int i = 1; i <= 5; i++)
+            pool.add(headers.get(i), null, null, null);
+        assertEquals(3, pool.size());
+        assertFalse(pool.contains(headers.get(1).getHash()));
+        assertFalse(pool.contains(headers.get(2).getHash()));
+        assertTrue(pool.contains(headers.get(3).getHash()));
+        assertTrue(pool.contains(headers.get(5).getHash()));
+        // Evicted orphans aren't returned as children either.
+        assertTrue(pool.takeChildren(headers.get(0).getHash()).isEmpty());
+    }
+
+    @Test
+    public void add_dropsExpiredOrphans() {
+        OrphanBlockPool pool = new OrphanBlockPool(100, 60 * 1000);
+        pool.add(headers.get(1), null, null, null);
+        pool.add(headers.get(2), null, null, null);
+        Utils.rollMockClock(30);
+        pool.add(headers.get(3), null, null, null);
+        Utils.rollMockClock(31);
+        pool.add(headers.get(4), null, null, null);
+        assertFalse(pool.contains(headers.get(1).getHash()));
+        assertFalse(pool.contains(headers.get(2).getHash()));
+        assertTrue(pool.contains(headers.get(3).getHash()));
+        assertTrue(pool.contains(headers.get(4).getHash()));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void add_keepsWithinByteBudget() {
+        long headerSize = headers.get(1).getOptimalEncodingMessageSize();
+        OrphanBlockPool pool = new OrphanBlockPool(100, 3 * headerSize, OrphanBlockPool.DEFAULT_MAX_AGE_MILLIS);
+        for (int i = 1; i <= 5; i++)
+            assertTrue(pool.add(headers.get(i), null, null, null));
+        assertEquals(3, pool.size());
+        assertEquals(3 * headerSize, pool.sizeInBytes());
+        assertFalse(pool.contains(headers.get(2).getHash()));
+        assertTrue(pool.contains(headers.get(3).getHash()));
+
+        pool.takeChildren(headers.get(2).getHash());
+        assertEquals(2 * headerSize, pool.sizeInBytes());
+    }
+
+    @Test
+    public void add_whenFull_dropsLeastWorkFirst() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool(3, OrphanBlockPool.DEFAULT_MAX_AGE_MILLIS);
+        for (int i = 1; i <= 3; i++)
+            pool.add(headers.get(i), null, null, null);
+        BtcBlock cheap = FakeTxBuilder.makeSolvedTestBlock(headers.get(5)).cloneAsHeader();
+        cheap.setDifficultyTarget(0x217fffffL);
+        BtcBlock expensive = FakeTxBuilder.makeSolvedTestBlock(headers.get(5)).cloneAsHeader();
+        expensive.setDifficultyTarget(0x1f7fffffL);
+
+        // A block with less work than all the orphans doesn't push any of them out.
+        assertFalse(pool.add(cheap, null, null, null));
+        assertEquals(3, pool.size());
+        assertTrue(pool.contains(headers.get(1).getHash()));
+
+        assertTrue(pool.add(expensive, null, null, null));
+        assertFalse(pool.contains(headers.get(1).getHash()));
+        assertTrue(pool.add(headers.get(4), null, null, null));
+        assertFalse(pool.contains(headers.get(2).getHash()));
+        assertTrue(pool.contains(expensive.getHash()));
+    }
+
+    @Test
+    public void contains_dropsExpiredOrphans() {
+        OrphanBlockPool pool = new OrphanBlockPool(100, 60 * 1000);
+        pool.add(headers.get(1), null, null, null);
+        Utils.rollMockClock(61);
+        assertFalse(pool.contains(headers.get(1).getHash()));
+        assertTrue(pool.isEmpty());
+        assertEquals(0, pool.sizeInBytes());
+    }
+
+    @Test
+    public void isWaiting_followsTheOrphansHeld() {
+        OrphanBlockPool pool = new OrphanBlockPool(100, 60 * 1000);
+        pool.add(headers.get(1), null, null, null);
+        pool.add(headers.get(3), null, null, null);
+        assertTrue(pool.isWaiting(headers.get(1).getHash()));
+        assertFalse(pool.isWaiting(headers.get(2).getHash()));
+
+        pool.takeChildren(headers.get(0).getHash());
+        assertFalse(pool.isWaiting(headers.get(1).getHash()));
+        // Expired, although nothing dropped it yet.
+        Utils.rollMockClock(61);
+        assertFalse(pool.isWaiting(headers.get(3).getHash()));
+    }
+}
@@ -0,0 +1,73 @@
+package co.rsk.bitcoinj.core;
+
+import co.rsk.bitcoinj.params.RegTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PartialMerkleTreeTest {
+    private static final NetworkParameters PARAMS = RegTestParams.get();
+
+    @Test
+    public void buildFromLeaves_roundTripsRootAndMatches() throws Exception {
+        for (int count : new int[] { 1, 2, 3, 7, 8, 13, 100 }) {
+            List<Sha256Hash> leaves = leaves(count);
+            byte[] includeBits = new byte[(count + 7) / 8];
+            List<Sha256Hash> expectedMatches = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < count; i += 3) {
+                Utils.setBitLE(includeBits, i);
+                expectedMatches.add(leaves.get(i));
+            }
+            PartialMerkleTree tree = PartialMerkleTree.buildFromLeaves(PARAMS, includeBits, leaves);
+
+            List<Sha256Hash> matches = new ArrayList<Sha256Hash>();
+            assertEquals("count " + count, merkleRoot(leaves), tree.getTxnHashAndMerkleRoot(matches));
+            assertEquals(expectedMatches, matches);
+
+            // Nothing matched: just the root is stored.
+            PartialMerkleTree rootOnly = PartialMerkleTree.buildFromLeaves(PARAMS, new byte[includeBits.length], leaves);
+            assertEquals(merkleRoot(leaves), rootOnly.getTxnHashAndMerkleRoot(matches));
+            assertEquals(0, matches.size());
+        }
+    }
+
+    @Test
+    public void getTxnHashAndMerkleRoot_rejectsDuplicatedBranches() throws Exception {
+        Sha256Hash leaf = leaves(1).get(0);
+        // Both leaves stored and matched, but they're the same hash.
+        PartialMerkleTree tree = new PartialMerkleTree(PARAMS, new byte[] { 0x07 }, Arrays.asList(leaf, leaf), 2);
+        try {
+            tree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+            fail();
+        } catch (VerificationException e) {
+            assertEquals("Invalid merkle tree with duplicated left/right branches", e.getMessage());
+        }
+    }
+
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.twiceOf(new byte[] { (byte) i, (byte) (i >> 8) }));
+        return leaves;
+    }
+
+    /** The merkle root calculated the straightforward way, one pair at a time. */
+    private static Sha256Hash merkleRoot(List<Sha256Hash> level) {
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < level.size(); i += 2) {
+                Sha256Hash left = level.get(i);
+                Sha256Hash right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(left.getReversedBytes(),
+                        right.getReversedBytes())));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+}
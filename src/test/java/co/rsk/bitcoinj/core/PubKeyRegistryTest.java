@@ -0,0 +1,86 @@
+package co.rsk.bitcoinj.core;
+
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PubKeyRegistryTest {
+    @Test
+    public void verify_registeredKeysAgreeWithSigner() {
+        PubKeyRegistry registry = new PubKeyRegistry();
+        for (int i = 0; i < 10; i++) {
+            BtcECKey key = new BtcECKey();
+            BtcECKey uncompressed = key.decompress();
+            registry.register(key.getPubKey());
+            registry.register(uncompressed.getPubKey());
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            BtcECKey.ECDSASignature signature = key.sign(hash);
+            BtcECKey.ECDSASignature otherHashSignature = key.sign(Sha256Hash.of(new byte[] { (byte) ~i }));
+
+            for (byte[] pubKey : new byte[][] { key.getPubKey(), uncompressed.getPubKey() }) {
+                assertTrue(registry.verify(hash.getBytes(), signature, pubKey));
+                assertFalse(registry.verify(hash.getBytes(), otherHashSignature, pubKey));
+                // Out of range components.
+                assertFalse(registry.verify(hash.getBytes(),
+                        new BtcECKey.ECDSASignature(signature.r, BigInteger.ZERO), pubKey));
+                assertFalse(registry.verify(hash.getBytes(),
+                        new BtcECKey.ECDSASignature(BtcECKey.CURVE.getN().add(signature.r), signature.s), pubKey));
+                assertEquals(verifyWithSigner(hash.getBytes(), signature.toCanonicalised(), pubKey),
+                        registry.verify(hash.getBytes(), signature.toCanonicalised(), pubKey));
+            }
+        }
+        assertEquals(20, registry.getRegisteredCount());
+    }
+
+    @Test
+    public void decode_keepsPointsAndCompression() {
+        PubKeyRegistry registry = new PubKeyRegistry(2);
+        BtcECKey key = new BtcECKey();
+        byte[] compressed = key.getPubKey();
+        byte[] uncompressed = key.decompress().getPubKey();
+
+        assertSame(registry.decode(compressed), registry.decode(compressed.clone()));
+        assertArrayEquals(compressed, registry.decode(compressed).getEncoded());
+        assertArrayEquals(uncompressed, registry.decode(uncompressed).getEncoded());
+        assertTrue(registry.decode(compressed).isNormalized());
+
+        assertFalse(registry.isRegistered(compressed));
+        registry.register(compressed);
+        assertTrue(registry.isRegistered(compressed));
+        assertTrue(registry.unregister(compressed));
+        assertFalse(registry.unregister(compressed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void register_rejectsBadKey() {
+        new PubKeyRegistry().register(new byte[] { 2, 3 });
+    }
+
+    @Test
+    public void fromPublicOnly_roundTripsThroughRegistry() {
+        BtcECKey key = new BtcECKey();
+        BtcECKey.getPubKeyRegistry().register(key.getPubKey());
+        try {
+            BtcECKey publicOnly = BtcECKey.fromPublicOnly(key.getPubKey());
+            assertArrayEquals(key.getPubKey(), publicOnly.getPubKey());
+            Sha256Hash hash = Sha256Hash.of(new byte[] { 42 });
+            assertTrue(publicOnly.verify(hash, key.sign(hash)));
+        } finally {
+            BtcECKey.getPubKeyRegistry().unregister(key.getPubKey());
+        }
+    }
+
+    private static boolean verifyWithSigner(byte[] hash, BtcECKey.ECDSASignature signature, byte[] pubKey) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(BtcECKey.CURVE.getCurve().decodePoint(pubKey), BtcECKey.CURVE));
+        return signer.verifySignature(hash, signature.r, signature.s);
+    }
+}
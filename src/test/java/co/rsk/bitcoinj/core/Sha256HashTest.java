@@ -0,0 +1,115 @@
+package co.rsk.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static co.rsk.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Sha256HashTest {
+    @Test
+    public void hashTwice_knownValue() {
+        // Double SHA-256 of "hello".
+        assertEquals("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50",
+                HEX.encode(Sha256Hash.hashTwice("hello".getBytes(StandardCharsets.US_ASCII))));
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                HEX.encode(Sha256Hash.hash("hello".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    public void hashTwiceInto_writesAtOffset() {
+        byte[] input = new byte[100];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+        byte[] output = new byte[40];
+        Sha256Hash.hashTwiceInto(input, 10, 80, output, 5);
+        assertArrayEquals(Sha256Hash.hashTwice(input, 10, 80), Arrays.copyOfRange(output, 5, 37));
+        assertArrayEquals(new byte[5], Arrays.copyOfRange(output, 0, 5));
+        assertArrayEquals(new byte[3], Arrays.copyOfRange(output, 37, 40));
+    }
+
+    @Test
+    public void hashTwiceInto_pairMatchesConcatenation() {
+        byte[] left = Sha256Hash.hash(new byte[] { 1 });
+        byte[] right = Sha256Hash.hash(new byte[] { 2 });
+        byte[] expected = Sha256Hash.hashTwice(left, right);
+
+        byte[] output = new byte[32];
+        Sha256Hash.hashTwiceInto(left, 0, right, 0, output, 0);
+        assertArrayEquals(expected, output);
+
+        // In place, over the first of two adjacent hashes, as in a merkle tree level.
+        byte[] level = new byte[64];
+        System.arraycopy(left, 0, level, 0, 32);
+        System.arraycopy(right, 0, level, 32, 32);
+        Sha256Hash.hashTwiceInto(level, 0, level, 32, level, 0);
+        assertArrayEquals(expected, Arrays.copyOf(level, 32));
+    }
+
+    @Test
+    public void hashTwiceBatch_matchesSingleHashes() {
+        byte[] input = new byte[5 * 64 + 3];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) (i * 7);
+        byte[] output = new byte[5 * 32 + 1];
+        Sha256Hash.hashTwiceBatch(input, 3, output, 1, 5);
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(Sha256Hash.hashTwice(input, 3 + i * 64, 64),
+                    Arrays.copyOfRange(output, 1 + i * 32, 33 + i * 32));
+
+        // In place, a level into the next one.
+        byte[] expected = Arrays.copyOfRange(output, 1, output.length);
+        Sha256Hash.hashTwiceBatch(input, 3, input, 3, 5);
+        assertArrayEquals(expected, Arrays.copyOfRange(input, 3, 3 + 5 * 32));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashTwiceBatch_rejectsOutputAheadOfInput() {
+        byte[] buffer = new byte[256];
+        Sha256Hash.hashTwiceBatch(buffer, 0, buffer, 32, 2);
+    }
+
+    @Test
+    public void hashTwiceInto_recoversAfterBadOffset() {
+        byte[] input = new byte[64];
+        try {
+            Sha256Hash.hashTwiceInto(input, 0, input, 48, new byte[32], 0);
+        } catch (RuntimeException e) {
+            // The second hash runs past the end of the array.
+        }
+        assertArrayEquals(Sha256Hash.hashTwice(input, 0, 64), Sha256Hash.hashTwice(new byte[64]));
+    }
+
+    @Test
+    public void hashTwice_isThreadConfined() throws Exception {
+        final byte[] input = new byte[1000];
+        final byte[] expected = Sha256Hash.hashTwice(input);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Callable<Boolean> task = new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < 2000; i++) {
+                        if (!Arrays.equals(expected, Sha256Hash.hashTwice(input)))
+                            return false;
+                    }
+                    return true;
+                }
+            };
+            Future<?>[] results = new Future<?>[4];
+            for (int i = 0; i < results.length; i++)
+                results[i] = executor.submit(task);
+            for (Future<?> result : results)
+                assertEquals(Boolean.TRUE, result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -2,7 +2,13 @@ package co.rsk.bitcoinj.core;
 
 import static co.rsk.bitcoinj.core.StoredBlock.COMPACT_SERIALIZED_SIZE_LEGACY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -10,6 +16,8 @@ import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class StoredBlockTest {
 
@@ -195,6 +203,76 @@ public class StoredBlockTest {
         testSerializeAndDeserializeCompactV2(MAX_WORK_V2);
     }
 
+    @Test
+    public void getSkipHeight_isLowerThanHeight() {
+        assertEquals(0, StoredBlock.getSkipHeight(0));
+        assertEquals(0, StoredBlock.getSkipHeight(1));
+        for (int height = 2; height < 100000; height++) {
+            int skipHeight = StoredBlock.getSkipHeight(height);
+            assertTrue(skipHeight >= 0 && skipHeight < height);
+        }
+    }
+
+    @Test
+    public void getAncestor_returnsBlockAtEveryHeight() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        new Context(params);
+        BtcBlockStore store = new BtcMemoryBlockStore(params);
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = store.getChainHead();
+        chain.add(cursor);
+        for (int i = 0; i < 300; i++) {
+            cursor = cursor.build(FakeTxBuilder.makeSolvedTestBlock(cursor.getHeader()).cloneAsHeader(), store);
+            store.put(cursor);
+            chain.add(cursor);
+        }
+
+        for (StoredBlock descendant : new StoredBlock[] { cursor, chain.get(257), chain.get(100) }) {
+            for (int height = 0; height <= descendant.getHeight(); height++)
+                assertEquals(chain.get(height), descendant.getAncestor(store, height));
+            assertNull(descendant.getAncestor(store, descendant.getHeight() + 1));
+            assertNull(descendant.getAncestor(store, -1));
+        }
+    }
+
+    @Test
+    public void getAncestor_withoutSkipPointers_walksPreviousBlocks() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        new Context(params);
+        BtcBlockStore store = new BtcMemoryBlockStore(params);
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = store.getChainHead();
+        chain.add(cursor);
+        for (int i = 0; i < 20; i++) {
+            cursor = cursor.build(FakeTxBuilder.makeSolvedTestBlock(cursor.getHeader()).cloneAsHeader());
+            store.put(cursor);
+            chain.add(cursor);
+        }
+
+        for (int height = 0; height <= cursor.getHeight(); height++)
+            assertEquals(chain.get(height), cursor.getAncestor(store, height));
+    }
+
+    @Test
+    public void buildWithStore_afterBlocksWithoutSkipPointers_leavesBlockUnlinked() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        new Context(params);
+        BtcBlockStore store = new BtcMemoryBlockStore(params);
+        StoredBlock cursor = store.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            cursor = cursor.build(FakeTxBuilder.makeSolvedTestBlock(cursor.getHeader()).cloneAsHeader());
+            store.put(cursor);
+        }
+
+        // Linking height 21 would need a walk back to height 1 through blocks that have no skip pointers.
+        StoredBlock unlinked = cursor.build(FakeTxBuilder.makeSolvedTestBlock(cursor.getHeader()).cloneAsHeader(), store);
+        assertNull(unlinked.getSkipHash());
+        // Linking height 22 to height 20 only needs the previous block, which is always allowed.
+        store.put(unlinked);
+        StoredBlock linked = unlinked.build(FakeTxBuilder.makeSolvedTestBlock(unlinked.getHeader()).cloneAsHeader(), store);
+        assertEquals(cursor.getHeader().getHash(), linked.getSkipHash());
+    }
+
     private void testSerializeAndDeserializeCompactV2(BigInteger chainWork) {
         StoredBlock blockToStore = new StoredBlock(block, chainWork, 0);
         ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
@@ -0,0 +1,90 @@
+package co.rsk.bitcoinj.params;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.BtcBlockChain;
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.core.VerificationException;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class AbstractBitcoinNetParamsTest {
+    // Unit test blocks are mined so fast that the first retarget makes the target four times harder.
+    private static final long FIRST_RETARGET_BITS = 0x201fffffL;
+
+    private UnitTestParams params;
+    private BtcBlockStore store;
+
+    @Before
+    public void setUp() {
+        // A fresh instance, so no other test has seen its blocks.
+        params = new UnitTestParams();
+        new Context(params);
+        store = new BtcMemoryBlockStore(params);
+    }
+
+    @Test
+    public void retarget_withEpochRememberedWhileConnecting() throws Exception {
+        BtcBlockChain chain = new BtcBlockChain(new Context(params), store);
+        BtcBlock prev = params.getGenesisBlock();
+        for (int height = 1; height < params.getInterval(); height++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            assertTrue(chain.add(prev));
+        }
+        assertTrue(chain.add(nextBlockWithBits(prev, FIRST_RETARGET_BITS)));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void retarget_withEpochRememberedWhileConnecting_rejectsWrongBits() throws Exception {
+        BtcBlockChain chain = new BtcBlockChain(new Context(params), store);
+        BtcBlock prev = params.getGenesisBlock();
+        for (int height = 1; height < params.getInterval(); height++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            assertTrue(chain.add(prev));
+        }
+        chain.add(nextBlockWithBits(prev, prev.getDifficultyTarget()));
+    }
+
+    @Test
+    public void retarget_withUnknownEpoch_walksTheStore() throws Exception {
+        StoredBlock storedPrev = storeBlocksWithoutChecks(params.getInterval() - 1);
+        params.checkDifficultyTransitions(storedPrev, nextBlockWithBits(storedPrev.getHeader(), FIRST_RETARGET_BITS), store);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void retarget_withUnknownEpoch_rejectsWrongBits() throws Exception {
+        StoredBlock storedPrev = storeBlocksWithoutChecks(params.getInterval() - 1);
+        params.checkDifficultyTransitions(storedPrev,
+                nextBlockWithBits(storedPrev.getHeader(), storedPrev.getHeader().getDifficultyTarget()), store);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void retarget_withMissingAncestors_fails() throws Exception {
+        StoredBlock storedPrev = storeBlocksWithoutChecks(params.getInterval() - 1);
+        BtcBlockStore emptyStore = new BtcMemoryBlockStore(params);
+        emptyStore.put(storedPrev);
+        params.checkDifficultyTransitions(storedPrev, nextBlockWithBits(storedPrev.getHeader(), FIRST_RETARGET_BITS),
+                emptyStore);
+    }
+
+    private StoredBlock storeBlocksWithoutChecks(int height) throws Exception {
+        StoredBlock cursor = store.getChainHead();
+        while (cursor.getHeight() < height) {
+            cursor = cursor.build(FakeTxBuilder.makeSolvedTestBlock(cursor.getHeader()).cloneAsHeader());
+            store.put(cursor);
+        }
+        return cursor;
+    }
+
+    private static BtcBlock nextBlockWithBits(BtcBlock prev, long bits) throws Exception {
+        BtcBlock next = FakeTxBuilder.makeSolvedTestBlock(prev);
+        next.setDifficultyTarget(bits);
+        next.solve();
+        return next.cloneAsHeader();
+    }
+}
@@ -0,0 +1,126 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BlockHashTableTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final StoredBlock BLOCK = new StoredBlock(PARAMS.getGenesisBlock().cloneAsHeader(), BigInteger.ONE, 0);
+
+    private static Sha256Hash hashOf(int i) {
+        return Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array());
+    }
+
+    private static StoredBlock blockAt(int height) {
+        return new StoredBlock(BLOCK.getHeader(), BigInteger.valueOf(height), height);
+    }
+
+    @Test
+    public void putAndGet() {
+        BlockHashTable table = new BlockHashTable();
+        for (int i = 0; i < 1000; i++)
+            table.put(hashOf(i), blockAt(i));
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, table.get(hashOf(i)).getHeight());
+        assertNull(table.get(hashOf(1000)));
+        assertNull(table.get(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void putReplacesValue() {
+        BlockHashTable table = new BlockHashTable(10);
+        table.put(hashOf(1), blockAt(1));
+        table.put(hashOf(1), blockAt(2));
+        assertEquals(1, table.size());
+        assertEquals(2, table.get(hashOf(1)).getHeight());
+    }
+
+    @Test
+    public void boundedTable_evictsEldest() {
+        int maxSize = 50;
+        BlockHashTable table = new BlockHashTable(maxSize);
+        // Enough insertions to force several rebuilds of the underlying table.
+        for (int i = 0; i < maxSize * 10; i++) {
+            table.put(hashOf(i), blockAt(i));
+            assertTrue(table.size() <= maxSize);
+        }
+        for (int i = 0; i < maxSize * 9; i++)
+            assertNull(table.get(hashOf(i)));
+        for (int i = maxSize * 9; i < maxSize * 10; i++)
+            assertEquals(i, table.get(hashOf(i)).getHeight());
+    }
+
+    @Test
+    public void boundedTable_replacingKeepsInsertionOrder() {
+        BlockHashTable table = new BlockHashTable(2);
+        table.put(hashOf(1), blockAt(1));
+        table.put(hashOf(2), blockAt(2));
+        table.put(hashOf(1), blockAt(10));
+        table.put(hashOf(3), blockAt(3));
+        assertNull(table.get(hashOf(1)));
+        assertEquals(2, table.get(hashOf(2)).getHeight());
+        assertEquals(3, table.get(hashOf(3)).getHeight());
+    }
+
+    @Test
+    public void readersRunConcurrentlyWithWriter() throws Exception {
+        final int entries = 20000;
+        final BlockHashTable table = new BlockHashTable();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        table.put(hashOf(-1), blockAt(BtcBlock.BLOCK_HEIGHT_GENESIS));
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    StoredBlock block = table.get(hashOf(-1));
+                    if (block == null || block.getHeight() != BtcBlock.BLOCK_HEIGHT_GENESIS)
+                        failure.set("Lost an entry during a rebuild");
+                    for (int i = 0; i < 100; i++) {
+                        StoredBlock other = table.get(hashOf(i));
+                        if (other != null && other.getHeight() != i)
+                            failure.set("Read a mismatched entry for " + i);
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < entries; i++)
+            table.put(hashOf(i), blockAt(i));
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(entries + 1, table.size());
+    }
+
+    @Test
+    public void remove_leavesOtherEntriesReachable() {
+        BlockHashTable table = new BlockHashTable();
+        for (int i = 0; i < 1000; i++)
+            table.put(hashOf(i), blockAt(i));
+        for (int i = 0; i < 1000; i += 2)
+            assertTrue(table.remove(hashOf(i)));
+        assertFalse(table.remove(hashOf(0)));
+        assertEquals(500, table.size());
+        assertEquals(500, table.values().size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? null : blockAt(i), table.get(hashOf(i)));
+        // Tombstones are reclaimed as the table grows again.
+        for (int i = 1000; i < 3000; i++)
+            table.put(hashOf(i), blockAt(i));
+        assertEquals(2500, table.size());
+        assertEquals(blockAt(999), table.get(hashOf(999)));
+    }
+}
@@ -0,0 +1,129 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.BtcBlockChain;
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BtcMemoryBlockStoreTest {
+    // Retargets every 10 blocks.
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+    }
+
+    @Test
+    public void prune_keepsRecentMainChainAndRetargetBoundaries() throws Exception {
+        BtcMemoryBlockStore store = new BtcMemoryBlockStore(PARAMS, new BlockRetentionPolicy(PARAMS, 20, 5, null));
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 200);
+        store.prune();
+        StoredBlock head = store.getChainHead();
+        assertEquals(200, head.getHeight());
+        for (StoredBlock block : chain) {
+            boolean kept = store.get(block.getHeader().getHash()) != null;
+            boolean expected = block.getHeight() > 180 || block.getHeight() % 10 == 0;
+            assertEquals("Block at height " + block.getHeight(), expected, kept);
+            assertEquals(expected, store.getInMainchain(block.getHeight()).isPresent());
+        }
+        assertNotNull(store.get(PARAMS.getGenesisBlock().getHash()));
+        // The start of the last complete difficulty period can still be reached from the chain head.
+        assertEquals(chain.get(189), head.getAncestor(store, 190));
+    }
+
+    @Test
+    public void prune_dropsSideChainsBelowTheHorizon() throws Exception {
+        BtcMemoryBlockStore store = new BtcMemoryBlockStore(PARAMS, new BlockRetentionPolicy(PARAMS, 20, 5, null));
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 100);
+        StoredBlock head = store.getChainHead();
+        // An old side chain, forking at height 90, and a recent one forking at 97.
+        List<StoredBlock> oldSide = sideBranch(store, chain.get(89), 3);
+        List<StoredBlock> recentSide = sideBranch(store, chain.get(96), 2);
+        store.setChainHead(head);
+        store.prune();
+        for (StoredBlock block : oldSide)
+            assertNull(store.get(block.getHeader().getHash()));
+        for (StoredBlock block : recentSide)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+    }
+
+    @Test
+    public void prune_sideBlockWithoutItsParentIsDropped() throws Exception {
+        BtcMemoryBlockStore store = new BtcMemoryBlockStore(PARAMS, new BlockRetentionPolicy(PARAMS, 20, 5, null));
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 100);
+        // Forks below the horizon but reaches above it.
+        List<StoredBlock> side = sideBranch(store, chain.get(91), 8);
+        store.prune();
+        for (StoredBlock block : side)
+            assertNull(store.get(block.getHeader().getHash()));
+    }
+
+    @Test
+    public void policy_anchorsRetargetBoundaries() throws Exception {
+        BlockRetentionPolicy policy = new BlockRetentionPolicy(PARAMS, 20, 5, null);
+        assertTrue(policy.isAnchor(30, PARAMS.getGenesisBlock().getHash()));
+        assertFalse(policy.isAnchor(31, PARAMS.getGenesisBlock().getHash()));
+    }
+
+    @Test
+    public void prune_runsAsTheChainHeadMoves() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        BlockRetentionPolicy policy = new BlockRetentionPolicy(regtest, 1000, 100, null);
+        BtcMemoryBlockStore store = new BtcMemoryBlockStore(regtest, policy);
+        BtcBlockChain blockChain = new BtcBlockChain(new Context(regtest), store);
+        List<BtcBlock> headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = regtest.getGenesisBlock();
+        for (int i = 0; i < 3000; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+        for (BtcBlock header : headers)
+            assertTrue(blockChain.add(header));
+        assertEquals(3000, blockChain.getBestChainHeight());
+        // The last 1000 blocks, the genesis block and at most a prune interval of extra blocks.
+        assertNull(store.get(headers.get(1000).getHash()));
+        assertNotNull(store.get(headers.get(2999).getHash()));
+        assertTrue(store.getInMainchain(0).isPresent());
+        assertFalse(store.getInMainchain(1000).isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void policy_mustCoverARetargetInterval() {
+        new BlockRetentionPolicy(PARAMS, 9, 5, null);
+    }
+
+    private static List<StoredBlock> extend(BtcBlockStore store, StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private static List<StoredBlock> sideBranch(BtcBlockStore store, StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class BtcSPVBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File blockStoreFile;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        blockStoreFile = new File(tmp.getRoot(), "spvstore");
+    }
+
+    @Test
+    public void basics() throws Exception {
+        BtcSPVBlockStore store = new BtcSPVBlockStore(PARAMS, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(PARAMS.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getInMainchain(0).get());
+
+        StoredBlock b1 = FakeTxBuilder.createFakeBlock(store, 1).storedBlock;
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new BtcSPVBlockStore(PARAMS, blockStoreFile);
+        StoredBlock b2 = store.get(b1.getHeader().getHash());
+        assertEquals(b1, b2);
+        // Check the chain head and the main chain index were stored correctly also.
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getInMainchain(1).get());
+        assertEquals(genesis, store.getInMainchain(0).get());
+        assertFalse(store.getInMainchain(2).isPresent());
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void twoStores_onSameFile() throws Exception {
+        new BtcSPVBlockStore(PARAMS, blockStoreFile);
+        new BtcSPVBlockStore(PARAMS, blockStoreFile);
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void reopen_withDifferentCapacity_fails() throws Exception {
+        new BtcSPVBlockStore(PARAMS, blockStoreFile, 10).close();
+        new BtcSPVBlockStore(PARAMS, blockStoreFile, 20);
+    }
+
+    @Test
+    public void ringWrapsAround() throws Exception {
+        int numHeaders = 10;
+        BtcSPVBlockStore store = new BtcSPVBlockStore(PARAMS, blockStoreFile, numHeaders);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock head = genesis;
+        for (int height = 1; height <= numHeaders + 5; height++) {
+            head = FakeTxBuilder.createFakeBlock(store, head, height).storedBlock;
+        }
+        store.close();
+
+        store = new BtcSPVBlockStore(PARAMS, blockStoreFile, numHeaders);
+        assertEquals(head, store.getChainHead());
+        // The oldest headers were overwritten by the newest ones.
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertFalse(store.getInMainchain(0).isPresent());
+        assertFalse(store.getInMainchain(5).isPresent());
+        // Every header still in the ring can be walked back through the main chain index.
+        StoredBlock cursor = head;
+        for (int height = head.getHeight(); height > head.getHeight() - numHeaders; height--) {
+            assertEquals(cursor, store.getInMainchain(height).get());
+            cursor = cursor.getPrev(store);
+        }
+        assertNull(cursor);
+        store.close();
+    }
+
+    @Test
+    public void putTwice_doesNotDuplicateRecord() throws Exception {
+        int numHeaders = 3;
+        BtcSPVBlockStore store = new BtcSPVBlockStore(PARAMS, blockStoreFile, numHeaders);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = FakeTxBuilder.createFakeBlock(store, genesis, 1).storedBlock;
+        store.put(b1);
+        store.put(b1);
+        StoredBlock b2 = FakeTxBuilder.createFakeBlock(store, b1, 2).storedBlock;
+
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b2, store.get(b2.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void get_afterClose_fails() throws Exception {
+        BtcSPVBlockStore store = new BtcSPVBlockStore(PARAMS, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        store.close();
+        store.get(genesis.getHeader().getHash());
+    }
+}
@@ -0,0 +1,128 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.BtcBlockChain;
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.Sha256Hash;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class CachingBtcBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private CountingBlockStore delegate;
+    private CachingBtcBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        delegate = new CountingBlockStore(PARAMS);
+        store = new CachingBtcBlockStore(delegate, 100, Long.MAX_VALUE, 10);
+    }
+
+    @Test
+    public void get_isServedFromMemoryAfterTheFirstTime() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = next(genesis);
+        delegate.put(b1);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(1, delegate.gets);
+    }
+
+    @Test
+    public void get_remembersMissingBlocksUntilTheyArePut() throws Exception {
+        StoredBlock b1 = next(store.getChainHead());
+        Sha256Hash hash = b1.getHeader().getHash();
+        assertNull(store.get(hash));
+        assertNull(store.get(hash));
+        assertEquals(1, delegate.gets);
+        store.put(b1);
+        assertEquals(b1, store.get(hash));
+    }
+
+    @Test
+    public void getInMainchain_followsChainHead() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock prev = genesis;
+        for (int i = 0; i < 5; i++) {
+            prev = next(prev);
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        assertEquals(prev, store.getInMainchain(5).get());
+        int gets = delegate.gets;
+        store.getInMainchain(4);
+        assertEquals(gets, delegate.gets);
+
+        StoredBlock fork = next(genesis);
+        store.put(fork);
+        store.setChainHead(fork);
+        assertEquals(fork, store.getInMainchain(1).get());
+        assertEquals(Optional.empty(), store.getInMainchain(2));
+    }
+
+    @Test
+    public void abortedBatch_isForgotten() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        H2BtcBlockStore h2 = new H2BtcBlockStore(regtest, "mem:" + getClass().getSimpleName());
+        CachingBtcBlockStore store = new CachingBtcBlockStore(h2);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = next(genesis);
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.setChainHead(b1);
+        assertEquals(b1, store.getInMainchain(1).get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.getChainHead());
+        assertFalse(store.getInMainchain(1).isPresent());
+        store.close();
+    }
+
+    @Test
+    public void chain_overCachedStore() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        CachingBtcBlockStore store = new CachingBtcBlockStore(new BtcMemoryBlockStore(regtest), 50, Long.MAX_VALUE, 10);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+        List<BtcBlock> headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = regtest.getGenesisBlock();
+        for (int i = 0; i < 300; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertTrue(chain.addHeaders(headers).success());
+        assertEquals(300, chain.getBestChainHeight());
+        assertTrue(store.getCachedBlockCount() <= 50);
+        assertEquals(headers.get(0).getHash(), store.getInMainchain(1).get().getHeader().getHash());
+    }
+
+    private static StoredBlock next(StoredBlock prev) throws Exception {
+        return prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+    }
+
+    private static class CountingBlockStore extends BtcMemoryBlockStore {
+        int gets;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+}
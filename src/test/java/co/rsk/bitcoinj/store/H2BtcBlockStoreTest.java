@@ -0,0 +1,152 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.BtcBlockChain;
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2BtcBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String dbName;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        dbName = new File(tmp.getRoot(), "headers").getAbsolutePath();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        H2BtcBlockStore store = new H2BtcBlockStore(PARAMS, dbName);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(PARAMS.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getInMainchain(0).get());
+
+        StoredBlock b1 = FakeTxBuilder.createFakeBlock(store, 1).storedBlock;
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new H2BtcBlockStore(PARAMS, dbName);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getInMainchain(1).get());
+        assertEquals(genesis, store.getInMainchain(0).get());
+        assertFalse(store.getInMainchain(2).isPresent());
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void closedStore_throwsBlockStoreException() throws Exception {
+        H2BtcBlockStore store = new H2BtcBlockStore(PARAMS, dbName);
+        store.close();
+        store.beginDatabaseBatchWrite();
+    }
+
+    @Test
+    public void put_sameBlockTwiceKeepsItInTheMainChain() throws Exception {
+        H2BtcBlockStore store = new H2BtcBlockStore(PARAMS, dbName);
+        StoredBlock b1 = next(store.getChainHead());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.put(b1);
+        assertEquals(b1, store.getInMainchain(1).get());
+        store.close();
+    }
+
+    @Test
+    public void abortedBatch_isDropped() throws Exception {
+        H2BtcBlockStore store = new H2BtcBlockStore(PARAMS, dbName);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = next(genesis);
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.setChainHead(b1);
+        // Visible before the batch is committed.
+        assertEquals(b1, store.getInMainchain(1).get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.getChainHead());
+        assertFalse(store.getInMainchain(1).isPresent());
+        store.close();
+
+        store = new H2BtcBlockStore(PARAMS, dbName);
+        assertNull(store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void reorg_movesMainChainFlags() throws Exception {
+        H2BtcBlockStore store = new H2BtcBlockStore(PARAMS, dbName);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock prev = genesis;
+        for (int i = 0; i < 5; i++) {
+            prev = next(prev);
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        StoredBlock oldTip = prev;
+        // A shorter fork replaces the main chain from height 1.
+        StoredBlock fork1 = next(genesis);
+        StoredBlock fork2 = next(fork1);
+        store.beginDatabaseBatchWrite();
+        store.put(fork1);
+        store.setMainChainBlock(1, fork1.getHeader().getHash());
+        store.put(fork2);
+        store.setChainHead(fork2);
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = new H2BtcBlockStore(PARAMS, dbName);
+        assertEquals(fork2, store.getChainHead());
+        assertEquals(fork1, store.getInMainchain(1).get());
+        assertEquals(fork2, store.getInMainchain(2).get());
+        assertFalse(store.getInMainchain(3).isPresent());
+        // Blocks of the old chain are still there.
+        assertEquals(oldTip, store.get(oldTip.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void chain_addHeaders() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        H2BtcBlockStore store = new H2BtcBlockStore(regtest, dbName);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+        List<BtcBlock> headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = regtest.getGenesisBlock();
+        for (int i = 0; i < 500; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertTrue(chain.addHeaders(headers).success());
+        store.close();
+
+        store = new H2BtcBlockStore(regtest, dbName);
+        assertEquals(500, store.getChainHead().getHeight());
+        assertEquals(headers.get(0).getHash(), store.getInMainchain(1).get().getHeader().getHash());
+        assertEquals(headers.get(499).getHash(), store.getInMainchain(500).get().getHeader().getHash());
+        store.close();
+    }
+
+    private static StoredBlock next(StoredBlock prev) throws Exception {
+        return prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+    }
+}
@@ -0,0 +1,143 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.BtcBlock;
+import co.rsk.bitcoinj.core.BtcBlockChain;
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.RegTestParams;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LevelDBBtcBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        directory = new File(tmp.getRoot(), "leveldb");
+    }
+
+    @Test
+    public void basics() throws Exception {
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(PARAMS, directory);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(PARAMS.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getInMainchain(0).get());
+
+        StoredBlock b1 = FakeTxBuilder.createFakeBlock(store, 1).storedBlock;
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new LevelDBBtcBlockStore(PARAMS, directory);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getInMainchain(1).get());
+        assertEquals(genesis, store.getInMainchain(0).get());
+        assertFalse(store.getInMainchain(2).isPresent());
+        store.destroy();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void closedStore_throwsBlockStoreException() throws Exception {
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(PARAMS, directory);
+        store.close();
+        store.beginDatabaseBatchWrite();
+    }
+
+    @Test
+    public void batch_isVisibleRightAwayAndWrittenOnCommit() throws Exception {
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(PARAMS, directory);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(null).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.setChainHead(b1);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getInMainchain(1).get());
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = new LevelDBBtcBlockStore(PARAMS, directory);
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getInMainchain(1).get());
+        store.destroy();
+    }
+
+    @Test
+    public void abortedBatch_isDropped() throws Exception {
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(PARAMS, directory);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(null).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.setChainHead(b1);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.getChainHead());
+        assertFalse(store.getInMainchain(1).isPresent());
+        store.destroy();
+    }
+
+    @Test
+    public void reorgToShorterChain_dropsStaleMainChainEntries() throws Exception {
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(PARAMS, directory);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock prev = genesis;
+        for (int i = 0; i < 5; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        StoredBlock fork = genesis.build(genesis.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(fork);
+        store.setChainHead(fork);
+        store.close();
+
+        store = new LevelDBBtcBlockStore(PARAMS, directory);
+        assertEquals(fork, store.getChainHead());
+        assertEquals(fork, store.getInMainchain(1).get());
+        assertFalse(store.getInMainchain(2).isPresent());
+        // Blocks of the old chain are still there.
+        assertEquals(prev, store.get(prev.getHeader().getHash()));
+        store.destroy();
+    }
+
+    @Test
+    public void chain_holdsMoreThanMemoryStoreLimit() throws Exception {
+        NetworkParameters regtest = RegTestParams.get();
+        LevelDBBtcBlockStore store = new LevelDBBtcBlockStore(regtest, directory);
+        BtcBlockChain chain = new BtcBlockChain(new Context(regtest), store);
+        List<BtcBlock> headers = new ArrayList<BtcBlock>();
+        BtcBlock prev = regtest.getGenesisBlock();
+        int count = BtcMemoryBlockStore.DEFAULT_MAX_BLOCKS + 100;
+        for (int i = 0; i < count; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev).cloneAsHeader();
+            headers.add(prev);
+        }
+        for (int from = 0; from < count; from += 2000)
+            assertTrue(chain.addHeaders(headers.subList(from, Math.min(count, from + 2000))).success());
+        store.close();
+
+        store = new LevelDBBtcBlockStore(regtest, directory);
+        assertEquals(count, store.getChainHead().getHeight());
+        assertEquals(headers.get(0).getHash(), store.getInMainchain(1).get().getHeader().getHash());
+        assertEquals(headers.get(count - 1).getHash(), store.getInMainchain(count).get().getHeader().getHash());
+        store.destroy();
+    }
+}
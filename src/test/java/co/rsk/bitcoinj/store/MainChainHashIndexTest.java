@@ -0,0 +1,77 @@
+package co.rsk.bitcoinj.store;
+
+import co.rsk.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MainChainHashIndexTest {
+
+    private static Sha256Hash hashOf(int height, int branch) {
+        return Sha256Hash.of(ByteBuffer.allocate(8).putInt(height).putInt(branch).array());
+    }
+
+    @Test
+    public void setAndGet() {
+        MainChainHashIndex index = new MainChainHashIndex();
+        for (int height = 100; height < 1100; height++)
+            index.set(height, hashOf(height, 0));
+        for (int height = 100; height < 1100; height++)
+            assertEquals(hashOf(height, 0), index.get(height));
+        assertNull(index.get(99));
+        assertNull(index.get(1100));
+    }
+
+    @Test
+    public void gapsReadAsUnknown() {
+        MainChainHashIndex index = new MainChainHashIndex();
+        index.set(10, hashOf(10, 0));
+        index.set(20, hashOf(20, 0));
+        index.set(5, hashOf(5, 0));
+        assertEquals(hashOf(5, 0), index.get(5));
+        assertEquals(hashOf(10, 0), index.get(10));
+        assertEquals(hashOf(20, 0), index.get(20));
+        assertNull(index.get(6));
+        assertNull(index.get(15));
+    }
+
+    @Test
+    public void retentionKeepsHighestHeights() {
+        int retention = 100;
+        MainChainHashIndex index = new MainChainHashIndex(retention);
+        for (int height = 0; height < 1000; height++)
+            index.set(height, hashOf(height, 0));
+        assertNull(index.get(899));
+        for (int height = 900; height < 1000; height++)
+            assertEquals(hashOf(height, 0), index.get(height));
+        // Too old to be retained.
+        index.set(10, hashOf(10, 0));
+        assertNull(index.get(10));
+        // A jump past the retained window starts over.
+        index.set(5000, hashOf(5000, 0));
+        assertNull(index.get(999));
+        assertEquals(hashOf(5000, 0), index.get(5000));
+    }
+
+    @Test
+    public void reorgRewritesAndTruncates() {
+        MainChainHashIndex index = new MainChainHashIndex();
+        for (int height = 0; height <= 10; height++)
+            index.set(height, hashOf(height, 0));
+        // A shorter branch with more work forks at height 5 and ends at 8.
+        for (int height = 6; height <= 8; height++)
+            index.set(height, hashOf(height, 1));
+        index.truncateAbove(8);
+        assertEquals(hashOf(5, 0), index.get(5));
+        assertEquals(hashOf(6, 1), index.get(6));
+        assertEquals(hashOf(8, 1), index.get(8));
+        assertNull(index.get(9));
+        assertNull(index.get(10));
+        // The old branch must not reappear when the chain grows again.
+        index.set(10, hashOf(10, 1));
+        assertNull(index.get(9));
+        assertEquals(hashOf(10, 1), index.get(10));
+    }
+}
@@ -0,0 +1,81 @@
+package co.rsk.bitcoinj.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TinyLfuCacheTest {
+
+    @Test
+    public void putAndGet() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 1000);
+        cache.put(1, "one", 1);
+        cache.put(2, "two", 1);
+        assertEquals("one", cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertNull(cache.get(3));
+        cache.put(1, "uno", 5);
+        assertEquals("uno", cache.get(1));
+        assertEquals(6, cache.weight());
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weight());
+    }
+
+    @Test
+    public void boundedBySize() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++)
+            cache.put(i, "v" + i, 1);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void boundedByWeight() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 50);
+        for (int i = 0; i < 1000; i++)
+            cache.put(i, "v" + i, 10);
+        assertTrue(cache.size() <= 5);
+        assertTrue(cache.weight() <= 50);
+        // Too heavy to be kept at all.
+        cache.put(-1, "heavy", 51);
+        assertNull(cache.get(-1));
+        assertTrue(cache.weight() <= 50);
+    }
+
+    @Test
+    public void frequentKeysSurviveAScan() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(200, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++)
+            cache.put(i, "hot" + i, 1);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++)
+                assertNotNull(cache.get(i));
+        }
+        // A long run of keys used only once, which would flush a plain LRU cache.
+        for (int i = 1000; i < 11000; i++)
+            cache.put(i, "cold" + i, 1);
+        int hits = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get(i) != null)
+                hits++;
+        }
+        assertTrue("Only " + hits + " hot keys left", hits >= 90);
+        assertEquals(200, cache.size());
+    }
+
+    @Test
+    public void sketchCountsAndAges() {
+        TinyLfuCache.FrequencySketch sketch = new TinyLfuCache.FrequencySketch(16);
+        for (int i = 0; i < 20; i++)
+            sketch.increment(42);
+        // Counters saturate at 15.
+        assertEquals(15, sketch.frequency(42));
+        assertTrue(sketch.frequency(7) <= 1);
+        // Enough other uses halve the counters.
+        for (int i = 0; i < 160; i++)
+            sketch.increment(1000 + i);
+        assertTrue(sketch.frequency(42) < 15);
+    }
+}
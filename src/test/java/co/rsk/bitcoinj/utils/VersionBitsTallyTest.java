@@ -0,0 +1,120 @@
+package co.rsk.bitcoinj.utils;
+
+import co.rsk.bitcoinj.core.Context;
+import co.rsk.bitcoinj.core.NetworkParameters;
+import co.rsk.bitcoinj.core.StoredBlock;
+import co.rsk.bitcoinj.params.UnitTestParams;
+import co.rsk.bitcoinj.store.BtcBlockStore;
+import co.rsk.bitcoinj.store.BtcMemoryBlockStore;
+import co.rsk.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static co.rsk.bitcoinj.utils.VersionBitsDeployment.State.*;
+import static org.junit.Assert.*;
+
+public class VersionBitsTallyTest {
+    // Retargets every 10 blocks.
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int THRESHOLD = 8;
+    private static final long SPACING = 600;
+
+    private BtcBlockStore store;
+    private List<StoredBlock> chain;
+    private long genesisTime;
+    private VersionBitsDeployment deployment;
+    private VersionBitsDeployment expiring;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        store = new BtcMemoryBlockStore(PARAMS);
+        chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        genesisTime = PARAMS.getGenesisBlock().getTimeSeconds();
+        // Starts while the third period is mined, locks in with the fourth that signals it.
+        deployment = new VersionBitsDeployment("signalled", 1, genesisTime + 15 * SPACING, genesisTime + 1000 * SPACING);
+        // Starts right away but times out before anyone signals it.
+        expiring = new VersionBitsDeployment("expiring", 2, genesisTime, genesisTime + 20 * SPACING);
+        for (int height = 1; height <= 55; height++) {
+            long version = VersionBitsDeployment.TOP_BITS | (height >= 30 && height < 40 ? 1 << 1 : 0);
+            StoredBlock prev = chain.get(height - 1);
+            chain.add(FakeTxBuilder.createFakeBlock(store, prev, version, genesisTime + height * SPACING, height)
+                    .storedBlock);
+        }
+    }
+
+    @Test
+    public void add_followsDeploymentsThroughPeriods() throws Exception {
+        VersionBitsTally tally = newTally();
+        for (StoredBlock block : chain)
+            tally.add(block, medianTimePast(block));
+
+        assertEquals(55, tally.getHeight());
+        assertEquals(DEFINED, tally.getState(deployment, 25));
+        assertEquals(STARTED, tally.getState(deployment, 35));
+        assertEquals(LOCKED_IN, tally.getState(deployment, 45));
+        assertEquals(ACTIVE, tally.getState(deployment, 55));
+        assertEquals(ACTIVE, tally.getState(deployment));
+        assertEquals(STARTED, tally.getState(expiring, 25));
+        assertEquals(FAILED, tally.getState(expiring, 35));
+        assertNull(tally.getState(deployment, 70));
+    }
+
+    @Test
+    public void remove_undoesPeriodEnds() throws Exception {
+        VersionBitsTally tally = newTally();
+        for (StoredBlock block : chain)
+            tally.add(block, medianTimePast(block));
+
+        for (int height = 55; height >= 40; height--)
+            tally.remove(chain.get(height));
+        assertEquals(LOCKED_IN, tally.getState(deployment));
+        tally.remove(chain.get(39));
+        assertEquals(STARTED, tally.getState(deployment));
+        assertEquals(9, tally.getSignallingCount(deployment));
+
+        tally.add(chain.get(39), medianTimePast(chain.get(39)));
+        assertEquals(LOCKED_IN, tally.getState(deployment));
+        assertEquals(0, tally.getSignallingCount(deployment));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsGaps() throws Exception {
+        VersionBitsTally tally = newTally();
+        tally.add(chain.get(0), medianTimePast(chain.get(0)));
+        tally.add(chain.get(2), medianTimePast(chain.get(2)));
+    }
+
+    @Test
+    public void initialize_matchesAddingBlocks() throws Exception {
+        VersionBitsTally added = newTally();
+        for (StoredBlock block : chain)
+            added.add(block, medianTimePast(block));
+        VersionBitsTally initialized = newTally();
+        initialized.initialize(store, chain.get(55), 0);
+
+        assertEquals(added.getHeight(), initialized.getHeight());
+        for (int height = 0; height <= 56; height++) {
+            assertEquals(added.getState(deployment, height), initialized.getState(deployment, height));
+            assertEquals(added.getState(expiring, height), initialized.getState(expiring, height));
+        }
+    }
+
+    private VersionBitsTally newTally() {
+        return new VersionBitsTally(PARAMS, THRESHOLD, Arrays.asList(deployment, expiring));
+    }
+
+    private long medianTimePast(StoredBlock block) throws Exception {
+        List<Long> times = new ArrayList<Long>();
+        for (StoredBlock cursor = block; cursor != null && times.size() < 11; cursor = cursor.getPrev(store))
+            times.add(cursor.getHeader().getTimeSeconds());
+        Collections.sort(times);
+        return times.get((times.size() + 1) / 2 - 1);
+    }
+}
@@ -91,6 +91,69 @@ public class VersionTallyTest {
         assertEquals(PARAMS.getMajorityWindow() - 1, instance.getCountAtOrAbove(2).intValue());
     }
 
+    /**
+     * Verify that removing versions brings the ones before the window back.
+     */
+    @Test
+    public void testRemoveLast() {
+        VersionTally instance = new VersionTally(PARAMS);
+        for (int i = 0; i < PARAMS.getMajorityWindow(); i++) {
+            instance.add(1);
+        }
+        for (int i = 0; i < PARAMS.getMajorityWindow(); i++) {
+            instance.add(2);
+        }
+        assertEquals(PARAMS.getMajorityWindow(), instance.getCountAtOrAbove(2).intValue());
+
+        assertEquals(2, instance.removeLast());
+        assertEquals(2, instance.removeLast());
+        assertEquals(2, instance.removeLast());
+        assertEquals(PARAMS.getMajorityWindow() - 3, instance.getCountAtOrAbove(2).intValue());
+        assertEquals(PARAMS.getMajorityWindow(), instance.getCountAtOrAbove(1).intValue());
+
+        // Counts keep following the window once versions are added again.
+        instance.add(3);
+        assertEquals(PARAMS.getMajorityWindow() - 2, instance.getCountAtOrAbove(2).intValue());
+        assertEquals(1, instance.getCountAtOrAbove(3).intValue());
+    }
+
+    /**
+     * Verify that the tally returns null once versions are removed past the
+     * ones it remembers.
+     */
+    @Test
+    public void testRemoveLastPastHistory() {
+        VersionTally instance = new VersionTally(PARAMS, 1);
+        for (int i = 0; i < PARAMS.getMajorityWindow() + 5; i++) {
+            instance.add(2);
+        }
+        instance.removeLast();
+        assertEquals(PARAMS.getMajorityWindow(), instance.getCountAtOrAbove(2).intValue());
+        instance.removeLast();
+        assertNull(instance.getCountAtOrAbove(2));
+        instance.add(2);
+        assertEquals(PARAMS.getMajorityWindow(), instance.getCountAtOrAbove(2).intValue());
+    }
+
+    /**
+     * Verify that version bits are only counted for versions using them.
+     */
+    @Test
+    public void testCountSignalling() {
+        VersionTally instance = new VersionTally(PARAMS);
+        for (int i = 0; i < PARAMS.getMajorityWindow(); i++) {
+            instance.add(VersionBitsDeployment.TOP_BITS | (i % 2 == 0 ? 1 << 3 : 0));
+        }
+        assertEquals((PARAMS.getMajorityWindow() + 1) / 2, instance.getCountSignalling(3).intValue());
+        assertEquals(0, instance.getCountSignalling(4).intValue());
+
+        // Old style versions don't signal anything, even with the bit set.
+        for (int i = 0; i < PARAMS.getMajorityWindow(); i++) {
+            instance.add(0x40000000L | 1 << 3);
+        }
+        assertEquals(0, instance.getCountSignalling(3).intValue());
+    }
+
     @Test
     public void testInitialize() throws BlockStoreException {
         final BtcBlockStore blockStore = new BtcMemoryBlockStore(PARAMS);